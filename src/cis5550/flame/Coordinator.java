@@ -13,6 +13,7 @@ import java.util.List;
 import java.util.Vector;
 
 import cis5550.kvs.KVSClient;
+import cis5550.kvs.ParallelScan;
 import cis5550.kvs.Row;
 import cis5550.tools.HTTP;
 import cis5550.tools.Loader;
@@ -39,6 +40,7 @@ class Coordinator extends cis5550.generic.Coordinator {
     private final String jarName;
     private final StringBuilder out = new StringBuilder();
     private int concurrencyLevel = 1;
+    private String kvsJarName;  // name of this job's JAR on the KVS workers, once uploaded
 
     FlameContextImpl(String jarName) {
       this.jarName = jarName;
@@ -88,8 +90,8 @@ class Coordinator extends cis5550.generic.Coordinator {
         return fromTableLocal(tableName, lambda);
       }
       
-      // Create ranges based on KVS worker boundaries
-      List<KeyRange> ranges = createKeyRanges(kvsWorkerIDs);
+      // Create ranges based on KVS worker boundaries, split into concurrencyLevel balanced pieces
+      List<KeyRange> ranges = createKeyRanges(tableName, kvsWorkerIDs);
       System.err.println("Created " + ranges.size() + " ranges for parallel scanning");
       
       logger.info("fromTable(" + tableName + "): dividing into " + ranges.size() + " ranges");
@@ -102,6 +104,11 @@ class Coordinator extends cis5550.generic.Coordinator {
         return fromTableLocal(tableName, lambda);
       }
       
+      // If the lambda serializes, run it on the KVS workers next to the data and only
+      // pull back its results; otherwise (or if that fails for a range) scan as before.
+      final byte[] udf = serializeLambda(lambda);
+      final String udfJar = (udf == null) ? null : kvsJar();
+
       // Assign ranges to Flame workers (round-robin)
       List<String> allResults = new ArrayList<>();
       List<Thread> threads = new ArrayList<>();
@@ -118,6 +125,18 @@ class Coordinator extends cis5550.generic.Coordinator {
         final List<String> resultList = workerResults.get(i);
         
         Thread t = new Thread(() -> {
+          if (udfJar != null) {
+            try {
+              List<String> results = kvs.runOnRows(tableName, range.startRow, range.endRowExclusive, udfJar, udf);
+              synchronized (resultList) {
+                resultList.addAll(results);
+              }
+              logger.info("Range " + rangeIdx + " (" + range.startRow + " to " + range.endRowExclusive + "): " + results.size() + " results computed on KVS workers");
+              return;
+            } catch (Exception e) {
+              logger.warn("Worker-side fromTable failed for range " + rangeIdx + ", falling back to scan: " + e.getMessage());
+            }
+          }
           try {
             // Scan this range locally (on Coordinator, but with range limits)
             // In a full implementation, this would be sent to Flame workers
@@ -168,22 +187,52 @@ class Coordinator extends cis5550.generic.Coordinator {
       return new FlameRDDImpl(allResults);
     }
     
+    // Helper: Java-serialize the lambda, or null if it captured something that isn't Serializable
+    private static byte[] serializeLambda(RowToString lambda) {
+      if (lambda == null) return null;
+      try {
+        java.io.ByteArrayOutputStream baos = new java.io.ByteArrayOutputStream();
+        try (java.io.ObjectOutputStream oos = new java.io.ObjectOutputStream(baos)) {
+          oos.writeObject(lambda);
+        }
+        return baos.toByteArray();
+      } catch (java.io.IOException e) {
+        logger.info("fromTable lambda is not serializable (" + e.getMessage() + "); scanning instead");
+        return null;
+      }
+    }
+
+    // Helper: upload this job's JAR to the KVS workers (once per job)
+    private synchronized String kvsJar() {
+      if (kvsJarName == null) {
+        try {
+          kvsJarName = kvs.uploadJAR(java.nio.file.Files.readAllBytes(new File(jarName).toPath()));
+        } catch (Exception e) {
+          logger.warn("Cannot upload " + jarName + " to KVS workers: " + e.getMessage());
+          return null;
+        }
+      }
+      return kvsJarName;
+    }
+
     // Helper: local scan (fallback or for small tables)
     private FlameRDD fromTableLocal(String tableName, RowToString lambda) throws Exception {
       List<String> result = new ArrayList<>();
       int skipped = 0;
-      java.util.Iterator<Row> it = kvs.scan(tableName, null, null);
-      while (it.hasNext()) {
-        try {
-          Row r = it.next();
-          if (r == null) continue;
-          String s = (lambda == null) ? null : lambda.op(r);
-          if (s != null) result.add(s);
-        } catch (Exception rowError) {
-          // Skip corrupted row and continue
-          skipped++;
-          if (skipped <= 5) {
-            logger.warn("Skipping corrupted row in local scan: " + rowError.getMessage());
+      // All KVS workers stream at once; an RDD has no order, so rows are taken as they arrive
+      try (ParallelScan it = kvs.scanParallel(tableName, null, null, false)) {
+        while (it.hasNext()) {
+          try {
+            Row r = it.next();
+            if (r == null) continue;
+            String s = (lambda == null) ? null : lambda.op(r);
+            if (s != null) result.add(s);
+          } catch (Exception rowError) {
+            // Skip corrupted row and continue
+            skipped++;
+            if (skipped <= 5) {
+              logger.warn("Skipping corrupted row in local scan: " + rowError.getMessage());
+            }
           }
         }
       }
@@ -211,9 +260,23 @@ class Coordinator extends cis5550.generic.Coordinator {
       }
     }
     
-    // Helper: create key ranges based on KVS worker boundaries
-    private List<KeyRange> createKeyRanges(Vector<String> kvsWorkerIDs) {
+    // Helper: create key ranges based on KVS worker boundaries. With a concurrency level above
+    // one, each worker's range is cut into that many pieces of about the same size, at split
+    // points the KVS worker picks from its own rows (GET /splits).
+    private List<KeyRange> createKeyRanges(String tableName, Vector<String> kvsWorkerIDs) {
       List<KeyRange> ranges = new ArrayList<>();
+
+      if (concurrencyLevel > 1) {
+        try {
+          for (String[] r : kvs.splitRanges(tableName, concurrencyLevel))
+            ranges.add(new KeyRange(r[0], r[1]));
+          logRanges(ranges);
+          return ranges;
+        } catch (Exception e) {
+          logger.warn("Cannot get split points for " + tableName + ", using one range per KVS worker: " + e.getMessage());
+          ranges.clear();
+        }
+      }
       
       // The KVS uses a ring structure, so we need to create ranges that match
       // how KVSClient.scan() divides the key space
@@ -233,12 +296,15 @@ class Coordinator extends cis5550.generic.Coordinator {
         ranges.add(new KeyRange(kvsWorkerIDs.lastElement(), null));
       }
       
+      logRanges(ranges);
+      return ranges;
+    }
+
+    private static void logRanges(List<KeyRange> ranges) {
       System.err.println("Created ranges:");
       for (int i = 0; i < ranges.size(); i++) {
         System.err.println("  Range " + i + ": " + ranges.get(i).startRow + " → " + ranges.get(i).endRowExclusive);
       }
-      
-      return ranges;
     }
     
     // Helper class for key ranges
@@ -2,10 +2,12 @@ package cis5550.flame;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import cis5550.kvs.KVSClient;
+import cis5550.kvs.Row;
 
 class FlamePairRDDImpl implements FlamePairRDD {
   private List<FlamePair> data;
@@ -44,13 +46,12 @@ class FlamePairRDDImpl implements FlamePairRDD {
     checkAlive();
     // For each key, write values to distinct columns (v0, v1, ...)
     KVSClient kvs = Coordinator.kvs;
-    Map<String, Integer> nextColIdx = new HashMap<>();
+    Map<String, Row> rows = new LinkedHashMap<>();
     for (FlamePair p : data) {
-      String k = p._1(), v = p._2();
-      int idx = nextColIdx.getOrDefault(k, 0);
-      kvs.put(tableName, k, "v" + idx, v.getBytes("UTF-8"));
-      nextColIdx.put(k, idx + 1);
+      Row r = rows.computeIfAbsent(p._1(), Row::new);
+      r.put("v" + r.columns().size(), p._2().getBytes("UTF-8"));
     }
+    kvs.mergeRows(tableName, rows.values());   // batched per KVS worker; merges like put() per cell
   }
 
   @Override
@@ -8,6 +8,7 @@ import java.util.List;
 import java.util.Vector;
 
 import cis5550.kvs.KVSClient;
+import cis5550.kvs.Row;
 
 /**
  * In-memory RDD used by the HW7 tests.
@@ -37,11 +38,14 @@ class FlameRDDImpl implements FlameRDD {
     // Write each element as its own row, column "value"
     // The key can be anything; we just use an index and element to avoid accidental overwrite.
     KVSClient kvs = Coordinator.kvs;
+    List<Row> rows = new ArrayList<>(data.size());
     int i = 0;
     for (String s : data) {
-      String key = "k" + (i++) + "-" + Integer.toHexString(s.hashCode());
-      kvs.put(tableName, key, "value", s.getBytes("UTF-8"));
+      Row r = new Row("k" + (i++) + "-" + Integer.toHexString(s.hashCode()));
+      r.put("value", s.getBytes("UTF-8"));
+      rows.add(r);
     }
+    kvs.mergeRows(tableName, rows);   // batched per KVS worker; merges like put() per cell
   }
 
   @Override
@@ -136,6 +136,21 @@ public class CrawlQualityAnalyzer {
     private static List<Row> samplePages(KVSClient kvs, int totalCount, int sampleSize, FlameContext ctx) throws Exception {
         List<Row> sample = new ArrayList<>();
         
+        if (sampleSize > 0 && sampleSize < totalCount) {
+            // Random sample drawn on the KVS workers; only the sampled rows cross the network
+            output(ctx, "Taking random sample of " + sampleSize + " pages from " + totalCount + " total (worker-side)...");
+            try {
+                sample = kvs.sample("pt-crawl", sampleSize);
+                output(ctx, "  Sampled " + sample.size() + " pages");
+            } catch (Exception e) {
+                output(ctx, "  WARNING: Worker-side sampling failed (" + e.getMessage() + "), falling back to scan");
+                sample = new ArrayList<>();
+            }
+            if (!sample.isEmpty()) {
+                return sample;
+            }
+        }
+        
         output(ctx, "Scanning pt-crawl table...");
         output(ctx, "  Attempting to create iterator...");
         
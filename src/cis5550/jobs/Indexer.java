@@ -8,6 +8,7 @@ import java.io.FileWriter;
 import cis5550.flame.*;
 import cis5550.tools.Hasher;
 import cis5550.kvs.KVSClient;
+import cis5550.kvs.Row;
 
 public class Indexer {
 
@@ -64,15 +65,21 @@ public class Indexer {
         // =============================================
         List<FlamePair> finalList = index.collect();
 
+        // Bulk load instead of two puts per token: the KVS client sorts the rows per
+        // worker and ships them in a few large /ingest requests.
+        List<Row> rows = new ArrayList<>(finalList.size());
         for (FlamePair p : finalList) {
             String token = p._1();
             String urls  = p._2();
 
             String rowKey = Hasher.hash(token);   // SAFE rowKey
 
-            kvs.put("pt-page-index", rowKey, "token", token);
-            kvs.put("pt-page-index", rowKey, "urls", urls);
+            Row row = new Row(rowKey);
+            row.put("token", token);
+            row.put("urls", urls);
+            rows.add(row);
         }
+        kvs.bulkLoad("pt-page-index", rows);
 
         ctx.output("Saved rows into pt-index (column) = " + kvs.count("pt-page-index"));
         ctx.output("Indexer finished.");
@@ -16,8 +16,16 @@ public class SearchServer {
     static final double WEIGHT_PAGERANK = 5000.0; // Scaled up to match text score magnitude
     static final double TOTAL_DOCS_ESTIMATE = 30000.0; // Adjust the crawl count
 
+    // The index and PageRank tables only change when the jobs are rerun
+    static final long CACHE_BYTES = 64L * 1024 * 1024;
+    static final long CACHE_TTL_MS = 10 * 60 * 1000;
+
     public static void main(String[] args) {
 
+        KVSClient cacheConfig = new KVSClient(COORD);
+        for (String table : new String[] { "pt-title-index", "pt-url-index", "pt-pageranks", "pt-crawl" })
+            cacheConfig.enableCache(table, CACHE_BYTES, CACHE_TTL_MS);
+
         // port(8080);
         securePort(443, "/home/ec2-user/keystore.jks", "secret");
 
@@ -154,14 +162,24 @@ public class SearchServer {
                     // Removed
                 }
                 
-                // 5. PageRank
+                // 5. PageRank (one lookup per distinct host, all in flight at once)
+                AsyncKVSClient async = new AsyncKVSClient(kvs);
+                Map<String, java.util.concurrent.CompletableFuture<Row>> rankRows = new HashMap<>();
+                for (String url : urlScores.keySet()) {
+                    try {
+                        java.net.URI uri = new java.net.URI(url);
+                        String host = uri.getHost();
+                        if (host != null)
+                            rankRows.computeIfAbsent(host.toLowerCase(), h -> async.getRow("pt-pageranks", h));
+                    } catch (Exception e) {}
+                }
                 for (String url : urlScores.keySet()) {
                     try {
                         java.net.URI uri = new java.net.URI(url);
                         String host = uri.getHost();
                         if (host != null) {
                             host = host.toLowerCase();
-                            Row row = kvs.getRow("pt-pageranks", host);
+                            Row row = rankRows.get(host).join();
                             if (row != null) {
                                 for (String col : row.columns()) {
                                     String val = row.get(col);
@@ -188,14 +206,17 @@ public class SearchServer {
                 List<Map.Entry<String, Double>> finalResults = new ArrayList<>();
                 Map<String, String> urlTitles = new HashMap<>();
 
+                Map<String, java.util.concurrent.CompletableFuture<Row>> crawlRows = new HashMap<>();
+                for (Map.Entry<String, Double> entry : sorted)
+                    crawlRows.put(entry.getKey(), async.getRow("pt-crawl", Hasher.hash(entry.getKey())));
+
                 for (Map.Entry<String, Double> entry : sorted) {
                     String url = entry.getKey();
                     double score = entry.getValue();
                     String title = url;
 
                     try {
-                        String hashedUrl = Hasher.hash(url);
-                        Row row = kvs.getRow("pt-crawl", hashedUrl);
+                        Row row = crawlRows.get(url).join();
                         if (row != null) {
                             String t = row.get("title");
                             if (t != null && !t.isBlank()) {
@@ -0,0 +1,71 @@
+package cis5550.kvs;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import cis5550.tools.Metrics;
+import cis5550.webserver.Route;
+
+/**
+ * Admission control for the KVS worker's routes and binary-protocol requests. Each route class
+ * has a bounded number of requests in flight; a request that finds its class full waits briefly
+ * for a slot (so short bursts only add latency) and is then turned away with 429 and Retry-After
+ * (BUSY in the binary protocol), which KVSClient answers by backing off and lowering its own
+ * concurrency.
+ */
+final class Admission {
+
+  enum RouteClass {
+    // point reads and writes are cheap; a scan holds a slot for a whole range
+    READ(256, 200), WRITE(128, 500), SCAN(16, 1000);
+
+    final int maxInFlight;
+    final long maxWaitMs;
+    final Semaphore slots;
+    final String metric = "kvs.admission." + name().toLowerCase();
+
+    RouteClass(int maxInFlight, long maxWaitMs) {
+      this.maxInFlight = maxInFlight;
+      this.maxWaitMs = maxWaitMs;
+      this.slots = new Semaphore(maxInFlight, true);
+    }
+
+    int inFlight() { return maxInFlight - slots.availablePermits(); }
+  }
+
+  static final int RETRY_AFTER_SECONDS = 1;
+
+  private Admission() {}
+
+  /** Takes a slot of the given class, waiting up to its maxWaitMs; false if none frees up. */
+  static boolean enter(RouteClass c) throws InterruptedException {
+    if (!c.slots.tryAcquire(c.maxWaitMs, TimeUnit.MILLISECONDS)) {
+      Metrics.inc(c.metric + ".rejected");
+      return false;
+    }
+    Metrics.set(c.metric + ".inFlight", c.inFlight());
+    return true;
+  }
+
+  static void exit(RouteClass c) {
+    c.slots.release();
+    Metrics.inc(c.metric + ".admitted");
+  }
+
+  /** Wraps a route so that it runs only with a free slot of the given class. */
+  static Route admit(RouteClass c, Route r) {
+    return (req, res) -> {
+      if (!enter(c)) {
+        res.status(429, "Too Many Requests");
+        res.header("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+        res.type("text/plain");
+        return "Too many concurrent " + c.name().toLowerCase() + " requests; retry later";
+      }
+      try {
+        return r.handle(req, res);
+      } finally {
+        exit(c);
+      }
+    };
+  }
+}
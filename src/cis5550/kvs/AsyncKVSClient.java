@@ -0,0 +1,176 @@
+package cis5550.kvs;
+
+import java.util.*;
+import java.io.*;
+import java.util.concurrent.*;
+
+import cis5550.tools.AsyncHTTP;
+import cis5550.tools.HTTP;
+import cis5550.tools.Metrics;
+
+// Non-blocking counterpart of KVSClient: each call returns at once with a CompletableFuture
+// that completes when the worker has answered. Requests go through AsyncHTTP, whose selector
+// thread drives all connections, so a single caller can keep hundreds of requests in flight.
+// At most maxInFlightPerWorker requests run against one worker at a time (one connection
+// each); the rest wait in a queue. These limits are shared by all clients in the JVM, so
+// creating a client per request (as SearchServer does) is cheap.
+//
+// As in KVSClient, 429/503 answers are retried with backoff, and failed requests complete
+// the future exceptionally (IOException, or RuntimeException for a PUT that was not OK).
+// Routing comes from a KVSClient (the worker list is fetched on first use, which blocks once),
+// and writes made here are also seen by that client's coalesced reads. Reads use the read
+// caches enabled through KVSClient.enableCache(), and writes invalidate them. Requests about a
+// row whose worker cannot be reached refresh that routing and are retried, as in KVSClient,
+// though only at the row's owner (reads do not go to replicas here).
+
+public class AsyncKVSClient {
+
+  final KVSClient kvs;
+
+  public AsyncKVSClient(String coordinatorArg) {
+    this(new KVSClient(coordinatorArg));
+  }
+
+  public AsyncKVSClient(KVSClient kvsArg) {
+    kvs = kvsArg;
+  }
+
+  public KVSClient syncClient() {
+    return kvs;
+  }
+
+  public static void setMaxInFlightPerWorker(int n) {
+    AsyncHTTP.setMaxConnectionsPerHost(n);
+  }
+
+  // Sends one request, retrying 429/503 answers with backoff like KVSClient.request()
+  CompletableFuture<HTTP.Response> request(String method, String url, byte[] body) {
+    return attempt(method, url, body, 0);
+  }
+
+  CompletableFuture<HTTP.Response> attempt(String method, String url, byte[] body, int attempt) {
+    return AsyncHTTP.request(method, url, body).thenCompose(r -> {
+      if (!KVSClient.isOverloaded(r.statusCode()) || (attempt+1 >= KVSClient.MAX_ATTEMPTS))
+        return CompletableFuture.completedFuture(r);
+      Metrics.inc("kvsclient.async.retries");
+      long delay = KVSClient.backoffMillis(attempt, r.headers().get("retry-after"));
+      Executor later = CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS);
+      return CompletableFuture.supplyAsync(() -> null, later).thenCompose(x -> attempt(method, url, body, attempt+1));
+    });
+  }
+
+  String workerURL(String row) throws IOException {
+    if (!kvs.haveWorkers)
+      kvs.downloadWorkers();
+    return "http://"+kvs.workerForKey(row).address;
+  }
+
+  // Sends an idempotent request about one row (path starts with '/'); if the owner cannot be
+  // reached, refreshes the routing after a backoff and tries again, for up to KVSClient.FAILOVER_MS.
+  CompletableFuture<HTTP.Response> keyRequest(String method, String row, String path, byte[] body) {
+    return keyAttempt(method, row, path, body, System.currentTimeMillis()+KVSClient.FAILOVER_MS, 0);
+  }
+
+  CompletableFuture<HTTP.Response> keyAttempt(String method, String row, String path, byte[] body, long deadline, int attempt) {
+    String url;
+    try {
+      url = workerURL(row)+path;
+    } catch (IOException ioe) {
+      return CompletableFuture.failedFuture(ioe);
+    }
+    return request(method, url, body).exceptionallyCompose(t -> {
+      Throwable cause = ((t instanceof CompletionException) && (t.getCause() != null)) ? t.getCause() : t;
+      if (!(cause instanceof IOException) || !KVSClient.isConnectionFailure((IOException)cause) || (System.currentTimeMillis() >= deadline))
+        return CompletableFuture.failedFuture(cause);
+      Metrics.inc("kvsclient.failover.retries");
+      Executor later = CompletableFuture.delayedExecutor(KVSClient.backoffMillis(attempt, null), TimeUnit.MILLISECONDS);
+      return CompletableFuture.runAsync(kvs::refreshRouting, later).thenCompose(x -> keyAttempt(method, row, path, body, deadline, attempt+1));
+    });
+  }
+
+  static String enc(String s) {
+    return java.net.URLEncoder.encode(s, java.nio.charset.StandardCharsets.UTF_8);
+  }
+
+  // ------------------------ Operations ------------------------
+
+  public CompletableFuture<byte[]> get(String tableName, String row, String column) {
+    if (row.equals(""))
+      return CompletableFuture.failedFuture(new RuntimeException("Row key can't be empty!"));
+    return cachedGet(tableName, row, column, "/data/"+tableName+"/"+enc(row)+"/"+enc(column))
+      .thenApply(r -> (r.statusCode() == 200) ? r.body().clone() : null);
+  }
+
+  public CompletableFuture<Row> getRow(String tableName, String row) {
+    if (row.equals(""))
+      return CompletableFuture.failedFuture(new RuntimeException("Row key can't be empty!"));
+    return cachedGet(tableName, row, null, "/data/"+tableName+"/"+enc(row))
+      .thenApply(r -> (r.statusCode() == 404) ? null : KVSClient.decodeRow(tableName, row, r.body()));
+  }
+
+  public CompletableFuture<Boolean> existsRow(String tableName, String row) {
+    return cachedGet(tableName, row, null, "/data/"+tableName+"/"+enc(row))
+      .thenApply(r -> r.statusCode() == 200);
+  }
+
+  // A read that uses the table's cache, if the KVSClient has one for it (see KVSClient.enableCache())
+  CompletableFuture<HTTP.Response> cachedGet(String tableName, String row, String column, String path) {
+    ReadCache cache = kvs.cacheFor(tableName);
+    if (cache == null)
+      return keyRequest("GET", row, path, null);
+    HTTP.Response hit = cache.get(row, column);
+    if (hit != null)
+      return CompletableFuture.completedFuture(hit);
+    long epoch = cache.epoch();
+    return keyRequest("GET", row, path, null).thenApply(r -> {
+      cache.put(row, column, r, epoch);
+      return r;
+    });
+  }
+
+  public CompletableFuture<Void> put(String tableName, String row, String column, byte value[]) {
+    return keyRequest("PUT", row, "/data/"+tableName+"/"+enc(row)+"/"+enc(column), value)
+      .thenApply(r -> expectOK(r, tableName, row));
+  }
+
+  public CompletableFuture<Void> put(String tableName, String row, String column, String value) {
+    return put(tableName, row, column, value.getBytes());
+  }
+
+  public CompletableFuture<Void> putRow(String tableName, Row row) {
+    if (row.key().equals(""))
+      return CompletableFuture.failedFuture(new RuntimeException("Row key can't be empty!"));
+    return keyRequest("PUT", row.key(), "/data/"+tableName, row.toByteArray())
+      .thenApply(r -> expectOK(r, tableName, row.key()));
+  }
+
+  Void expectOK(HTTP.Response r, String tableName, String row) {
+    kvs.forgetReads(tableName, row);
+    String result = new String(r.body());
+    if (!result.equals("OK"))
+      throw new RuntimeException("PUT returned something other than OK: "+result);
+    return null;
+  }
+
+  // Sum of the workers' counts, asked for all at once
+  public CompletableFuture<Integer> count(String tableName) {
+    List<CompletableFuture<Integer>> parts = new ArrayList<CompletableFuture<Integer>>();
+    try {
+      if (!kvs.haveWorkers)
+        kvs.downloadWorkers();
+      for (KVSClient.WorkerEntry w : new ArrayList<KVSClient.WorkerEntry>(kvs.workers))
+        parts.add(request("GET", "http://"+w.address+"/count/"+tableName, null)
+          .thenApply(r -> (r.statusCode() == 200) ? Integer.valueOf(new String(r.body()).trim()) : 0));
+    } catch (IOException ioe) {
+      return CompletableFuture.failedFuture(ioe);
+    }
+    CompletableFuture<?>[] all = parts.toArray(new CompletableFuture<?>[0]);
+    return CompletableFuture.allOf(all)
+      .thenApply(x -> {
+        int total = 0;
+        for (CompletableFuture<Integer> p : parts)
+          total += p.join();
+        return total;
+      });
+  }
+}
@@ -0,0 +1,231 @@
+package cis5550.kvs;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cis5550.tools.HTTP;
+import cis5550.tools.Metrics;
+
+import static cis5550.kvs.BinaryProtocol.*;
+
+/**
+ * Client side of the binary protocol (see BinaryProtocol): one connection per worker, shared by
+ * all threads of the JVM, with any number of requests in flight on it. A selector thread writes
+ * the queued frames and matches replies to their requests by ID, while callers wait in call().
+ * If a connection breaks, the requests on it fail with an IOException and the next call connects
+ * again; requests are never resent here, so retrying is up to the caller.
+ */
+final class BinaryClient {
+
+  static final long TICK_MS = 100;
+  private static final int READ_BUFFER_BYTES = 64 * 1024;
+  private static final int MAX_GATHER = 64;
+
+  static final class Reply {
+    final byte status;
+    final Reader fields;
+
+    Reply(byte statusArg, Reader fieldsArg) {
+      status = statusArg;
+      fields = fieldsArg;
+    }
+  }
+
+  private static final Map<String, Conn> conns = new ConcurrentHashMap<>();
+  private static final ConcurrentLinkedQueue<Conn> writable = new ConcurrentLinkedQueue<>();
+  private static final AtomicBoolean wakeupPending = new AtomicBoolean();
+  private static final AtomicInteger nextID = new AtomicInteger();
+  private static volatile Selector selector;
+
+  private BinaryClient() {}
+
+  /** Sends one request to a worker's binary port ("host:port") and waits up to timeoutMs for the reply. */
+  static Reply call(String address, Writer request, long timeoutMs) throws IOException {
+    if (selector == null) ensureStarted();
+    CompletableFuture<Reply> f = new CompletableFuture<>();
+    int id = nextID.incrementAndGet();
+    Conn c;
+    while (true) {
+      c = conns.computeIfAbsent(address, Conn::new);
+      c.pending.put(id, f);
+      if (!c.closed) break;
+      c.pending.remove(id);          // lost a race with the connection failing: use a new one
+      conns.remove(address, c);
+    }
+    c.out.add(request.frame(id));
+    writable.add(c);
+    wakeup();
+    Metrics.inc("kvsclient.binary.requests");
+
+    try {
+      return f.get(timeoutMs, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException te) {
+      c.pending.remove(id);
+      throw new SocketTimeoutException("No reply from " + address + " within " + timeoutMs + " ms");
+    } catch (ExecutionException ee) {
+      Throwable cause = ee.getCause();
+      throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+    } catch (InterruptedException ie) {
+      c.pending.remove(id);
+      Thread.currentThread().interrupt();
+      throw new java.io.InterruptedIOException("Interrupted while waiting for " + address);
+    }
+  }
+
+  private static void wakeup() {
+    if (wakeupPending.compareAndSet(false, true)) selector.wakeup();
+  }
+
+  private static synchronized void ensureStarted() {
+    if (selector != null) return;
+    try {
+      selector = Selector.open();
+    } catch (IOException ioe) {
+      throw new java.io.UncheckedIOException("Cannot open a selector", ioe);
+    }
+    Thread t = new Thread(BinaryClient::loop, "KVSBinaryClient");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  // ------------------------- Selector thread -------------------------
+
+  private static void loop() {
+    long nextTick = System.currentTimeMillis() + TICK_MS;
+    while (true) {
+      try {
+        selector.select(TICK_MS);
+        wakeupPending.set(false);
+        Conn c;
+        while ((c = writable.poll()) != null)
+          c.flush();
+
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          SelectionKey key = it.next();
+          it.remove();
+          if (key.isValid()) ((Conn) key.attachment()).ready(key);
+        }
+
+        long now = System.currentTimeMillis();
+        if (now >= nextTick) {
+          nextTick = now + TICK_MS;
+          for (Conn conn : conns.values())
+            if (conn.key != null && !conn.connected && now > conn.connectDeadline)
+              conn.failed(new SocketTimeoutException("Connect to " + conn.address + " timed out"));
+        }
+      } catch (Throwable t) {
+        System.err.println("Binary protocol client selector: " + t);
+      }
+    }
+  }
+
+  private static final class Conn {
+    final String address;
+    final Map<Integer, CompletableFuture<Reply>> pending = new ConcurrentHashMap<>();
+    final ConcurrentLinkedQueue<ByteBuffer> out = new ConcurrentLinkedQueue<>();
+    volatile boolean closed;
+    // Only touched by the selector thread
+    SocketChannel ch;
+    SelectionKey key;
+    boolean connected;
+    long connectDeadline;
+    ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_BYTES);
+    final ArrayDeque<ByteBuffer> writing = new ArrayDeque<>();
+
+    Conn(String addressArg) {
+      address = addressArg;
+    }
+
+    void connect() throws IOException {
+      int pos = address.lastIndexOf(':');
+      ch = SocketChannel.open();
+      ch.configureBlocking(false);
+      ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      connected = ch.connect(new InetSocketAddress(address.substring(0, pos), Integer.parseInt(address.substring(pos + 1))));
+      connectDeadline = System.currentTimeMillis() + ((HTTP.connectTimeout() > 0) ? HTTP.connectTimeout() : 5000);
+      key = ch.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+      Metrics.inc("kvsclient.binary.connects");
+    }
+
+    void ready(SelectionKey k) {
+      try {
+        if (k.isConnectable()) {
+          ch.finishConnect();
+          connected = true;
+          flush();
+          return;
+        }
+        if (k.isReadable()) read();
+        if (k.isValid() && k.isWritable()) flush();
+      } catch (IOException ioe) {
+        failed(ioe);
+      }
+    }
+
+    void flush() {
+      if (closed) return;
+      try {
+        if (ch == null) connect();
+        if (!connected) return;
+        ByteBuffer b;
+        while (writing.size() < MAX_GATHER && (b = out.poll()) != null) writing.add(b);
+        while (!writing.isEmpty()) {
+          ch.write(writing.toArray(new ByteBuffer[0]));
+          while (!writing.isEmpty() && !writing.peekFirst().hasRemaining()) writing.pollFirst();
+          if (!writing.isEmpty()) break;
+          while (writing.size() < MAX_GATHER && (b = out.poll()) != null) writing.add(b);
+        }
+        key.interestOps(SelectionKey.OP_READ | (writing.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+      } catch (IOException ioe) {
+        failed(ioe);
+      }
+    }
+
+    void read() throws IOException {
+      if (ch.read(in) < 0) throw new IOException("Connection closed by the worker");
+      in.flip();
+      while (in.remaining() >= 4) {
+        int len = in.getInt(in.position());
+        if (len < HEADER_BYTES - 4 || len > MAX_FRAME_BYTES) throw new IOException("Bad frame length " + len);
+        if (in.remaining() < 4 + len) break;
+        byte[] frame = new byte[len];
+        in.position(in.position() + 4);
+        in.get(frame);
+        ByteBuffer b = ByteBuffer.wrap(frame);
+        int id = b.getInt();
+        byte status = b.get();
+        CompletableFuture<Reply> f = pending.remove(id);
+        if (f != null) f.complete(new Reply(status, new Reader(b)));
+      }
+      int needed = (in.remaining() >= 4) ? 4 + in.getInt(in.position()) : READ_BUFFER_BYTES;
+      if (needed > in.capacity() || (in.capacity() > READ_BUFFER_BYTES && needed <= READ_BUFFER_BYTES)) {
+        ByteBuffer b = ByteBuffer.allocate(Math.max(needed, READ_BUFFER_BYTES));
+        b.put(in);
+        in = b;
+      } else {
+        in.compact();
+      }
+    }
+
+    void failed(IOException ioe) {
+      closed = true;
+      conns.remove(address, this);
+      if (key != null) key.cancel();
+      try { if (ch != null) ch.close(); } catch (IOException e) {}
+      IOException reported = (ioe instanceof SocketTimeoutException) ? ioe : new IOException("Connection to " + address + " failed (" + ioe.getMessage() + ")", ioe);
+      for (Integer id : new ArrayList<>(pending.keySet())) {
+        CompletableFuture<Reply> f = pending.remove(id);
+        if (f != null) f.completeExceptionally(reported);
+      }
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package cis5550.kvs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Frames of the worker's binary protocol (see BinaryServer and BinaryClient). Every frame is
+ *
+ *   int length (of the rest) | int requestID | byte opcode or status | fields
+ *
+ * where a field is an int, or a string/byte array as an int length followed by its bytes (UTF-8
+ * for strings). Replies carry the ID of their request and may come in any order, so a client
+ * can send many requests on one connection without waiting. Requests and their fields:
+ *
+ *   GET      table row column      -> OK value | NOT_FOUND
+ *   PUT      table row column value-> OK
+ *   GET_ROW  table row             -> OK row | NOT_FOUND       (row = Row.toByteArray() format)
+ *   PUT_ROW  table row             -> OK
+ *   GET_ROWS table n key*n         -> OK, then per key: int 1 and the row, or int 0
+ *   PUT_ROWS table n row*n         -> OK
+ *   PING                           -> OK
+ *
+ * ERROR replies carry a message; BUSY means the worker is overloaded (like HTTP 429).
+ */
+final class BinaryProtocol {
+
+  static final byte GET = 1, PUT = 2, GET_ROW = 3, PUT_ROW = 4, GET_ROWS = 5, PUT_ROWS = 6, PING = 7;
+  static final byte OK = 0, NOT_FOUND = 1, ERROR = 2, BUSY = 3;
+
+  static final int HEADER_BYTES = 9;                  // length, request ID, opcode/status
+  static final int MAX_FRAME_BYTES = 256 << 20;
+
+  private BinaryProtocol() {}
+
+  /** Builds one frame; the request ID is filled in when the frame is sent. */
+  static final class Writer {
+    byte[] buf = new byte[128];
+    int len = HEADER_BYTES;
+
+    Writer(byte code) {
+      buf[8] = code;
+    }
+
+    private void ensure(int n) {
+      if (len + n > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+    }
+
+    Writer putInt(int v) {
+      ensure(4);
+      buf[len++] = (byte) (v >>> 24);
+      buf[len++] = (byte) (v >>> 16);
+      buf[len++] = (byte) (v >>> 8);
+      buf[len++] = (byte) v;
+      return this;
+    }
+
+    Writer putBytes(byte[] b) {
+      putInt(b.length);
+      ensure(b.length);
+      System.arraycopy(b, 0, buf, len, b.length);
+      len += b.length;
+      return this;
+    }
+
+    Writer putString(String s) {
+      return putBytes(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    int size() {
+      return len;
+    }
+
+    /** The finished frame with the given request ID. */
+    ByteBuffer frame(int requestID) {
+      ByteBuffer b = ByteBuffer.wrap(buf, 0, len);
+      b.putInt(0, len - 4);
+      b.putInt(4, requestID);
+      return b;
+    }
+  }
+
+  /** Reads the fields of a received frame (positioned after the header). */
+  static final class Reader {
+    final ByteBuffer buf;
+
+    Reader(ByteBuffer bufArg) {
+      buf = bufArg;
+    }
+
+    int getInt() throws IOException {
+      if (buf.remaining() < 4) throw new IOException("Truncated frame");
+      return buf.getInt();
+    }
+
+    byte[] getBytes() throws IOException {
+      int n = getInt();
+      if (n < 0 || n > buf.remaining()) throw new IOException("Truncated frame");
+      byte[] b = new byte[n];
+      buf.get(b);
+      return b;
+    }
+
+    String getString() throws IOException {
+      return new String(getBytes(), StandardCharsets.UTF_8);
+    }
+  }
+
+  static Writer error(String message) {
+    return new Writer(ERROR).putString((message == null) ? "Internal error" : message);
+  }
+}
@@ -0,0 +1,255 @@
+package cis5550.kvs;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cis5550.tools.Metrics;
+
+import static cis5550.kvs.BinaryProtocol.*;
+
+/**
+ * The worker's optional binary protocol (see BinaryProtocol), served on a second port. One
+ * selector thread reads frames from all connections and hands each request to a small pool of
+ * threads, which run it under the same admission control as the HTTP routes; replies are written
+ * back by the selector as they finish, so requests on one connection run concurrently and their
+ * replies may overtake each other. A connection with MAX_OUTSTANDING requests unanswered is not
+ * read from until it has caught up.
+ */
+final class BinaryServer {
+
+  /** The worker's row operations, with the same effects as the /data routes. */
+  interface Handler {
+    byte[] get(String table, String row, String column) throws IOException;
+    byte[] getRow(String table, String row) throws IOException;          // Row.toByteArray() format, or null
+    void put(String table, String row, String column, byte[] value) throws IOException;
+    void putRow(String table, byte[] row) throws IOException;
+  }
+
+  static final int THREADS = 32;
+  static final int MAX_OUTSTANDING = 1024;       // per connection
+  private static final int READ_BUFFER_BYTES = 64 * 1024;
+  private static final int MAX_GATHER = 64;      // replies written with one call
+
+  private static Handler handler;
+  private static Selector selector;
+  private static ExecutorService executor;
+  private static final ConcurrentLinkedQueue<Conn> writable = new ConcurrentLinkedQueue<>();
+  private static final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+  private BinaryServer() {}
+
+  static void start(int port, Handler h) throws IOException {
+    handler = h;
+    selector = Selector.open();
+    ServerSocketChannel server = ServerSocketChannel.open();
+    server.bind(new InetSocketAddress(port), 1024);
+    server.configureBlocking(false);
+    server.register(selector, SelectionKey.OP_ACCEPT);
+    executor = Executors.newFixedThreadPool(THREADS, r -> {
+      Thread t = new Thread(r, "KVSBinary-exec");
+      t.setDaemon(true);
+      return t;
+    });
+    Thread t = new Thread(BinaryServer::loop, "KVSBinary");
+    t.setDaemon(true);
+    t.start();
+    System.out.println("Binary protocol on port " + port);
+  }
+
+  // ------------------------- Selector thread -------------------------
+
+  private static void loop() {
+    while (true) {
+      try {
+        selector.select();
+        wakeupPending.set(false);
+        Conn c;
+        while ((c = writable.poll()) != null)
+          c.flush();
+
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          SelectionKey key = it.next();
+          it.remove();
+          if (!key.isValid()) continue;
+          if (key.isAcceptable()) accept((ServerSocketChannel) key.channel());
+          else ((Conn) key.attachment()).ready(key);
+        }
+      } catch (Throwable t) {
+        System.err.println("Binary protocol selector: " + t);
+      }
+    }
+  }
+
+  private static void accept(ServerSocketChannel server) throws IOException {
+    SocketChannel ch = server.accept();
+    if (ch == null) return;
+    ch.configureBlocking(false);
+    ch.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+    Conn c = new Conn(ch);
+    c.key = ch.register(selector, SelectionKey.OP_READ, c);
+    Metrics.inc("kvs.binary.connections");
+  }
+
+  private static final class Conn {
+    final SocketChannel ch;
+    SelectionKey key;
+    ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_BYTES);
+    final ConcurrentLinkedQueue<ByteBuffer> out = new ConcurrentLinkedQueue<>();
+    final ArrayDeque<ByteBuffer> writing = new ArrayDeque<>();
+    final AtomicInteger outstanding = new AtomicInteger();
+    boolean paused;
+
+    Conn(SocketChannel chArg) {
+      ch = chArg;
+    }
+
+    void ready(SelectionKey k) {
+      try {
+        if (k.isReadable()) read();
+        if (k.isValid() && k.isWritable()) flush();
+      } catch (IOException e) {
+        close();
+      }
+    }
+
+    void read() throws IOException {
+      if (ch.read(in) < 0) {
+        close();
+        return;
+      }
+      in.flip();
+      while (in.remaining() >= 4) {
+        int len = in.getInt(in.position());
+        if (len < HEADER_BYTES - 4 || len > MAX_FRAME_BYTES) throw new IOException("Bad frame length " + len);
+        if (in.remaining() < 4 + len) break;
+        byte[] frame = new byte[len];
+        in.position(in.position() + 4);
+        in.get(frame);
+        outstanding.incrementAndGet();
+        executor.execute(() -> handle(this, frame));
+      }
+      // Keep the partial frame; make room for it if it is larger than the buffer
+      int needed = (in.remaining() >= 4) ? 4 + in.getInt(in.position()) : READ_BUFFER_BYTES;
+      if (needed > in.capacity() || (in.capacity() > READ_BUFFER_BYTES && needed <= READ_BUFFER_BYTES)) {
+        ByteBuffer b = ByteBuffer.allocate(Math.max(needed, READ_BUFFER_BYTES));
+        b.put(in);
+        in = b;
+      } else {
+        in.compact();
+      }
+      if (outstanding.get() >= MAX_OUTSTANDING) {
+        paused = true;
+        updateInterest();
+      }
+    }
+
+    // Called by the pool threads
+    void send(ByteBuffer frame) {
+      out.add(frame);
+      outstanding.decrementAndGet();
+      writable.add(this);
+      if (wakeupPending.compareAndSet(false, true)) selector.wakeup();
+    }
+
+    void flush() {
+      if (!ch.isOpen()) return;
+      try {
+        ByteBuffer b;
+        while (writing.size() < MAX_GATHER && (b = out.poll()) != null) writing.add(b);
+        while (!writing.isEmpty()) {
+          ch.write(writing.toArray(new ByteBuffer[0]));
+          while (!writing.isEmpty() && !writing.peekFirst().hasRemaining()) writing.pollFirst();
+          if (!writing.isEmpty()) break;     // socket buffer full; OP_WRITE continues later
+          while (writing.size() < MAX_GATHER && (b = out.poll()) != null) writing.add(b);
+        }
+        if (paused && outstanding.get() < MAX_OUTSTANDING / 2) paused = false;
+        updateInterest();
+      } catch (IOException e) {
+        close();
+      }
+    }
+
+    void updateInterest() {
+      if (key.isValid())
+        key.interestOps((paused ? 0 : SelectionKey.OP_READ) | (writing.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+    }
+
+    void close() {
+      key.cancel();
+      try { ch.close(); } catch (IOException e) {}
+    }
+  }
+
+  // ------------------------- Requests -------------------------
+
+  private static void handle(Conn c, byte[] frame) {
+    ByteBuffer b = ByteBuffer.wrap(frame);
+    int id = b.getInt();
+    byte op = b.get();
+    Admission.RouteClass rc = (op == PUT || op == PUT_ROW || op == PUT_ROWS) ? Admission.RouteClass.WRITE : Admission.RouteClass.READ;
+    Writer reply;
+    try {
+      if (!Admission.enter(rc)) {
+        reply = new Writer(BUSY);
+      } else {
+        try {
+          reply = execute(op, new Reader(b));
+        } finally {
+          Admission.exit(rc);
+        }
+      }
+    } catch (Exception e) {
+      reply = error(e.getMessage());
+    }
+    Metrics.inc("kvs.binary.requests");
+    c.send(reply.frame(id));
+  }
+
+  private static Writer execute(byte op, Reader r) throws IOException {
+    switch (op) {
+      case GET: {
+        byte[] v = handler.get(r.getString(), r.getString(), r.getString());
+        return (v == null) ? new Writer(NOT_FOUND) : new Writer(OK).putBytes(v);
+      }
+      case PUT:
+        handler.put(r.getString(), r.getString(), r.getString(), r.getBytes());
+        return new Writer(OK);
+      case GET_ROW: {
+        byte[] row = handler.getRow(r.getString(), r.getString());
+        return (row == null) ? new Writer(NOT_FOUND) : new Writer(OK).putBytes(row);
+      }
+      case PUT_ROW:
+        handler.putRow(r.getString(), r.getBytes());
+        return new Writer(OK);
+      case GET_ROWS: {
+        String table = r.getString();
+        int n = r.getInt();
+        Writer w = new Writer(OK);
+        for (int i = 0; i < n; i++) {
+          byte[] row = handler.getRow(table, r.getString());
+          if (row == null) w.putInt(0);
+          else w.putInt(1).putBytes(row);
+        }
+        return w;
+      }
+      case PUT_ROWS: {
+        String table = r.getString();
+        int n = r.getInt();
+        for (int i = 0; i < n; i++)
+          handler.putRow(table, r.getBytes());
+        return new Writer(OK);
+      }
+      case PING:
+        return new Writer(OK);
+      default:
+        return error("Unknown opcode " + op);
+    }
+  }
+}
@@ -0,0 +1,320 @@
+package cis5550.kvs;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import cis5550.tools.Metrics;
+
+/**
+ * Sequence-numbered change log per table: one "put" or "del" entry, carrying only the row key,
+ * for every row this worker writes or drops. Consumers poll with the last sequence number they
+ * have seen and re-read the rows they care about.
+ *
+ * Logging is opt-in per table (enable(), or PUT /changes/:t on the worker), so writes to other
+ * tables cost nothing here. For persistent tables the log file below doubles as the marker, so
+ * the setting survives restarts, like the .writebehind and .coldtier files.
+ *
+ * Each log keeps the most recent CAPACITY entries in a ring buffer, which starts small and
+ * doubles as entries arrive, so quiet tables cost little memory. Logs of persistent tables
+ * are also appended to <table>/.changes, so they survive restarts and move or vanish together
+ * with the table; the file is compacted down to the ring once it has grown to twice its size.
+ * Every log has an epoch (its creation time); a consumer whose epoch does not match, or whose
+ * position has fallen out of the ring, is told it missed changes.
+ *
+ * File appends are group-committed outside the log's monitor: a writer adds its lines to a
+ * pending buffer, and whoever gets the file lock next writes and flushes everything pending,
+ * so concurrent writers share one write and readers never wait for the disk.
+ */
+final class ChangeLog {
+
+  static final String FILE_NAME = ".changes";
+  static final int CAPACITY = 100_000;
+  static final int INITIAL_CAPACITY = 1024;
+  private static final String VERSION = "v1";
+
+  static final class Entry {
+    final long seq;
+    final boolean delete;
+    final String row;
+    Entry(long seq, boolean delete, String row) { this.seq = seq; this.delete = delete; this.row = row; }
+  }
+
+  /** Result of a poll: entries after the requested position, or from the oldest retained one on a gap. */
+  static final class Batch {
+    final long epoch, lastSeq;
+    final boolean gap;
+    final List<Entry> entries;
+    Batch(long epoch, long lastSeq, boolean gap, List<Entry> entries) {
+      this.epoch = epoch; this.lastSeq = lastSeq; this.gap = gap; this.entries = entries;
+    }
+  }
+
+  private final long epoch;
+  private String[] rows = new String[INITIAL_CAPACITY];   // ring, grown up to CAPACITY
+  private boolean[] deletes = new boolean[INITIAL_CAPACITY];
+  private long firstSeq = 1, nextSeq = 1;   // retained entries are [firstSeq, nextSeq)
+  private StringBuilder pending = new StringBuilder();   // lines not yet written to the file
+  private boolean dropped;
+  private final Object fileLock = new Object();   // guards out and entriesInFile
+  private Writer out;                       // append handle for persistent tables
+  private long entriesInFile;
+
+  private ChangeLog(long epoch) {
+    this.epoch = epoch;
+  }
+
+  private static String rootDir;
+  private static final Map<String, ChangeLog> logs = new ConcurrentHashMap<>();
+
+  static void init(String root, Collection<String> persistentTables) {
+    rootDir = root;
+    for (String t : persistentTables)
+      if (Files.exists(Paths.get(root, t, FILE_NAME))) logs.put(t, load(t));
+  }
+
+  private static boolean isPersistent(String table) {
+    return table.startsWith("pt-");
+  }
+
+  private static ChangeLog of(String table) {
+    return logs.computeIfAbsent(table, t -> isPersistent(t) ? load(t) : new ChangeLog(System.currentTimeMillis()));
+  }
+
+  // ------------------------- Configuration -------------------------
+
+  /** Starts logging changes to the table (a no-op if it already does). */
+  static void enable(String table) throws IOException {
+    ChangeLog log = of(table);
+    if (!isPersistent(table)) return;
+    synchronized (log.fileLock) {
+      if (log.dropped) return;
+      if (log.out == null) log.open(table);
+      log.out.flush();
+    }
+  }
+
+  /** Stops logging changes to the table and discards its log. */
+  static void disable(String table) throws IOException {
+    dropTable(table);
+    if (isPersistent(table)) Files.deleteIfExists(Paths.get(rootDir, table, FILE_NAME));
+  }
+
+  static boolean enabled(String table) {
+    return logs.containsKey(table);
+  }
+
+  // ------------------------- Appending -------------------------
+
+  static void recordPut(String table, String row) {
+    record(table, false, row);
+  }
+
+  static void recordDelete(String table, String row) {
+    record(table, true, row);
+  }
+
+  /** Logs a batch of puts (e.g. a bulk ingest) with a single write to the file. */
+  static void recordPuts(String table, Collection<String> rows) {
+    if (!rows.isEmpty()) record(table, false, rows.toArray(new String[0]));
+  }
+
+  // The entries are in the file (flushed) when this returns, written by this or another writer
+  private static void record(String table, boolean delete, String... batch) {
+    ChangeLog log = logs.get(table);
+    if (log == null) return;
+    log.append(table, delete, batch);
+    if (isPersistent(table)) log.writePending(table);
+  }
+
+  private synchronized void append(String table, boolean delete, String... batch) {
+    boolean persistent = isPersistent(table);
+    for (String row : batch) {
+      long seq = add(delete, row);
+      if (persistent) pending.append(line(seq, delete, row));
+    }
+    Metrics.add("kvs.changes.appended", batch.length);
+    notifyAll();
+  }
+
+  // Puts one entry into the ring, dropping the oldest once CAPACITY are retained; returns its seq
+  private long add(boolean delete, String row) {
+    if (nextSeq - firstSeq >= rows.length && rows.length < CAPACITY) grow();
+    long seq = nextSeq++;
+    rows[slot(seq)] = row;
+    deletes[slot(seq)] = delete;
+    if (nextSeq - firstSeq > CAPACITY) firstSeq = nextSeq - CAPACITY;
+    return seq;
+  }
+
+  private int slot(long seq) {
+    return (int) (seq % rows.length);
+  }
+
+  private void grow() {
+    int n = Math.min(rows.length * 2, CAPACITY);
+    String[] r = new String[n];
+    boolean[] d = new boolean[n];
+    for (long s = firstSeq; s < nextSeq; s++) {
+      r[(int) (s % n)] = rows[slot(s)];
+      d[(int) (s % n)] = deletes[slot(s)];
+    }
+    rows = r;
+    deletes = d;
+  }
+
+  private synchronized StringBuilder takePending() {
+    StringBuilder sb = pending;
+    pending = new StringBuilder();
+    return sb;
+  }
+
+  private void writePending(String table) {
+    synchronized (fileLock) {
+      StringBuilder sb = takePending();
+      if (sb.length() == 0 || dropped) return;
+      try {
+        if (out == null) open(table);
+        out.write(sb.toString());
+        out.flush();
+        entriesInFile += countLines(sb);
+        Metrics.inc("kvs.changes.fileWrites");
+        if (entriesInFile > 2L * CAPACITY) compact(table);
+      } catch (IOException e) {
+        closeQuietly();
+        System.err.println("Cannot append to change log of " + table + ": " + e.getMessage());
+      }
+    }
+  }
+
+  private static int countLines(CharSequence s) {
+    int n = 0;
+    for (int i = 0; i < s.length(); i++)
+      if (s.charAt(i) == '\n') n++;
+    return n;
+  }
+
+  private static String line(long seq, boolean delete, String row) {
+    return seq + " " + (delete ? "del" : "put") + " " + URLEncoder.encode(row, StandardCharsets.UTF_8) + "\n";
+  }
+
+  private void open(String table) throws IOException {
+    Path f = Paths.get(rootDir, table, FILE_NAME);
+    boolean fresh = !Files.exists(f);
+    Files.createDirectories(f.getParent());
+    out = Files.newBufferedWriter(f, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    if (fresh) {
+      out.write(VERSION + " " + epoch + "\n");
+      entriesInFile = 0;
+    }
+  }
+
+  // Rewrites the file with just the retained entries; called with the file lock held. The
+  // entries are copied under the monitor, along with the pending ones, which they include.
+  private void compact(String table) throws IOException {
+    closeQuietly();
+    StringBuilder sb = new StringBuilder();
+    long n;
+    synchronized (this) {
+      for (long s = firstSeq; s < nextSeq; s++)
+        sb.append(line(s, deletes[slot(s)], rows[slot(s)]));
+      n = nextSeq - firstSeq;
+      pending = new StringBuilder();
+    }
+    Path f = Paths.get(rootDir, table, FILE_NAME);
+    Path tmp = f.resolveSibling(FILE_NAME + ".tmp");
+    try (Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+      w.write(VERSION + " " + epoch + "\n");
+      w.write(sb.toString());
+    }
+    Files.move(tmp, f, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    entriesInFile = n;
+    Metrics.inc("kvs.changes.compactions");
+  }
+
+  private void closeQuietly() {
+    if (out == null) return;
+    try { out.close(); } catch (IOException ignored) {}
+    out = null;
+  }
+
+  // A missing or unreadable file starts a new log (with a new epoch, so consumers resync).
+  private static ChangeLog load(String table) {
+    Path f = Paths.get(rootDir, table, FILE_NAME);
+    if (!Files.exists(f)) return new ChangeLog(System.currentTimeMillis());
+    try (BufferedReader br = Files.newBufferedReader(f, StandardCharsets.UTF_8)) {
+      String[] hdr = br.readLine().split(" ");
+      if (hdr.length != 2 || !hdr[0].equals(VERSION)) throw new IOException("bad header");
+      ChangeLog log = new ChangeLog(Long.parseLong(hdr[1]));
+      String line;
+      long n = 0;
+      while ((line = br.readLine()) != null) {
+        String[] p = line.split(" ");
+        if (p.length != 3) break;   // torn last line after a crash
+        long seq = Long.parseLong(p[0]);
+        if (seq != log.nextSeq && n > 0) break;
+        if (n == 0) log.firstSeq = log.nextSeq = seq;
+        log.add(p[1].equals("del"), URLDecoder.decode(p[2], StandardCharsets.UTF_8));
+        n++;
+      }
+      log.entriesInFile = n;
+      return log;
+    } catch (Exception e) {
+      System.err.println("Discarding unreadable change log of " + table + ": " + e.getMessage());
+      try { Files.deleteIfExists(f); } catch (IOException ignored) {}
+      return new ChangeLog(System.currentTimeMillis());
+    }
+  }
+
+  // ------------------------- Table lifecycle -------------------------
+
+  static void dropTable(String table) {
+    ChangeLog log = logs.remove(table);
+    if (log == null) return;
+    synchronized (log.fileLock) {
+      log.dropped = true;
+      log.closeQuietly();
+    }
+    synchronized (log) {
+      log.notifyAll();
+    }
+  }
+
+  // Persistent logs move with the table directory; only the append handle must be reopened.
+  static void renameTable(String oldName, String newName) {
+    ChangeLog log = logs.remove(oldName);
+    if (log == null) return;
+    synchronized (log.fileLock) { log.closeQuietly(); }
+    logs.put(newName, log);
+  }
+
+  // --------------------------- Reading ---------------------------
+
+  /**
+   * Up to 'limit' entries with seq > since, waiting up to waitMs for the first one. A request
+   * from another epoch, from beyond the head, or from before the oldest retained entry is a gap:
+   * the batch then starts at the oldest retained entry. Null if the table's changes are not logged.
+   */
+  static Batch read(String table, long epoch, long since, int limit, long waitMs) throws InterruptedException {
+    ChangeLog log = logs.get(table);
+    if (log == null) return null;
+    long deadline = System.currentTimeMillis() + waitMs;
+    synchronized (log) {
+      boolean gap = (epoch != log.epoch) || (since >= log.nextSeq) || (since + 1 < log.firstSeq);
+      long from = gap ? log.firstSeq : since + 1;
+      long remaining;
+      while (!gap && from >= log.nextSeq && (remaining = deadline - System.currentTimeMillis()) > 0
+             && logs.get(table) == log)
+        log.wait(remaining);
+
+      List<Entry> entries = new ArrayList<>();
+      for (long s = from; s < log.nextSeq && entries.size() < limit; s++)
+        entries.add(new Entry(s, log.deletes[log.slot(s)], log.rows[log.slot(s)]));
+      return new Batch(log.epoch, log.nextSeq - 1, gap, entries);
+    }
+  }
+}
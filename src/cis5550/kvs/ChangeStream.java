@@ -0,0 +1,200 @@
+package cis5550.kvs;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import cis5550.tools.HTTP;
+
+/**
+ * A subscription to the change logs of one table on every KVS worker, merged into a single
+ * stream. Each worker is long-polled by its own thread; changes to rows outside the key ranges
+ * a worker owns (i.e., replica writes) are dropped so that each change appears once.
+ *
+ * Changes are delivered at least once. offsets() describes the position after the last change
+ * handed out by next(); saving it after processing and passing it to KVSClient.subscribe()
+ * later resumes the stream there. A change with type GAP means a worker's log no longer holds
+ * everything after the saved position (or was recreated), so the consumer should rescan.
+ */
+public class ChangeStream implements Iterator<ChangeStream.Change>, Closeable {
+
+  public enum Type { PUT, DELETE, GAP }
+
+  public static class Change {
+    public final String workerID;
+    public final long seq;
+    public final Type type;
+    public final String row;     // null for GAP
+
+    Change(String workerID, long seq, Type type, String row) {
+      this.workerID = workerID;
+      this.seq = seq;
+      this.type = type;
+      this.row = row;
+    }
+
+    public String toString() {
+      return type+" "+((row == null) ? "" : row)+" ("+workerID+"#"+seq+")";
+    }
+  }
+
+  static final long POLL_WAIT_MS = 20000;
+  static final long POLL_TIMEOUT_MS = POLL_WAIT_MS+30000;   // for the whole long poll
+  static final long RETRY_MS = 1000;
+
+  final String tableName;
+  // {change, offset}, or {null, workerID, offset} to advance past filtered-out changes
+  final BlockingQueue<Object[]> queue = new LinkedBlockingQueue<Object[]>(50000);
+  final Map<String,String> offsets = new ConcurrentHashMap<String,String>();
+  final List<Thread> pollers = new ArrayList<Thread>();
+  volatile boolean closed;
+  Object[] pending;
+
+  // workers: {id, address}; owned: per worker id, the {startRow, endRowExclusive} ranges it owns
+  ChangeStream(String tableNameArg, List<String[]> workers, Map<String,List<String[]>> owned, Map<String,String> savedOffsets) {
+    tableName = tableNameArg;
+    if (savedOffsets != null)
+      offsets.putAll(savedOffsets);
+    for (String[] w : workers) {
+      final String id = w[0], address = w[1];
+      final List<String[]> ranges = owned.get(id);
+      Thread t = new Thread(() -> poll(id, address, ranges), "ChangeStream-"+tableName+"-"+id);
+      t.setDaemon(true);
+      pollers.add(t);
+    }
+    for (Thread t : pollers)
+      t.start();
+  }
+
+  static boolean inRanges(String row, List<String[]> ranges) {
+    for (String[] r : ranges)
+      if (((r[0] == null) || (row.compareTo(r[0]) >= 0)) && ((r[1] == null) || (row.compareTo(r[1]) < 0)))
+        return true;
+    return false;
+  }
+
+  // Offsets are "<epoch>:<seq>"; a worker without one starts at the oldest change it retains.
+  void poll(String id, String address, List<String[]> ranges) {
+    String saved = offsets.get(id);
+    long epoch = 0, since = 0;
+    boolean fresh = (saved == null);
+    if (!fresh) {
+      String[] p = saved.split(":");
+      epoch = Long.parseLong(p[0]);
+      since = Long.parseLong(p[1]);
+    }
+
+    while (!closed) {
+      try {
+        String url = "http://"+address+"/changes/"+URLEncoder.encode(tableName, "UTF-8")+"?since="+since+"&epoch="+epoch+"&wait="+POLL_WAIT_MS;
+        long newEpoch;
+        boolean gap;
+        List<String> lines = new ArrayList<String>();
+        try (HTTP.StreamingResponse r = HTTP.doStreamingRequest("GET", url, null, (int)POLL_TIMEOUT_MS, POLL_TIMEOUT_MS)) {
+          if (r.statusCode() != 200)
+            throw new IOException("HTTP "+r.statusCode()+": "+new String(r.body().readAllBytes(), "UTF-8").trim());
+          newEpoch = Long.parseLong(r.headers().get("x-log-epoch"));
+          gap = "true".equals(r.headers().get("x-gap"));
+          BufferedReader br = new BufferedReader(new InputStreamReader(r.body(), "UTF-8"));
+          String line;
+          while ((line = br.readLine()) != null)
+            if (!line.isEmpty())
+              lines.add(line);
+        }
+
+        if (gap && !fresh)
+          queue.put(new Object[] { new Change(id, since, Type.GAP, null), newEpoch+":0" });
+        fresh = false;
+        epoch = newEpoch;
+        if (gap)
+          since = 0;
+
+        for (String line : lines) {
+          String[] p = line.split(" ");
+          long seq = Long.parseLong(p[0]);
+          String row = URLDecoder.decode(p[2], "UTF-8");
+          since = seq;
+          if (inRanges(row, ranges))
+            queue.put(new Object[] { new Change(id, seq, p[1].equals("del") ? Type.DELETE : Type.PUT, row), epoch+":"+seq });
+        }
+        // Moves the position past trailing entries that were filtered out
+        if (!lines.isEmpty())
+          queue.put(new Object[] { null, id, epoch+":"+since });
+      } catch (InterruptedException ie) {
+        return;
+      } catch (Exception e) {
+        if (closed)
+          return;
+        System.err.println("ChangeStream: polling "+address+" for "+tableName+" failed: "+e.getMessage());
+        try { Thread.sleep(RETRY_MS); } catch (InterruptedException ie) { return; }
+      }
+    }
+  }
+
+  // Takes the next queue entry that carries a change, applying position-only markers on the way.
+  Object[] take(long timeoutMs) throws InterruptedException {
+    long deadline = System.currentTimeMillis()+timeoutMs;
+    while (true) {
+      long remaining = deadline-System.currentTimeMillis();
+      Object[] e = (timeoutMs < 0) ? queue.take() : queue.poll(Math.max(remaining, 0), TimeUnit.MILLISECONDS);
+      if ((e == null) || (e.length == 0))
+        return null;
+      if (e[0] != null)
+        return e;
+      offsets.put((String)e[1], (String)e[2]);
+    }
+  }
+
+  void deliver(Object[] e) {
+    Change c = (Change)e[0];
+    offsets.put(c.workerID, (String)e[1]);
+  }
+
+  // The stream never ends on its own; hasNext() blocks until a change arrives or it is closed.
+  public synchronized boolean hasNext() {
+    if (pending != null)
+      return true;
+    if (closed)
+      return false;
+    try {
+      pending = take(-1);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    return (pending != null);
+  }
+
+  public synchronized Change next() {
+    if (!hasNext())
+      throw new NoSuchElementException();
+    Object[] e = pending;
+    pending = null;
+    deliver(e);
+    return (Change)e[0];
+  }
+
+  // Next change, or null if none arrives within timeoutMs.
+  public synchronized Change poll(long timeoutMs) throws InterruptedException {
+    Object[] e = pending;
+    pending = null;
+    if (e == null)
+      e = take(Math.max(timeoutMs, 0));
+    if (e == null)
+      return null;
+    deliver(e);
+    return (Change)e[0];
+  }
+
+  // Per-worker positions ("<epoch>:<seq>", keyed by worker ID) after the last change returned.
+  public Map<String,String> offsets() {
+    return new TreeMap<String,String>(offsets);
+  }
+
+  public void close() {
+    closed = true;
+    for (Thread t : pollers)
+      t.interrupt();
+    queue.offer(new Object[0]);  // wakes up a blocked hasNext()
+  }
+}
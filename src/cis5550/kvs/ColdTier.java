@@ -0,0 +1,532 @@
+package cis5550.kvs;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import cis5550.tools.KeyEncoder;
+import cis5550.tools.Metrics;
+
+/**
+ * Cold tier for persistent tables: rows that have been neither read nor written for a table's
+ * configured number of days are moved out of their row files into compressed archive segments
+ * under <table>/.cold/.
+ *
+ * A segment (seg-<n>.dat) is a sequence of deflated blocks of about BLOCK_BYTES of rows in key
+ * order; its sparse index (seg-<n>.idx) holds the first key and file position of each block.
+ * The catalog (.cold/catalog) maps every cold row to its segment. Cold rows stay in the
+ * manifest, so counts and scans include them.
+ *
+ * A row file always wins over the cold copy: readers try the file first and fall back to the
+ * tier, writers simply write a new file (which retires the cold copy), and the migrator marks a
+ * row cold before it deletes the file. Point reads promote a cold row back into a row file;
+ * scans and replica maintenance read it in place. Segments are dropped once none of their rows
+ * are cold any more; partly dead segments are not compacted.
+ */
+final class ColdTier {
+
+  static final String DIR = ".cold";
+  static final String CONFIG_FILE = ".coldtier";
+  private static final String CATALOG = "catalog";
+  private static final String VERSION = "v1";
+  static final int BLOCK_BYTES = 1 << 20;
+  private static final int BLOCK_CACHE_SIZE = 16;
+  private static final long DAY_MS = 24 * 60 * 60_000L;
+  static final long MIGRATE_INTERVAL_MS = 60 * 60_000L;
+  private static final long CHECKPOINT_INTERVAL_MS = 30_000;
+
+  /** Where a row's file lives; supplied by the worker. */
+  interface Store {
+    Path rowPath(String table, String row);
+  }
+
+  private static final class Segment {
+    final int id;
+    final NavigableMap<String, long[]> blocks;   // first key -> {offset, compressed length}
+    final long bytes;
+    final AtomicInteger live = new AtomicInteger();   // cold rows that point here
+
+    Segment(int id, NavigableMap<String, long[]> blocks, long bytes) {
+      this.id = id; this.blocks = blocks; this.bytes = bytes;
+    }
+  }
+
+  private static final class Cold {
+    final int segment;
+    final long size;
+    Cold(int segment, long size) { this.segment = segment; this.size = size; }
+  }
+
+  private static final class TableState {
+    volatile double idleDays;
+    final Map<String, Cold> rows = new ConcurrentHashMap<>();
+    final Map<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    int nextSegment = 1;
+    volatile boolean dirty;
+  }
+
+  private static String rootDir;
+  private static Store store;
+  private static final Map<String, TableState> tables = new ConcurrentHashMap<>();
+  // row key -> day of the last recorded access, so a row's atime is set at most once a day
+  private static final Map<String, Long> touched = new ConcurrentHashMap<>();
+  private static final LinkedHashMap<String, Map<String, byte[]>> blockCache = new LinkedHashMap<>(32, 0.75f, true);
+
+  private ColdTier() {}
+
+  private static Path dir(String table) {
+    return Paths.get(rootDir, table, DIR);
+  }
+
+  private static Path segmentFile(String table, int id, String ext) {
+    return dir(table).resolve("seg-" + id + ext);
+  }
+
+  // ------------------------- Setup -------------------------
+
+  /** Loads settings, catalogs and segment indexes; cold rows missing from the manifest are re-added. */
+  static void init(String root, Store s, Collection<String> persistentTables) {
+    rootDir = root;
+    store = s;
+    for (String table : persistentTables) {
+      Path cfg = Paths.get(rootDir, table, CONFIG_FILE);
+      boolean hasDir = Files.isDirectory(dir(table));
+      if (!Files.exists(cfg) && !hasDir) continue;
+      TableState ts = new TableState();
+      try {
+        if (Files.exists(cfg)) ts.idleDays = Double.parseDouble(Files.readString(cfg, StandardCharsets.UTF_8).trim());
+        if (hasDir) load(table, ts);
+      } catch (Exception e) {
+        System.err.println("Cannot load cold tier of " + table + ": " + e.getMessage());
+        continue;
+      }
+      tables.put(table, ts);
+      Manifest.Table m = Manifest.of(table);
+      for (Map.Entry<String, Cold> e : ts.rows.entrySet())
+        if (!m.rows.containsKey(e.getKey())) m.put(e.getKey(), e.getValue().size);
+    }
+    updateGauges();
+  }
+
+  private static void load(String table, TableState ts) throws IOException {
+    try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir(table), "seg-*.idx")) {
+      for (Path idx : ds) {
+        String name = idx.getFileName().toString();
+        int id = Integer.parseInt(name.substring(4, name.length() - 4));
+        Path dat = segmentFile(table, id, ".dat");
+        if (!Files.exists(dat)) continue;
+        NavigableMap<String, long[]> blocks = new TreeMap<>();
+        try (BufferedReader br = Files.newBufferedReader(idx, StandardCharsets.UTF_8)) {
+          String line = br.readLine();
+          if (line == null || !line.startsWith(VERSION + " ")) continue;
+          while ((line = br.readLine()) != null) {
+            String[] p = line.split(" ");
+            blocks.put(KeyEncoder.decode(p[2]), new long[] { Long.parseLong(p[0]), Long.parseLong(p[1]) });
+          }
+        }
+        ts.segments.put(id, new Segment(id, blocks, Files.size(dat)));
+        ts.nextSegment = Math.max(ts.nextSegment, id + 1);
+      }
+    }
+
+    Path cat = dir(table).resolve(CATALOG);
+    if (!Files.exists(cat)) return;
+    try (BufferedReader br = Files.newBufferedReader(cat, StandardCharsets.UTF_8)) {
+      String[] hdr = br.readLine().split(" ");
+      if (hdr.length != 3 || !hdr[0].equals(VERSION)) throw new IOException("bad catalog header");
+      ts.nextSegment = Math.max(ts.nextSegment, Integer.parseInt(hdr[1]));
+      String line;
+      while ((line = br.readLine()) != null) {
+        String[] p = line.split(" ");
+        Segment seg = ts.segments.get(Integer.parseInt(p[0]));
+        if (seg == null) continue;
+        ts.rows.put(KeyEncoder.decode(p[2]), new Cold(seg.id, Long.parseLong(p[1])));
+        seg.live.incrementAndGet();
+      }
+      if (ts.rows.size() != Long.parseLong(hdr[2]))
+        System.err.println("Cold tier catalog of " + table + " is incomplete; rows lost from it stay in their segments");
+    }
+  }
+
+  /** Turns the cold tier on for rows idle for idleDays (> 0), or stops migrating (<= 0). */
+  static synchronized void configure(String table, double idleDays) throws IOException {
+    Path cfg = Paths.get(rootDir, table, CONFIG_FILE);
+    TableState ts = tables.computeIfAbsent(table, t -> new TableState());
+    ts.idleDays = Math.max(idleDays, 0);
+    if (idleDays > 0) {
+      Files.createDirectories(cfg.getParent());
+      Files.writeString(cfg, idleDays + "\n", StandardCharsets.UTF_8);
+    } else {
+      // Rows already archived stay readable (and are promoted as they are read)
+      Files.deleteIfExists(cfg);
+    }
+  }
+
+  /** "<idleDays> <coldRows> <segments> <segmentBytes>", or null if the table has no cold tier. */
+  static String describe(String table) {
+    TableState ts = tables.get(table);
+    if (ts == null) return null;
+    long bytes = 0;
+    for (Segment s : ts.segments.values()) bytes += s.bytes;
+    return ts.idleDays + " " + ts.rows.size() + " " + ts.segments.size() + " " + bytes;
+  }
+
+  // ------------------------- Reads -------------------------
+
+  static boolean isCold(String table, String row) {
+    TableState ts = tables.get(table);
+    return ts != null && ts.rows.containsKey(row);
+  }
+
+  /** The row file bytes of a cold row, or null if the row is not in the cold tier. */
+  static byte[] read(String table, String row) {
+    TableState ts = tables.get(table);
+    Cold c = (ts == null) ? null : ts.rows.get(row);
+    Segment s = (c == null) ? null : ts.segments.get(c.segment);
+    if (s == null) return null;
+    Map.Entry<String, long[]> b = s.blocks.floorEntry(row);
+    if (b == null) return null;
+    try {
+      byte[] bytes = block(table, s, b.getValue()).get(row);
+      Metrics.inc("kvs.cold.reads");
+      return bytes;
+    } catch (IOException e) {
+      System.err.println("Cannot read cold row " + table + "/" + row + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  private static Map<String, byte[]> block(String table, Segment s, long[] at) throws IOException {
+    String key = table + "\u0000" + s.id + "\u0000" + at[0];
+    synchronized (blockCache) {
+      Map<String, byte[]> b = blockCache.get(key);
+      if (b != null) { Metrics.inc("kvs.cold.blockCacheHits"); return b; }
+    }
+    Metrics.inc("kvs.cold.blockCacheMisses");
+    ByteBuffer buf = ByteBuffer.allocate((int) at[1]);
+    Path file = segmentFile(table, s.id, ".dat");
+    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+      while (buf.hasRemaining())
+        if (ch.read(buf, at[0] + buf.position()) < 0) throw new EOFException("truncated segment " + file);
+    }
+    Map<String, byte[]> rows = new HashMap<>();
+    try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(buf.array())))) {
+      int n = in.readInt();
+      for (int i = 0; i < n; i++) {
+        String row = in.readUTF();
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        rows.put(row, data);
+      }
+    }
+    synchronized (blockCache) {
+      blockCache.put(key, rows);
+      if (blockCache.size() > BLOCK_CACHE_SIZE) {
+        Iterator<String> it = blockCache.keySet().iterator();
+        it.next();
+        it.remove();
+      }
+    }
+    return rows;
+  }
+
+  /** Records a point access to a hot row (as the file's atime, at most once a day per row). */
+  static void touch(String table, String row) {
+    TableState ts = tables.get(table);
+    if (ts == null || ts.idleDays <= 0) return;
+    long now = System.currentTimeMillis();
+    Long prev = touched.put(table + "\u0000" + row, now / DAY_MS);
+    if (prev != null && prev == now / DAY_MS) return;
+    try {
+      Files.setAttribute(store.rowPath(table, row), "lastAccessTime", FileTime.fromMillis(now));
+    } catch (IOException ignored) {
+      // cold or gone; nothing to record
+    }
+  }
+
+  /**
+   * Moves a cold row back into its row file (unless a writer created one first). Returns false
+   * if the row was not cold.
+   */
+  static boolean promote(String table, String row) throws IOException {
+    byte[] bytes = read(table, row);
+    if (bytes == null) return false;
+    Path p = store.rowPath(table, row);
+    Files.createDirectories(p.getParent());
+    Path tmp = p.resolveSibling("." + p.getFileName() + "." + Thread.currentThread().getId() + ".promote");
+    Files.write(tmp, bytes);
+    try {
+      Files.createLink(p, tmp);
+      Metrics.inc("kvs.cold.promotions");
+    } catch (FileAlreadyExistsException e) {
+      // a newer version was written meanwhile
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+    retire(table, row);
+    return true;
+  }
+
+  /** Called after a row file has been written: its cold copy, if any, is now stale. */
+  static void onWrite(String table, String row) {
+    retire(table, row);
+  }
+
+  private static void retire(String table, String row) {
+    TableState ts = tables.get(table);
+    Cold c = (ts == null) ? null : ts.rows.remove(row);
+    if (c == null) return;
+    Segment s = ts.segments.get(c.segment);
+    if (s != null) s.live.decrementAndGet();
+    ts.dirty = true;
+  }
+
+  // ------------------------- Migration -------------------------
+
+  /** Archives the table's idle rows into a new segment; returns the number of rows moved. */
+  static int migrate(String table) throws IOException {
+    TableState ts = tables.get(table);
+    if (ts == null || ts.idleDays <= 0) return 0;
+    synchronized (ts) {
+      WriteBehind.flush(table);
+      long cutoff = System.currentTimeMillis() - (long) (ts.idleDays * DAY_MS);
+
+      // Candidates in key order, with the file times they were read at
+      List<String> keys = new ArrayList<>();
+      List<long[]> seen = new ArrayList<>();
+      for (String row : Manifest.of(table).rows.keySet()) {
+        try {
+          BasicFileAttributes a = Files.readAttributes(store.rowPath(table, row), BasicFileAttributes.class);
+          long last = Math.max(a.lastAccessTime().toMillis(), a.lastModifiedTime().toMillis());
+          if (last < cutoff && row.length() < 16_000) {
+            keys.add(row);
+            seen.add(new long[] { a.lastModifiedTime().toMillis(), a.size() });
+          }
+        } catch (NoSuchFileException e) {
+          // already cold
+        }
+      }
+      if (keys.isEmpty()) return 0;
+
+      int id = ts.nextSegment++;
+      Segment seg = writeSegment(table, id, keys);
+      ts.segments.put(id, seg);
+
+      // Swap: rows whose files are unchanged become cold; the catalog is on disk before any
+      // file is removed. Writers are held off meanwhile, so none can slip in between.
+      int moved = 0;
+      long bytes = 0;
+      List<String> gone = new ArrayList<>();
+      Lock l = Snapshots.tableLock(table);
+      l.lock();
+      try {
+        for (int i = 0; i < keys.size(); i++) {
+          String row = keys.get(i);
+          try {
+            BasicFileAttributes a = Files.readAttributes(store.rowPath(table, row), BasicFileAttributes.class);
+            if (a.lastModifiedTime().toMillis() != seen.get(i)[0] || a.size() != seen.get(i)[1]) continue;
+          } catch (NoSuchFileException e) {
+            continue;
+          }
+          Cold old = ts.rows.put(row, new Cold(id, seen.get(i)[1]));
+          if (old != null && ts.segments.get(old.segment) != null) ts.segments.get(old.segment).live.decrementAndGet();
+          seg.live.incrementAndGet();
+          gone.add(row);
+          bytes += seen.get(i)[1];
+        }
+        checkpoint(table, ts);
+        for (String row : gone) {
+          Path p = store.rowPath(table, row);
+          Snapshots.beforeReplace(table, row, p);
+          Files.deleteIfExists(p);
+          moved++;
+        }
+      } finally {
+        l.unlock();
+      }
+      Metrics.add("kvs.cold.migratedRows", moved);
+      Metrics.add("kvs.cold.migratedBytes", bytes);
+      Metrics.add("kvs.cold.segmentBytes", seg.bytes);
+      System.out.println("Cold tier: moved " + moved + " rows (" + bytes / 1024 + " KB) of " + table
+          + " into segment " + id + " (" + seg.bytes / 1024 + " KB)");
+      updateGauges();
+      return moved;
+    }
+  }
+
+  private static Segment writeSegment(String table, int id, List<String> keys) throws IOException {
+    Path d = dir(table);
+    Files.createDirectories(d);
+    Path dat = segmentFile(table, id, ".dat");
+    NavigableMap<String, long[]> blocks = new TreeMap<>();
+    try (FileChannel out = FileChannel.open(dat, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      List<String> blockKeys = new ArrayList<>();
+      List<byte[]> blockRows = new ArrayList<>();
+      long raw = 0;
+      for (String row : keys) {
+        byte[] data;
+        try {
+          data = Files.readAllBytes(store.rowPath(table, row));
+        } catch (NoSuchFileException e) {
+          continue;
+        }
+        blockKeys.add(row);
+        blockRows.add(data);
+        raw += data.length;
+        if (raw >= BLOCK_BYTES) {
+          writeBlock(out, blockKeys, blockRows, blocks);
+          blockKeys.clear();
+          blockRows.clear();
+          raw = 0;
+        }
+      }
+      if (!blockKeys.isEmpty()) writeBlock(out, blockKeys, blockRows, blocks);
+      out.force(true);
+    }
+
+    Path idx = segmentFile(table, id, ".idx");
+    Path tmp = segmentFile(table, id, ".idx.tmp");
+    try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+      w.write(VERSION + " " + blocks.size() + "\n");
+      for (Map.Entry<String, long[]> e : blocks.entrySet())
+        w.write(e.getValue()[0] + " " + e.getValue()[1] + " " + KeyEncoder.encode(e.getKey()) + "\n");
+    }
+    Files.move(tmp, idx, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return new Segment(id, blocks, Files.size(dat));
+  }
+
+  private static void writeBlock(FileChannel out, List<String> keys, List<byte[]> rows,
+                                 NavigableMap<String, long[]> blocks) throws IOException {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    Deflater def = new Deflater(Deflater.BEST_COMPRESSION);
+    try (DataOutputStream o = new DataOutputStream(new DeflaterOutputStream(buf, def))) {
+      o.writeInt(keys.size());
+      for (int i = 0; i < keys.size(); i++) {
+        o.writeUTF(keys.get(i));
+        o.writeInt(rows.get(i).length);
+        o.write(rows.get(i));
+      }
+    } finally {
+      def.end();
+    }
+    long offset = out.position();
+    ByteBuffer bb = ByteBuffer.wrap(buf.toByteArray());
+    while (bb.hasRemaining()) out.write(bb);
+    blocks.put(keys.get(0), new long[] { offset, buf.size() });
+  }
+
+  // ------------------------- Bookkeeping -------------------------
+
+  private static void checkpoint(String table, TableState ts) throws IOException {
+    Path d = dir(table);
+    if (!Files.isDirectory(d)) return;
+    ts.dirty = false;
+    List<String> lines = new ArrayList<>();
+    for (Map.Entry<String, Cold> e : ts.rows.entrySet())
+      lines.add(e.getValue().segment + " " + e.getValue().size + " " + KeyEncoder.encode(e.getKey()) + "\n");
+    Path tmp = d.resolve(CATALOG + ".tmp");
+    try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+      w.write(VERSION + " " + ts.nextSegment + " " + lines.size() + "\n");
+      for (String line : lines) w.write(line);
+    }
+    try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+      ch.force(true);
+    }
+    Files.move(tmp, d.resolve(CATALOG), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  // Writes dirty catalogs and deletes segments without any cold rows left.
+  private static void maintain() {
+    for (Map.Entry<String, TableState> e : tables.entrySet()) {
+      String table = e.getKey();
+      TableState ts = e.getValue();
+      synchronized (ts) {
+        try {
+          if (ts.dirty) checkpoint(table, ts);
+          for (Segment s : new ArrayList<>(ts.segments.values())) {
+            if (s.live.get() > 0) continue;
+            ts.segments.remove(s.id);
+            Files.deleteIfExists(segmentFile(table, s.id, ".dat"));
+            Files.deleteIfExists(segmentFile(table, s.id, ".idx"));
+            synchronized (blockCache) {
+              blockCache.keySet().removeIf(k -> k.startsWith(table + "\u0000" + s.id + "\u0000"));
+            }
+            Metrics.inc("kvs.cold.droppedSegments");
+          }
+        } catch (IOException ioe) {
+          System.err.println("Cold tier maintenance of " + table + " failed: " + ioe.getMessage());
+        }
+      }
+    }
+    updateGauges();
+  }
+
+  private static void updateGauges() {
+    long rows = 0, bytes = 0;
+    for (TableState ts : tables.values()) {
+      rows += ts.rows.size();
+      for (Segment s : ts.segments.values()) bytes += s.bytes;
+    }
+    Metrics.set("kvs.cold.rows", rows);
+    Metrics.set("kvs.cold.bytesOnDisk", bytes);
+  }
+
+  // The files go away (or move) with the table directory.
+  static void dropTable(String table) {
+    TableState ts = tables.remove(table);
+    if (ts == null) return;
+    synchronized (blockCache) {
+      blockCache.keySet().removeIf(k -> k.startsWith(table + "\u0000"));
+    }
+    touched.keySet().removeIf(k -> k.startsWith(table + "\u0000"));
+  }
+
+  static void renameTable(String oldName, String newName) {
+    TableState ts = tables.remove(oldName);
+    if (ts == null) return;
+    tables.put(newName, ts);
+    synchronized (blockCache) {
+      blockCache.keySet().removeIf(k -> k.startsWith(oldName + "\u0000"));
+    }
+  }
+
+  static void startMigrator() {
+    Thread t = new Thread(() -> {
+      long nextMigration = System.currentTimeMillis() + CHECKPOINT_INTERVAL_MS;
+      long day = System.currentTimeMillis() / DAY_MS;
+      while (true) {
+        try { Thread.sleep(CHECKPOINT_INTERVAL_MS); } catch (InterruptedException ie) { return; }
+        if (System.currentTimeMillis() / DAY_MS != day) {
+          day = System.currentTimeMillis() / DAY_MS;
+          touched.clear();
+        }
+        if (System.currentTimeMillis() >= nextMigration) {
+          for (String table : tables.keySet()) {
+            try {
+              migrate(table);
+            } catch (Exception e) {
+              System.err.println("Cold tier migration of " + table + " failed: " + e.getMessage());
+            }
+          }
+          nextMigration = System.currentTimeMillis() + MIGRATE_INTERVAL_MS;
+        }
+        maintain();
+      }
+    }, "ColdTierMigrator");
+    t.setDaemon(true);
+    t.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(ColdTier::maintain, "ColdTierShutdown"));
+  }
+}
@@ -4,10 +4,40 @@ import static cis5550.webserver.Server.*;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
-/** Minimal coordinator: workers PUT /register/:id (body=host:port); GET /workers list */
+/**
+ * Minimal coordinator: workers PUT /register/:id (body=host:port) at startup and then every few
+ * seconds as a heartbeat; GET /workers lists them. A worker that has not registered for EXPIRE_MS
+ * stays in the list, so that no key range moves to a worker that does not have its data, but is
+ * marked suspect (header X-Suspect-Workers of /workers, a comma-separated list of IDs) until it
+ * registers again; clients then read its rows from replicas. Only PUT /unregister/:id removes a
+ * worker. The routing version (header X-Routing-Version of /workers) changes whenever a worker
+ * joins, is removed or moves to a new address.
+ */
 public class Coordinator {
-  private static final Map<String,String> workers = new ConcurrentHashMap<>();
+  static final long EXPIRE_MS = 15_000;   // three missed heartbeats
+
+  private static final class WorkerInfo {
+    final String address;
+    volatile long lastSeen = System.currentTimeMillis();
+    volatile boolean suspect;
+    WorkerInfo(String address) { this.address = address; }
+  }
+
+  private static final Map<String,WorkerInfo> workers = new ConcurrentHashMap<>();
+  private static final AtomicLong version = new AtomicLong();
+
+  private static void markSuspects() {
+    long now = System.currentTimeMillis();
+    for (Map.Entry<String,WorkerInfo> e : workers.entrySet()) {
+      WorkerInfo w = e.getValue();
+      if (!w.suspect && now - w.lastSeen > EXPIRE_MS) {
+        w.suspect = true;
+        System.out.println("Worker " + e.getKey() + " at " + w.address + " missed its heartbeats; marked suspect");
+      }
+    }
+  }
 
   public static void main(String[] args) {
     if (args.length != 1) {
@@ -17,7 +47,7 @@ public class Coordinator {
     int portNum = Integer.parseInt(args[0]);
     port(portNum);
 
-    // Worker registration
+    // Worker registration and heartbeat
     put("/register/:id", (req, res) -> {
       String id = req.params("id");
       String addr = req.body().trim(); // e.g., localhost:8001
@@ -25,22 +55,54 @@ public class Coordinator {
         res.status(400, "Bad Request");
         return "Missing id or address";
       }
-      workers.put(id, addr);
+      workers.compute(id, (k, old) -> {
+        if (old != null && old.address.equals(addr)) {
+          old.lastSeen = System.currentTimeMillis();
+          if (old.suspect) {
+            old.suspect = false;
+            System.out.println("Worker " + id + " at " + addr + " is back");
+          }
+          return old;
+        }
+        System.out.println("Worker " + id + " registered at " + addr + ((old == null) ? "" : " (was " + old.address + ")"));
+        version.incrementAndGet();
+        return new WorkerInfo(addr);
+      });
+      return "OK";
+    });
+
+    // Removes a worker for good (e.g., one that was decommissioned); its key range moves to its neighbor
+    put("/unregister/:id", (req, res) -> {
+      WorkerInfo w = workers.remove(req.params("id"));
+      if (w == null) {
+        res.status(404, "Not Found");
+        return "No such worker";
+      }
+      System.out.println("Worker " + req.params("id") + " at " + w.address + " removed");
+      version.incrementAndGet();
       return "OK";
     });
 
     // List workers (format expected by KVSClient)
     get("/workers", (req, res) -> {
+      markSuspects();
+      long v = version.get();     // read first: a change racing with this listing is seen by the next one
       List<String> ids = new ArrayList<>(workers.keySet());
       Collections.sort(ids);
       StringBuilder sb = new StringBuilder();
-      sb.append(ids.size()).append('\n');
+      StringJoiner suspects = new StringJoiner(",");
+      int n = 0;
       for (String id : ids) {
-        sb.append(id).append(',').append(workers.get(id)).append('\n');
+        WorkerInfo w = workers.get(id);
+        if (w == null) continue;    // removed meanwhile
+        sb.append(id).append(',').append(w.address).append('\n');
+        if (w.suspect) suspects.add(id);
+        n++;
       }
       res.type("text/plain");
-      return sb.toString();
+      res.header("X-Routing-Version", Long.toString(v));
+      res.header("X-Suspect-Workers", suspects.toString());
+      return n + "\n" + sb;
     });
   }
 }
-
@@ -0,0 +1,108 @@
+package cis5550.kvs;
+
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runs serialized row functions (e.g. Flame's RowToString lambdas) next to the data.
+ *
+ * Job JARs are uploaded once under a content-derived name and kept in <rootDir>/.jars. A
+ * function arrives as a Java-serialized object and is deserialized with a class loader over
+ * its JAR (parent-first, so cis5550.kvs.Row is shared with the worker). The function is invoked
+ * reflectively through its single-argument "op(Row)" method, which keeps the KVS independent
+ * of the Flame interfaces.
+ */
+final class Coprocessor {
+
+  static final String JAR_DIR = ".jars";
+
+  private static String rootDir;
+  private static final Map<String, URLClassLoader> loaders = new ConcurrentHashMap<>();
+
+  private Coprocessor() {}
+
+  static void init(String root) {
+    rootDir = root;
+  }
+
+  private static Path jarPath(String name) {
+    return Paths.get(rootDir, JAR_DIR, name + ".jar");
+  }
+
+  static boolean validName(String name) {
+    return name != null && name.matches("[A-Za-z0-9_-]{1,64}");
+  }
+
+  static boolean hasJar(String name) {
+    return Files.exists(jarPath(name));
+  }
+
+  static void storeJar(String name, byte[] jar) throws IOException {
+    Path p = jarPath(name);
+    Files.createDirectories(p.getParent());
+    Path tmp = p.resolveSibling(name + ".tmp");
+    Files.write(tmp, jar);
+    Files.move(tmp, p, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    URLClassLoader old = loaders.remove(name);
+    if (old != null) try { old.close(); } catch (IOException ignored) {}
+  }
+
+  private static ClassLoader loaderFor(String name) throws IOException {
+    if (!hasJar(name)) throw new FileNotFoundException("Unknown JAR: " + name);
+    return loaders.computeIfAbsent(name, n -> {
+      try {
+        return new URLClassLoader(new URL[] { jarPath(n).toUri().toURL() }, Coprocessor.class.getClassLoader());
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
+  }
+
+  /** A deserialized function together with its op(Row) method. */
+  static final class Function {
+    private final Object target;
+    private final Method op;
+
+    private Function(Object target, Method op) { this.target = target; this.op = op; }
+
+    /** Applies the function; exceptions thrown by the function itself are rethrown unwrapped. */
+    Object apply(Row r) throws Exception {
+      try {
+        return op.invoke(target, r);
+      } catch (InvocationTargetException ite) {
+        Throwable c = ite.getCause();
+        if (c instanceof Exception) throw (Exception) c;
+        throw ite;
+      }
+    }
+  }
+
+  static Function load(String jarName, byte[] serialized) throws Exception {
+    ClassLoader cl = loaderFor(jarName);
+    Object target;
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized)) {
+      @Override
+      protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+        return Class.forName(desc.getName(), false, cl);
+      }
+    }) {
+      target = in.readObject();
+    }
+
+    // Lambdas are hidden classes, so look the method up on the functional interface.
+    for (Class<?> c = target.getClass(); c != null; c = c.getSuperclass()) {
+      for (Class<?> i : c.getInterfaces()) {
+        try {
+          return new Function(target, i.getMethod("op", Row.class));
+        } catch (NoSuchMethodException ignored) {}
+      }
+    }
+    throw new NoSuchMethodException(target.getClass().getName() + " has no op(Row) method");
+  }
+}
@@ -0,0 +1,180 @@
+package cis5550.kvs;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * TTL bookkeeping for the in-memory (non pt-) tables of a KVS worker.
+ *
+ * A table TTL is a default lifetime that every write to the table renews; a row TTL
+ * is set explicitly for one row and holds until it fires or a later write renews the
+ * row from the table default.
+ * Deadlines live in a per-table map (checked lazily on reads) and in a queue ordered
+ * by deadline, so the sweeper only ever looks at rows that are actually due.
+ * The queue holds at most one entry per row, no later than the row's deadline, and the
+ * time of that entry is kept alongside, so an earlier deadline replaces it in place. A
+ * later (renewed) deadline is not re-queued until the old entry surfaces, at which point
+ * the entry is pushed back with the new time; a dropped deadline leaves its entry to
+ * surface and be discarded.
+ * Clearing the table TTL drops the deadlines that came from it, but not explicit row TTLs.
+ */
+final class Expiry {
+
+  static final class Due implements Comparable<Due> {
+    final long at;
+    final String table, row;
+    Due(long at, String table, String row) { this.at = at; this.table = table; this.row = row; }
+    public int compareTo(Due o) {
+      int c = Long.compare(at, o.at);
+      if (c == 0) c = table.compareTo(o.table);
+      return (c != 0) ? c : row.compareTo(o.row);
+    }
+  }
+
+  private static final Map<String, Long> tableTtl = new ConcurrentHashMap<>();
+  private static final Map<String, Map<String, Long>> deadlines = new ConcurrentHashMap<>();
+  // Rows whose deadline was set with setRowTtl and not renewed from the table TTL since
+  private static final Map<String, Set<String>> explicit = new ConcurrentHashMap<>();
+  private static final TreeSet<Due> queue = new TreeSet<>();
+  // Time of each row's entry in the queue; guarded by the queue
+  private static final Map<String, Map<String, Long>> queued = new HashMap<>();
+
+  private Expiry() {}
+
+  /** Sets (ttlMs > 0) or clears (ttlMs <= 0) the default TTL of a table. */
+  static void setTableTtl(String table, long ttlMs, Collection<String> existingRows) {
+    if (ttlMs <= 0) {
+      tableTtl.remove(table);
+      Map<String, Long> d = deadlines.get(table);
+      if (d == null) return;
+      // Their queue entries are discarded when they surface
+      Set<String> keep = explicit.getOrDefault(table, Collections.emptySet());
+      d.keySet().removeIf(row -> !keep.contains(row));
+      return;
+    }
+    tableTtl.put(table, ttlMs);
+    explicit.remove(table);
+    long at = System.currentTimeMillis() + ttlMs;
+    for (String row : existingRows) schedule(table, row, at);
+  }
+
+  static long tableTtl(String table) {
+    Long v = tableTtl.get(table);
+    return (v == null) ? 0 : v;
+  }
+
+  /** Called after every write; renews the deadline from the table TTL, if there is one. */
+  static void onWrite(String table, String row) {
+    long ttl = tableTtl(table);
+    if (ttl <= 0) return;
+    unmarkExplicit(table, row);
+    schedule(table, row, System.currentTimeMillis() + ttl);
+  }
+
+  /** Gives one row an explicit lifetime (ttlMs <= 0 removes any deadline). */
+  static void setRowTtl(String table, String row, long ttlMs) {
+    if (ttlMs <= 0) {
+      forget(table, row);
+      return;
+    }
+    explicit.computeIfAbsent(table, t -> ConcurrentHashMap.newKeySet()).add(row);
+    schedule(table, row, System.currentTimeMillis() + ttlMs);
+  }
+
+  private static void unmarkExplicit(String table, String row) {
+    Set<String> e = explicit.get(table);
+    if (e != null) e.remove(row);
+  }
+
+  private static void schedule(String table, String row, long at) {
+    Map<String, Long> d = deadlines.computeIfAbsent(table, t -> new ConcurrentHashMap<>());
+    synchronized (queue) {
+      d.put(row, at);
+      enqueue(table, row, at);
+    }
+  }
+
+  // An existing entry that fires no later than 'at' stays, and will re-queue itself; called with the queue lock held.
+  private static void enqueue(String table, String row, long at) {
+    Map<String, Long> q = queued.computeIfAbsent(table, t -> new HashMap<>());
+    Long old = q.get(row);
+    if (old != null && old <= at) return;
+    if (old != null) queue.remove(new Due(old, table, row));
+    queue.add(new Due(at, table, row));
+    q.put(row, at);
+  }
+
+  /** Atomically drops the deadline of an expired row; true means the caller must reclaim the row. */
+  static boolean claim(String table, String row, long now) {
+    Map<String, Long> d = deadlines.get(table);
+    if (d == null) return false;
+    boolean[] claimed = { false };
+    d.computeIfPresent(row, (r, at) -> {
+      if (at > now) return at;
+      claimed[0] = true;
+      return null;
+    });
+    if (claimed[0]) unmarkExplicit(table, row);
+    return claimed[0];
+  }
+
+  /** Pops every row whose deadline has passed; entries of forgotten or renewed rows are dropped or re-queued. */
+  static List<Due> pollDue(long now) {
+    List<Due> out = new ArrayList<>();
+    synchronized (queue) {
+      while (!queue.isEmpty() && queue.first().at <= now) {
+        Due e = queue.pollFirst();
+        Map<String, Long> q = queued.get(e.table);
+        if (q != null && q.remove(e.row) != null && q.isEmpty()) queued.remove(e.table);
+        Map<String, Long> d = deadlines.get(e.table);
+        Long at = (d == null) ? null : d.get(e.row);
+        if (at == null) continue;  // forgotten
+        if (at > now) { enqueue(e.table, e.row, at); continue; }
+        out.add(e);
+      }
+    }
+    return out;
+  }
+
+  static void forget(String table, String row) {
+    Map<String, Long> d = deadlines.get(table);
+    if (d != null) d.remove(row);
+    unmarkExplicit(table, row);
+  }
+
+  static void dropTable(String table) {
+    tableTtl.remove(table);
+    explicit.remove(table);
+    synchronized (queue) {
+      deadlines.remove(table);
+      dequeueAll(table);
+    }
+  }
+
+  // Removes the table's entries from the queue; called with the queue lock held.
+  private static Map<String, Long> dequeueAll(String table) {
+    Map<String, Long> q = queued.remove(table);
+    if (q != null)
+      for (Map.Entry<String, Long> e : q.entrySet()) queue.remove(new Due(e.getValue(), table, e.getKey()));
+    return q;
+  }
+
+  static void renameTable(String oldName, String newName) {
+    Long ttl = tableTtl.remove(oldName);
+    if (ttl != null) tableTtl.put(newName, ttl);
+    Set<String> rows = explicit.remove(oldName);
+    if (rows != null) explicit.put(newName, rows);
+    synchronized (queue) {
+      Map<String, Long> d = deadlines.remove(oldName);
+      Map<String, Long> q = dequeueAll(oldName);
+      if (d == null) return;
+      deadlines.put(newName, d);
+      if (q == null) return;
+      for (Map.Entry<String, Long> e : q.entrySet()) enqueue(newName, e.getKey(), e.getValue());
+    }
+  }
+
+  static int pending() {
+    synchronized (queue) { return queue.size(); }
+  }
+}
@@ -3,7 +3,10 @@ package cis5550.kvs;
 import java.util.*;
 import java.net.*;
 import java.io.*;
+import java.util.concurrent.*;
 import cis5550.tools.HTTP;
+import cis5550.tools.Metrics;
+import cis5550.tools.SingleFlight;
 
 public class KVSClient implements KVS {
 
@@ -12,6 +15,7 @@ public class KVSClient implements KVS {
   static class WorkerEntry implements Comparable<WorkerEntry> {
     String address;
     String id;
+    boolean suspect;      // missed its heartbeats (see Coordinator); still owns its key range
 
     WorkerEntry(String addressArg, String idArg) {
       address = addressArg;
@@ -23,8 +27,9 @@ public class KVSClient implements KVS {
     }
   };
 
-  Vector<WorkerEntry> workers;
-  boolean haveWorkers;
+  // Routing table: replaced as a whole on refresh, so readers that keep a reference see one version
+  volatile Vector<WorkerEntry> workers;
+  volatile boolean haveWorkers;
 
   public int numWorkers() throws IOException {
     if (!haveWorkers)
@@ -52,7 +57,42 @@ public class KVSClient implements KVS {
     return workers.elementAt(idx).id;
   }
 
-  class KVSIterator implements Iterator<Row> {
+  // URLs of the worker ranges that cover [startRow, endRowExclusive), in key order
+  Vector<String> scanRanges(String tableNameArg, String startRowArg, String endRowExclusiveArg, String snapshotID) throws IOException {
+    Vector<String> ranges = new Vector<String>();
+    if ((startRowArg == null) || (startRowArg.compareTo(getWorkerID(0)) < 0)) {
+      String url = scanURL(tableNameArg, numWorkers()-1, startRowArg, ((endRowExclusiveArg != null) && (endRowExclusiveArg.compareTo(getWorkerID(0))<0)) ? endRowExclusiveArg : getWorkerID(0), snapshotID);
+      ranges.add(url);
+    }
+    for (int i=0; i<numWorkers(); i++) {
+      if ((startRowArg == null) || (i == numWorkers()-1) || (startRowArg.compareTo(getWorkerID(i+1))<0)) {
+        if ((endRowExclusiveArg == null) || (endRowExclusiveArg.compareTo(getWorkerID(i)) > 0)) {
+          boolean useActualStartRow = (startRowArg != null) && (startRowArg.compareTo(getWorkerID(i))>0);
+          boolean useActualEndRow = (endRowExclusiveArg != null) && ((i==(numWorkers()-1)) || (endRowExclusiveArg.compareTo(getWorkerID(i+1))<0));
+          String url = scanURL(tableNameArg, i, useActualStartRow ? startRowArg : getWorkerID(i), useActualEndRow ? endRowExclusiveArg : ((i<numWorkers()-1) ? getWorkerID(i+1) : null), snapshotID);
+          ranges.add(url);
+        }
+      }
+    }
+    return ranges;
+  }
+
+  String scanURL(String tableNameArg, int workerIndexArg, String startRowArg, String endRowExclusiveArg, String snapshotID) throws IOException {
+    String params = "";
+    if (startRowArg != null)
+      params = "startRow="+startRowArg;
+    if (endRowExclusiveArg != null)
+      params = (params.equals("") ? "" : (params+"&"))+"endRowExclusive="+endRowExclusiveArg;
+    if (snapshotID != null)
+      params = (params.equals("") ? "" : (params+"&"))+"snapshot="+snapshotID;
+    return "http://"+getWorkerAddress(workerIndexArg)+"/data/"+tableNameArg+(params.equals("") ? "" : "?"+params);
+  }
+
+  // Holds a connection to one worker while a range is being read. It is handed back when the
+  // scan reaches the end, or with close() by a caller that stops early; a scan dropped without
+  // close() loses the connection only once it has been garbage-collected (see HTTP).
+  class KVSIterator implements Iterator<Row>, Closeable {
+    HTTP.StreamingResponse response;
     InputStream in;
     boolean atEnd;
     Row nextRow;
@@ -60,105 +100,97 @@ public class KVSClient implements KVS {
     String endRowExclusive;
     String startRow;
     String tableName;
+    String snapshotID;
     Vector<String> ranges;
+    int overloadRetries;
 
     KVSIterator(String tableNameArg, String startRowArg, String endRowExclusiveArg) throws IOException {
+      this(tableNameArg, startRowArg, endRowExclusiveArg, null);
+    }
+
+    KVSIterator(String tableNameArg, String startRowArg, String endRowExclusiveArg, String snapshotIDArg) throws IOException {
+      snapshotID = snapshotIDArg;
       in = null;
       currentRangeIndex = 0;
       atEnd = false;
       endRowExclusive = endRowExclusiveArg;
       tableName = tableNameArg;
       startRow = startRowArg;
-      ranges = new Vector<String>();
-      if ((startRowArg == null) || (startRowArg.compareTo(getWorkerID(0)) < 0)) {
-        String url = getURL(tableNameArg, numWorkers()-1, startRowArg, ((endRowExclusiveArg != null) && (endRowExclusiveArg.compareTo(getWorkerID(0))<0)) ? endRowExclusiveArg : getWorkerID(0));
-        ranges.add(url);
-      }
-      for (int i=0; i<numWorkers(); i++) {
-        if ((startRowArg == null) || (i == numWorkers()-1) || (startRowArg.compareTo(getWorkerID(i+1))<0)) {
-          if ((endRowExclusiveArg == null) || (endRowExclusiveArg.compareTo(getWorkerID(i)) > 0)) {
-            boolean useActualStartRow = (startRowArg != null) && (startRowArg.compareTo(getWorkerID(i))>0);
-            boolean useActualEndRow = (endRowExclusiveArg != null) && ((i==(numWorkers()-1)) || (endRowExclusiveArg.compareTo(getWorkerID(i+1))<0));
-            String url = getURL(tableNameArg, i, useActualStartRow ? startRowArg : getWorkerID(i), useActualEndRow ? endRowExclusiveArg : ((i<numWorkers()-1) ? getWorkerID(i+1) : null));
-            ranges.add(url);
-          }
-        }
-      }
+      ranges = scanRanges(tableNameArg, startRowArg, endRowExclusiveArg, snapshotIDArg);
 
       openConnectionAndFill();
     }
 
-    protected String getURL(String tableNameArg, int workerIndexArg, String startRowArg, String endRowExclusiveArg) throws IOException {
-      String params = "";
-      if (startRowArg != null)
-        params = "startRow="+startRowArg;
-      if (endRowExclusiveArg != null)
-        params = (params.equals("") ? "" : (params+"&"))+"endRowExclusive="+endRowExclusiveArg;
-      return "http://"+getWorkerAddress(workerIndexArg)+"/data/"+tableNameArg+(params.equals("") ? "" : "?"+params);
-    }
-
     void openConnectionAndFill() {
-      try {
-        if (in != null) {
-          in.close();
-          in = null;
-        }
+      closeResponse();
 
-        if (atEnd)
-          return;
+      if (atEnd)
+        return;
 
-        while (true) {
-          if (currentRangeIndex >= ranges.size()) {
-            System.err.println("KVSIterator: Reached end of ranges (" + ranges.size() + " total)");
-            atEnd = true;
-            return;
-          } 
+      while (true) {
+        if (currentRangeIndex >= ranges.size()) {
+          System.err.println("KVSIterator: Reached end of ranges (" + ranges.size() + " total)");
+          atEnd = true;
+          return;
+        } 
 
-          try {
-            String urlStr = ranges.elementAt(currentRangeIndex);
-            System.err.println("KVSIterator: Fetching range " + currentRangeIndex + "/" + ranges.size() + ": " + urlStr);
-            URL url = new URI(urlStr).toURL();
-            HttpURLConnection con = (HttpURLConnection)url.openConnection();
-            con.setRequestMethod("GET");
-            // Set timeouts to handle large responses
-            con.setConnectTimeout(10000);  // 10 seconds to connect
-            con.setReadTimeout(300000);     // 5 minutes to read (for large tables)
-            con.connect();
-            in = con.getInputStream();
-            Row r = fill();
-            if (r != null) {
-              nextRow = r;
-              System.err.println("KVSIterator: Successfully got first row from range " + currentRangeIndex);
-              break;
-            } else {
-              System.err.println("KVSIterator: Range " + currentRangeIndex + " returned no rows, trying next");
+        try {
+          String urlStr = ranges.elementAt(currentRangeIndex);
+          System.err.println("KVSIterator: Fetching range " + currentRangeIndex + "/" + ranges.size() + ": " + urlStr);
+          // The rows are decoded straight off the connection, so a scan needs constant memory
+          response = HTTP.doStreamingRequest("GET", urlStr, null, 300000);   // 5 minutes per read (for large tables)
+          if (isOverloaded(response.statusCode()) && (overloadRetries < SCAN_MAX_ATTEMPTS)) {
+            // Worker is shedding load; back off and ask for the same range again
+            long delay = backoffMillis(overloadRetries++, response.headers().get("retry-after"));
+            closeResponse();
+            try {
+              Thread.sleep(delay);
+            } catch (InterruptedException ie) {
+              Thread.currentThread().interrupt();
+              atEnd = true;
+              return;
             }
-          } catch (FileNotFoundException fnfe) {
-            // Table/range not found, try next range
-            System.err.println("KVSIterator: Range " + currentRangeIndex + " not found: " + fnfe.getMessage());
-          } catch (URISyntaxException use) {
-            // Invalid URI, try next range
-            System.err.println("KVSIterator: Invalid URI for range " + currentRangeIndex + ": " + use.getMessage());
-          } catch (java.net.SocketTimeoutException ste) {
-            // Timeout - log and try next range
-            System.err.println("KVSIterator: Timeout fetching range " + currentRangeIndex + ": " + ste.getMessage());
-          } catch (IOException ioe2) {
-            // Other IO error
-            System.err.println("KVSIterator: IO error fetching range " + currentRangeIndex + ": " + ioe2.getMessage());
+            continue;
           }
-
-          currentRangeIndex ++;
-        }
-      } catch (IOException ioe) {
-        System.err.println("KVSIterator: Fatal IO error in openConnectionAndFill: " + ioe.getMessage());
-        if (in != null) {
-          try { in.close(); } catch (Exception e) {}
-          in = null;
+          if (response.statusCode() == 404)
+            throw new FileNotFoundException(urlStr);
+          if (response.statusCode() != 200)
+            throw new IOException("Server returned HTTP response code: "+response.statusCode()+" for URL: "+urlStr);
+          overloadRetries = 0;
+          in = response.body();
+          Row r = fill();
+          if (r != null) {
+            nextRow = r;
+            System.err.println("KVSIterator: Successfully got first row from range " + currentRangeIndex);
+            break;
+          } else {
+            System.err.println("KVSIterator: Range " + currentRangeIndex + " returned no rows, trying next");
+          }
+        } catch (FileNotFoundException fnfe) {
+          // Table/range not found, try next range
+          System.err.println("KVSIterator: Range " + currentRangeIndex + " not found: " + fnfe.getMessage());
+        } catch (java.net.SocketTimeoutException ste) {
+          // Timeout - log and try next range
+          System.err.println("KVSIterator: Timeout fetching range " + currentRangeIndex + ": " + ste.getMessage());
+        } catch (IOException ioe2) {
+          // Other IO error
+          System.err.println("KVSIterator: IO error fetching range " + currentRangeIndex + ": " + ioe2.getMessage());
         }
-        atEnd = true;
+
+        closeResponse();
+        currentRangeIndex ++;
       }
     }
 
+    // Hands the connection back to the pool if the range was read to the end
+    void closeResponse() {
+      if (response != null) {
+        response.close();
+        response = null;
+      }
+      in = null;
+    }
+
     synchronized Row fill() {
       try {
         Row r = Row.readFrom(in);
@@ -184,31 +216,347 @@ public class KVSClient implements KVS {
     public synchronized boolean hasNext() {
       return !atEnd;
     }
+
+    public synchronized void close() {
+      closeResponse();
+      atEnd = true;
+    }
+  }
+
+  // ------------------------ Backpressure ------------------------
+
+  static final int MAX_ATTEMPTS = 8;
+  static final int SCAN_MAX_ATTEMPTS = 40;   // other scans can hold the worker's slots for a long time
+  static final long BACKOFF_BASE_MS = 50;
+  static final long BACKOFF_MAX_MS = 5000;
+
+  // Adaptive limit on concurrent requests to one worker (AIMD): grows by about one per
+  // round of successful requests, halves when the worker signals overload (at most once
+  // per DECREASE_INTERVAL_MS, so a burst of rejections counts as one signal).
+  static class ConcurrencyLimit {
+    static final double MIN = 1, MAX = 256, INITIAL = 16;
+    static final long DECREASE_INTERVAL_MS = 100;
+    double limit = INITIAL;
+    int inFlight = 0;
+    long lastDecrease = 0;
+
+    synchronized void acquire() throws IOException {
+      while (inFlight >= (int)limit) {
+        try {
+          wait();
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for a request slot");
+        }
+      }
+      inFlight ++;
+    }
+
+    synchronized void release(boolean overloaded) {
+      inFlight --;
+      long now = System.currentTimeMillis();
+      if (overloaded) {
+        if (now - lastDecrease >= DECREASE_INTERVAL_MS) {
+          limit = Math.max(MIN, limit / 2);
+          lastDecrease = now;
+        }
+      } else {
+        limit = Math.min(MAX, limit + 1 / limit);
+      }
+      notifyAll();
+    }
+
+    synchronized int current() {
+      return (int)limit;
+    }
+  }
+
+  final Map<String,ConcurrencyLimit> limits = new java.util.concurrent.ConcurrentHashMap<String,ConcurrencyLimit>();
+
+  ConcurrencyLimit limitFor(String url) {
+    int start = url.indexOf("://")+3;
+    int end = url.indexOf('/', start);
+    String hostPort = url.substring(start, (end < 0) ? url.length() : end);
+    return limits.computeIfAbsent(hostPort, h -> new ConcurrencyLimit());
+  }
+
+  // Current concurrency limit towards a worker ("host:port"), for monitoring
+  public int concurrencyLimit(String workerAddress) {
+    ConcurrencyLimit l = limits.get(workerAddress);
+    return (l == null) ? (int)ConcurrencyLimit.INITIAL : l.current();
+  }
+
+  // Exponential backoff with 'equal jitter' (half fixed, half random), so that clients rejected
+  // together do not retry together. A Retry-After from the worker raises the ceiling.
+  static long backoffMillis(int attempt, String retryAfterOrNull) {
+    long ceiling = Math.min(BACKOFF_MAX_MS, BACKOFF_BASE_MS << Math.min(attempt, 20));
+    if (retryAfterOrNull != null) {
+      try {
+        ceiling = Math.max(ceiling, Math.min(BACKOFF_MAX_MS, 1000 * Long.parseLong(retryAfterOrNull.trim())));
+      } catch (NumberFormatException nfe) {}
+    }
+    return ceiling/2 + (long)(Math.random() * (ceiling/2));
   }
 
+  static boolean isOverloaded(int statusCode) {
+    return (statusCode == 429) || (statusCode == 503);
+  }
+
+  // Sends a request to a worker within that worker's concurrency limit; 429/503 answers are
+  // retried with backoff (up to MAX_ATTEMPTS), after which the last response is returned.
+  HTTP.Response request(String method, String url, byte[] body) throws IOException {
+    return request(method, url, body, 0);
+  }
+
+  // The same, but the request (and any retries) must finish by 'deadline' (ms since the epoch, 0 = none)
+  HTTP.Response request(String method, String url, byte[] body, long deadline) throws IOException {
+    if (haveWorkers && (System.currentTimeMillis() - routingCheckedAt > ROUTING_TTL_MS))
+      refreshRoutingInBackground();
+    ConcurrencyLimit limit = limitFor(url);
+    for (int attempt=0; ; attempt++) {
+      limit.acquire();
+      HTTP.Response r;
+      try {
+        long left = (deadline > 0) ? deadline - System.currentTimeMillis() : 0;
+        if ((deadline > 0) && (left <= 0))
+          throw new SocketTimeoutException("Deadline exceeded before sending "+method+" "+url);
+        r = (deadline > 0) ? HTTP.doRequestWithDeadline(method, url, body, left) : HTTP.doRequest(method, url, body);
+      } catch (IOException ioe) {
+        limit.release(false);
+        if (isConnectionFailure(ioe))
+          refreshRoutingInBackground();
+        throw ioe;
+      }
+      boolean overloaded = (r != null) && isOverloaded(r.statusCode());
+      limit.release(overloaded);
+      if (!overloaded || (attempt+1 >= MAX_ATTEMPTS))
+        return r;
+      long delay = backoffMillis(attempt, r.headers().get("retry-after"));
+      if ((deadline > 0) && (System.currentTimeMillis() + delay >= deadline))
+        return r;
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted during backoff");
+      }
+    }
+  }
+
+  // ------------------------ Fan-out ------------------------
+
+  static final long FANOUT_DEADLINE_MS = Long.getLong("cis5550.kvs.fanoutDeadlineMs", 60000);
+
+  static final ExecutorService fanOutPool = Executors.newCachedThreadPool(r -> {
+    Thread t = new Thread(r, "KVSFanOut");
+    t.setDaemon(true);
+    return t;
+  });
+
+  // What each worker answered to an operation sent to all of them at once: results from the
+  // workers that succeeded, and for the others what went wrong, both by worker address (or by
+  // "<address> [start,end)" for operations on key ranges), in the order of the workers.
+  public static class FanOut<T> {
+    public final Map<String,T> results = new LinkedHashMap<String,T>();
+    public final Map<String,String> errors = new LinkedHashMap<String,String>();
+
+    public boolean complete() {
+      return errors.isEmpty();
+    }
+
+    // Throws an IOException that lists the failed workers, unless all of them succeeded
+    public FanOut<T> check(String what) throws IOException {
+      if (!errors.isEmpty())
+        throw new IOException(what+" failed at "+errors.size()+" of "+(errors.size()+results.size())+" workers: "+errors);
+      return this;
+    }
+
+    public String toString() {
+      return results+((errors.isEmpty()) ? "" : " errors "+errors);
+    }
+  }
+
+  interface WorkerCall<T> {
+    T call(String workerAddress, long deadline) throws Exception;
+  }
+
+  interface RangeCall<T> {
+    T call(String[] range, long deadline) throws Exception;
+  }
+
+  // Runs the call against every worker concurrently, so an operation takes as long as the slowest
+  // worker rather than the sum of all. Waits until all have answered or deadlineMillis has passed;
+  // workers that have not answered by then are reported as errors, like those whose call threw.
+  <T> FanOut<T> fanOut(long deadlineMillis, WorkerCall<T> call) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+    List<String> addresses = new ArrayList<String>();
+    for (WorkerEntry w : workers)
+      addresses.add(w.address);
+    return fanOut(addresses, deadlineMillis, call);
+  }
+
+  <T> FanOut<T> fanOut(List<String> addresses, long deadlineMillis, WorkerCall<T> call) throws IOException {
+    long deadline = System.currentTimeMillis() + deadlineMillis;
+    Map<String,Callable<T>> calls = new LinkedHashMap<String,Callable<T>>();
+    for (String address : addresses)
+      calls.put(address, () -> call.call(address, deadline));
+    return collect(calls, deadline, deadlineMillis);
+  }
+
+  // fanOut() over key ranges, such as those from ownedRanges()
+  <T> FanOut<T> fanOutRanges(String[][] ranges, long deadlineMillis, RangeCall<T> call) throws IOException {
+    long deadline = System.currentTimeMillis() + deadlineMillis;
+    Map<String,Callable<T>> calls = new LinkedHashMap<String,Callable<T>>();
+    for (String[] range : ranges)
+      calls.put(rangeLabel(range), () -> call.call(range, deadline));
+    return collect(calls, deadline, deadlineMillis);
+  }
+
+  static String rangeLabel(String[] range) {
+    return range[0]+" ["+((range[1] == null) ? "" : range[1])+","+((range[2] == null) ? "" : range[2])+")";
+  }
+
+  <T> FanOut<T> collect(Map<String,Callable<T>> calls, long deadline, long deadlineMillis) throws IOException {
+    Map<String,Future<T>> futures = new LinkedHashMap<String,Future<T>>();
+    for (Map.Entry<String,Callable<T>> e : calls.entrySet())
+      futures.put(e.getKey(), fanOutPool.submit(e.getValue()));
+
+    FanOut<T> out = new FanOut<T>();
+    try {
+      for (Map.Entry<String,Future<T>> e : futures.entrySet()) {
+        try {
+          out.results.put(e.getKey(), e.getValue().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+        } catch (TimeoutException te) {
+          out.errors.put(e.getKey(), "no answer within "+deadlineMillis+" ms");
+        } catch (ExecutionException ee) {
+          Throwable cause = ee.getCause();
+          out.errors.put(e.getKey(), (cause.getMessage() != null) ? cause.getMessage() : cause.toString());
+        }
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the workers");
+    } finally {
+      for (Future<T> f : futures.values())
+        f.cancel(true);
+    }
+    Metrics.inc("kvsclient.fanout.calls");
+    Metrics.add("kvsclient.fanout.errors", out.errors.size());
+    return out;
+  }
+
+  // Answers other than 200 become errors, with the worker's message
+  static HTTP.Response expect200(HTTP.Response r) throws IOException {
+    if (r == null)
+      throw new IOException("No response");
+    if (r.statusCode() != 200)
+      throw new IOException("HTTP "+r.statusCode()+((r.body().length > 0) ? ": "+new String(r.body()).trim() : ""));
+    return r;
+  }
+
+  // ------------------------ Routing ------------------------
+
+  static final long ROUTING_TTL_MS = 10000;         // older routing is refreshed in the background
+  static final long ROUTING_MIN_REFRESH_MS = 500;   // refreshes after failures are at most this frequent
+  static final long FAILOVER_MS = 30000;            // longer than the coordinator takes to mark a worker suspect
+  static final int REPLICAS = 3;                    // as in Worker.replicaTargets()
+
+  volatile long routingVersion = -1;
+  volatile long routingCheckedAt;
+  final java.util.concurrent.atomic.AtomicBoolean refreshing = new java.util.concurrent.atomic.AtomicBoolean();
+
   synchronized void downloadWorkers() throws IOException {
-    String result = new String(HTTP.doRequest("GET", "http://"+coordinator+"/workers", null).body());
+    routingCheckedAt = System.currentTimeMillis();
+    HTTP.Response r = HTTP.doRequest("GET", "http://"+coordinator+"/workers", null);
+    String result = new String(r.body());
     String[] pieces = result.split("\n");
     int numWorkers = Integer.parseInt(pieces[0]);
     if (numWorkers < 1)
       throw new IOException("No active KVS workers");
     if (pieces.length != (numWorkers+1))
       throw new RuntimeException("Received truncated response when asking KVS coordinator for list of workers");
-    workers.clear();
+    Vector<WorkerEntry> list = new Vector<WorkerEntry>();
     for (int i=0; i<numWorkers; i++) {
       String[] pcs = pieces[1+i].split(",");
-      workers.add(new WorkerEntry(pcs[1], pcs[0]));
+      list.add(new WorkerEntry(pcs[1], pcs[0]));
+    }
+    Collections.sort(list);
+    String suspects = r.headers().get("x-suspect-workers");
+    if (suspects != null) {
+      Set<String> ids = new HashSet<String>(Arrays.asList(suspects.split(",")));
+      for (WorkerEntry w : list)
+        w.suspect = ids.contains(w.id);
     }
-    Collections.sort(workers);
 
+    String v = r.headers().get("x-routing-version");
+    long version = (v != null) ? Long.parseLong(v.trim()) : (sameWorkers(list, workers) ? routingVersion : routingVersion+1);
+    if (haveWorkers && (version != routingVersion)) {
+      Metrics.inc("kvsclient.routing.changes");
+      System.err.println("KVSClient: routing version "+version+": "+list.size()+" workers");
+    }
+    workers = list;
+    routingVersion = version;
     haveWorkers = true;
   }
 
-  int workerIndexForKey(String key) {
-    int chosenWorker = workers.size()-1;
+  static boolean sameWorkers(Vector<WorkerEntry> a, Vector<WorkerEntry> b) {
+    if (a.size() != b.size())
+      return false;
+    for (int i=0; i<a.size(); i++)
+      if (!a.elementAt(i).id.equals(b.elementAt(i).id) || !a.elementAt(i).address.equals(b.elementAt(i).address))
+        return false;
+    return true;
+  }
+
+  // Version of the worker list in use (from the coordinator; changes when workers join, leave or move)
+  public long routingVersion() throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+    return routingVersion;
+  }
+
+  // Re-reads the worker list unless that just happened; keeps the old list if the coordinator is unavailable
+  synchronized void refreshRouting() {
+    if (System.currentTimeMillis() - routingCheckedAt < ROUTING_MIN_REFRESH_MS)
+      return;
+    try {
+      downloadWorkers();
+    } catch (Exception e) {
+      System.err.println("KVSClient: Cannot refresh worker list from "+coordinator+": "+e.getMessage());
+    }
+  }
+
+  void refreshRoutingInBackground() {
+    if (!refreshing.compareAndSet(false, true))
+      return;
+    Thread t = new Thread(() -> {
+      try {
+        refreshRouting();
+      } finally {
+        refreshing.set(false);
+      }
+    }, "KVSRoutingRefresh");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  // The worker could not be reached (as opposed to answering with an error, or answering slowly):
+  // the connection was refused, the host is unknown or has no route, or the connection was reset
+  // before any byte of the response arrived. Timeouts are not connection failures.
+  static boolean isConnectionFailure(IOException ioe) {
+    for (Throwable t = ioe; t != null; t = t.getCause()) {
+      if ((t instanceof ConnectException) || (t instanceof NoRouteToHostException) || (t instanceof UnknownHostException) || (t instanceof HTTP.ResetBeforeResponseException))
+        return true;
+    }
+    return false;
+  }
+
+  static int workerIndexForKey(Vector<WorkerEntry> ws, String key) {
+    int chosenWorker = ws.size()-1;
     if (key != null) {
-      for (int i=0; i<workers.size()-1; i++) {
-        if ((key.compareTo(workers.elementAt(i).id) >= 0) && (key.compareTo(workers.elementAt(i+1).id) < 0))
+      for (int i=0; i<ws.size()-1; i++) {
+        if ((key.compareTo(ws.elementAt(i).id) >= 0) && (key.compareTo(ws.elementAt(i+1).id) < 0))
           chosenWorker = i;
       }
     }
@@ -216,6 +564,171 @@ public class KVSClient implements KVS {
     return chosenWorker;
   }
 
+  int workerIndexForKey(String key) {
+    return workerIndexForKey(workers, key);
+  }
+
+  WorkerEntry workerForKey(String key) {
+    Vector<WorkerEntry> ws = workers;
+    return ws.elementAt(workerIndexForKey(ws, key));
+  }
+
+  // Workers that may hold a replica of the row: the same hash ring the workers replicate along,
+  // over the full membership (suspect workers included), as in Worker.replicaTargets()
+  List<String> replicaAddresses(String key) {
+    Vector<WorkerEntry> ws = workers;
+    List<String> out = new ArrayList<String>();
+    int first = Math.floorMod(key.hashCode(), ws.size());
+    for (int k=0; k<Math.min(REPLICAS, ws.size()); k++)
+      out.add(ws.elementAt((first+k) % ws.size()).address);
+    return out;
+  }
+
+  // A replica's answer to a read, or null if none of the row's other replicas has it
+  HTTP.Response replicaRead(String row, String owner, String path) {
+    for (String replica : replicaAddresses(row)) {
+      if (replica.equals(owner))
+        continue;
+      try {
+        HTTP.Response r = request("GET", "http://"+replica+path, null);
+        if (r.statusCode() == 200) {
+          Metrics.inc("kvsclient.failover.replicaReads");
+          return r;
+        }
+      } catch (IOException ioe) {}
+    }
+    return null;
+  }
+
+  // Sends an idempotent request about one row (path starts with '/') to the worker that owns it.
+  // Key ranges do not move when a worker misses its heartbeats (the coordinator only marks it
+  // suspect), so writes always go to the owner: if it cannot be reached, the routing is refreshed
+  // and the request retried there for up to FAILOVER_MS, or at its new address if it has come
+  // back at another one. Reads of rows whose owner is suspect or unreachable are meanwhile served
+  // by workers holding a replica of the row, whose copy may be slightly behind.
+  HTTP.Response keyRequest(String method, String row, String path, byte[] body) throws IOException {
+    long deadline = System.currentTimeMillis() + FAILOVER_MS;
+    boolean read = method.equals("GET");
+    for (int attempt=0; ; attempt++) {
+      WorkerEntry owner = workerForKey(row);
+      if (read && owner.suspect) {
+        HTTP.Response r = replicaRead(row, owner.address, path);
+        if (r != null)
+          return r;
+      }
+      try {
+        return request(method, "http://"+owner.address+path, body);
+      } catch (IOException ioe) {
+        if (!isConnectionFailure(ioe) || (System.currentTimeMillis() >= deadline))
+          throw ioe;
+        Metrics.inc("kvsclient.failover.retries");
+        if (attempt == 0)
+          System.err.println("KVSClient: "+owner.address+" unreachable ("+ioe.getMessage()+"), retrying "+method+" "+path);
+      }
+
+      refreshRouting();
+      if (!workerForKey(row).address.equals(owner.address))
+        continue;
+      if (read && !workerForKey(row).suspect) {
+        HTTP.Response r = replicaRead(row, owner.address, path);
+        if (r != null)
+          return r;
+      }
+      try {
+        Thread.sleep(Math.min(backoffMillis(attempt, null), Math.max(1, deadline - System.currentTimeMillis())));
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted during failover");
+      }
+    }
+  }
+
+  // ------------------------ Binary protocol ------------------------
+
+  // Row operations go over a worker's binary port (see BinaryProtocol) when it has one, and over
+  // HTTP otherwise; -Dcis5550.kvs.binary=false turns this off. A worker whose binary port fails
+  // is reached over HTTP (with its failover) and asked again after BINARY_RECHECK_MS.
+  static final boolean USE_BINARY = !"false".equals(System.getProperty("cis5550.kvs.binary"));
+  static final long BINARY_TIMEOUT_MS = 60000;
+  static final long BINARY_RECHECK_MS = 60000;
+  static final int BATCH_BYTES = 4*1024*1024;
+
+  static final class BinaryPort {
+    final String address;     // null if none
+    final long checkedAt;
+
+    BinaryPort(String addressArg, long checkedAtArg) {
+      address = addressArg;
+      checkedAt = checkedAtArg;
+    }
+  }
+
+  // By worker HTTP address; shared by all clients in the JVM
+  static final Map<String,BinaryPort> binaryPorts = new java.util.concurrent.ConcurrentHashMap<String,BinaryPort>();
+
+  String binaryAddress(String workerAddress) {
+    if (!USE_BINARY)
+      return null;
+    long now = System.currentTimeMillis();
+    BinaryPort p = binaryPorts.get(workerAddress);
+    if ((p != null) && ((p.address != null) || (now - p.checkedAt < BINARY_RECHECK_MS)))
+      return p.address;
+    String address = null;
+    try {
+      HTTP.Response r = HTTP.doRequest("GET", "http://"+workerAddress+"/binport", null);
+      if (r.statusCode() == 200)
+        address = workerAddress.substring(0, workerAddress.lastIndexOf(':')+1)+new String(r.body()).trim();
+    } catch (IOException ioe) {}
+    binaryPorts.put(workerAddress, new BinaryPort(address, now));
+    return address;
+  }
+
+  // Sends a request to a binary port, backing off while the worker answers BUSY (like request())
+  BinaryClient.Reply binaryCall(String binaryAddress, BinaryProtocol.Writer req) throws IOException {
+    for (int attempt=0; ; attempt++) {
+      BinaryClient.Reply r = BinaryClient.call(binaryAddress, req, BINARY_TIMEOUT_MS);
+      if ((r.status != BinaryProtocol.BUSY) || (attempt+1 >= MAX_ATTEMPTS))
+        return r;
+      try {
+        Thread.sleep(backoffMillis(attempt, null));
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted during backoff");
+      }
+    }
+  }
+
+  // Runs a row operation over the binary port of the row's worker and returns the reply as the
+  // HTTP route would have (200 with the value or "OK", 404, 429, 500); null if it has to go over HTTP.
+  HTTP.Response binaryRowRequest(String row, BinaryProtocol.Writer req) {
+    String owner = workerForKey(row).address;
+    String bin = binaryAddress(owner);
+    if (bin == null)
+      return null;
+    try {
+      BinaryClient.Reply r = binaryCall(bin, req);
+      switch (r.status) {
+        case BinaryProtocol.OK:
+          return new HTTP.Response((r.fields.buf.remaining() >= 4) ? r.fields.getBytes() : "OK".getBytes(), new HashMap<String,String>(), 200);
+        case BinaryProtocol.NOT_FOUND:
+          return new HTTP.Response(new byte[0], new HashMap<String,String>(), 404);
+        case BinaryProtocol.BUSY:
+          return new HTTP.Response("Worker overloaded".getBytes(), new HashMap<String,String>(), 429);
+        default:
+          return new HTTP.Response(r.fields.getBytes(), new HashMap<String,String>(), 500);
+      }
+    } catch (IOException ioe) {
+      binaryFailed(owner, ioe);
+      return null;
+    }
+  }
+
+  void binaryFailed(String workerAddress, IOException ioe) {
+    Metrics.inc("kvsclient.binary.fallbacks");
+    System.err.println("KVSClient: binary protocol of "+workerAddress+" failed ("+ioe.getMessage()+"), using HTTP");
+    binaryPorts.put(workerAddress, new BinaryPort(null, System.currentTimeMillis()));
+  }
+
   public KVSClient(String coordinatorArg) {
     coordinator = coordinatorArg;
     workers = new Vector<WorkerEntry>();
@@ -223,31 +736,79 @@ public class KVSClient implements KVS {
   }
 
   public boolean rename(String oldTableName, String newTableName) throws IOException {
-    if (!haveWorkers)
-      downloadWorkers();
-
-    boolean result = true;
-    for (WorkerEntry w : workers) {
-      try {
-        byte[] response = HTTP.doRequest("PUT", "http://"+w.address+"/rename/"+java.net.URLEncoder.encode(oldTableName, "UTF-8")+"/", newTableName.getBytes()).body();
-        String res = new String(response);
-        result &= res.equals("OK");
-      } catch (Exception e) {}
-    }
+    return renameOnWorkers(oldTableName, newTableName, FANOUT_DEADLINE_MS).complete();
+  }
 
+  // rename() on all workers at once, with each worker's outcome
+  public FanOut<Boolean> renameOnWorkers(String oldTableName, String newTableName, long deadlineMillis) throws IOException {
+    String path = "/rename/"+java.net.URLEncoder.encode(oldTableName, "UTF-8");
+    FanOut<Boolean> result = fanOut(deadlineMillis, (address, deadline) -> {
+      HTTP.Response r = request("PUT", "http://"+address+path, newTableName.getBytes(), deadline);
+      String res = new String(r.body());
+      if (!res.equals("OK"))
+        throw new IOException("Rename refused: "+res.trim());
+      return true;
+    });
+    invalidateCache(oldTableName, null);
+    invalidateCache(newTableName, null);
+    forgetCounts(oldTableName);
+    forgetCounts(newTableName);
     return result;
   }
 
   public void delete(String oldTableName) throws IOException {
+    deleteOnWorkers(oldTableName, FANOUT_DEADLINE_MS);
+  }
+
+  // delete() on all workers at once, with each worker's outcome
+  public FanOut<Boolean> deleteOnWorkers(String tableName, long deadlineMillis) throws IOException {
+    String path = "/delete/"+java.net.URLEncoder.encode(tableName, "UTF-8");
+    FanOut<Boolean> result = fanOut(deadlineMillis, (address, deadline) -> {
+      expect200(request("PUT", "http://"+address+path, null, deadline));
+      return true;
+    });
+    invalidateCache(tableName, null);
+    forgetCounts(tableName);
+    return result;
+  }
+
+  // Sends the same PUT to every worker at once; failures are ignored, as the setting is only a hint
+  void putToAll(String path, byte[] body) throws IOException {
+    fanOut(FANOUT_DEADLINE_MS, (address, deadline) -> request("PUT", "http://"+address+path, body, deadline));
+  }
+
+  // TTLs only apply to in-memory (non pt-) tables; ttlMillis <= 0 clears the TTL.
+  public void setTTL(String tableName, long ttlMillis) throws IOException {
+    putToAll("/ttl/"+java.net.URLEncoder.encode(tableName, "UTF-8"), Long.toString(ttlMillis).getBytes());
+  }
+
+  // Write-behind only applies to persistent (pt-) tables: writes are acknowledged once buffered
+  // and reach disk within flushIntervalMillis, so a worker crash can lose that last interval.
+  // flushIntervalMillis <= 0 flushes the buffers and turns it off again.
+  public void setWriteBehind(String tableName, long flushIntervalMillis, int maxDirtyRows) throws IOException {
+    putToAll("/writebehind/"+java.net.URLEncoder.encode(tableName, "UTF-8"), (flushIntervalMillis+" "+maxDirtyRows).getBytes());
+  }
+
+  // Rows of a persistent table that go unread and unwritten for idleDays are archived into
+  // compressed segments on their worker; reading them is transparent. idleDays <= 0 stops that.
+  public void setColdTier(String tableName, double idleDays) throws IOException {
+    putToAll("/coldtier/"+java.net.URLEncoder.encode(tableName, "UTF-8"), Double.toString(idleDays).getBytes());
+  }
+
+  // Change logging (see subscribe()) is off by default; turning it off discards the logs. Unlike
+  // the settings above, this throws unless every worker took it, as others would miss changes.
+  public void setChangeLog(String tableName, boolean enabled) throws IOException {
+    String path = "/changes/"+java.net.URLEncoder.encode(tableName, "UTF-8");
+    byte[] body = (enabled ? "on" : "off").getBytes();
+    fanOut(FANOUT_DEADLINE_MS, (address, deadline) -> expect200(request("PUT", "http://"+address+path, body, deadline))).check("setChangeLog");
+  }
+
+  public boolean setTTL(String tableName, String row, long ttlMillis) throws IOException {
     if (!haveWorkers)
       downloadWorkers();
 
-    for (WorkerEntry w : workers) {
-      try {
-        byte[] response = HTTP.doRequest("PUT", "http://"+w.address+"/delete/"+java.net.URLEncoder.encode(oldTableName, "UTF-8")+"/", null).body();
-        String result = new String(response);
-      } catch (Exception e) {}
-    }
+    HTTP.Response r = keyRequest("PUT", row, "/ttl/"+java.net.URLEncoder.encode(tableName, "UTF-8")+"/"+java.net.URLEncoder.encode(row, "UTF-8"), Long.toString(ttlMillis).getBytes());
+    return (r != null) && (r.statusCode() == 200);
   }
 
   public void put(String tableName, String row, String column, byte value[]) throws IOException {
@@ -255,8 +816,10 @@ public class KVSClient implements KVS {
       downloadWorkers();
 
     try {
-      String target = "http://"+workers.elementAt(workerIndexForKey(row)).address+"/data/"+tableName+"/"+java.net.URLEncoder.encode(row, "UTF-8")+"/"+java.net.URLEncoder.encode(column, "UTF-8");
-      byte[] response = HTTP.doRequest("PUT", target, value).body();
+      String target = "/data/"+tableName+"/"+java.net.URLEncoder.encode(row, "UTF-8")+"/"+java.net.URLEncoder.encode(column, "UTF-8");
+      HTTP.Response r = binaryRowRequest(row, new BinaryProtocol.Writer(BinaryProtocol.PUT).putString(tableName).putString(row).putString(column).putBytes(value));
+      byte[] response = ((r != null) ? r : keyRequest("PUT", row, target, value)).body();
+      forgetReads(tableName, row);
       String result = new String(response);
       if (!result.equals("OK")) 
       	throw new RuntimeException("PUT returned something other than OK: "+result+ "("+target+")");
@@ -275,28 +838,388 @@ public class KVSClient implements KVS {
     if (row.key().equals(""))
       throw new RuntimeException("Row key can't be empty!");
 
-    byte[] response = HTTP.doRequest("PUT", "http://"+workers.elementAt(workerIndexForKey(row.key())).address+"/data/"+tableName, row.toByteArray()).body();
+    byte[] bytes = row.toByteArray();
+    HTTP.Response r = binaryRowRequest(row.key(), new BinaryProtocol.Writer(BinaryProtocol.PUT_ROW).putString(tableName).putBytes(bytes));
+    byte[] response = ((r != null) ? r : keyRequest("PUT", row.key(), "/data/"+tableName, bytes)).body();
+    forgetReads(tableName, row.key());
     String result = new String(response);
     if (!result.equals("OK")) 
       throw new RuntimeException("PUT returned something other than OK: "+result);
   }
 
+  // Writes rows like putRow(), but a worker with a binary port gets them in a few batched requests
+  // of up to BATCH_BYTES instead of one request per row, and other workers get pipelined requests.
+  public void putRows(String tableName, Collection<Row> rows) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    Map<String,List<Row>> byWorker = new HashMap<String,List<Row>>();
+    for (Row r : rows) {
+      if (r.key().equals(""))
+        throw new RuntimeException("Row key can't be empty!");
+      byWorker.computeIfAbsent(workerForKey(r.key()).address, a -> new ArrayList<Row>()).add(r);
+    }
+
+    for (Map.Entry<String,List<Row>> e : byWorker.entrySet()) {
+      List<Row> list = e.getValue();
+      String bin = binaryAddress(e.getKey());
+      int i = 0;
+      if (bin != null) {
+        try {
+          while (i < list.size()) {
+            List<byte[]> batch = new ArrayList<byte[]>();
+            long bytes = 0;
+            for (int k=i; (k < list.size()) && (batch.isEmpty() || (bytes < BATCH_BYTES)); k++) {
+              byte[] b = list.get(k).toByteArray();
+              batch.add(b);
+              bytes += b.length;
+            }
+            BinaryProtocol.Writer req = new BinaryProtocol.Writer(BinaryProtocol.PUT_ROWS).putString(tableName).putInt(batch.size());
+            for (byte[] b : batch)
+              req.putBytes(b);
+            BinaryClient.Reply r = binaryCall(bin, req);
+            if (r.status != BinaryProtocol.OK)
+              throw new RuntimeException("PUT returned something other than OK: "+((r.status == BinaryProtocol.ERROR) ? r.fields.getString() : "status "+r.status));
+            for (int k=i; k<i+batch.size(); k++)
+              forgetReads(tableName, list.get(k).key());
+            i += batch.size();
+          }
+        } catch (IOException ioe) {
+          binaryFailed(e.getKey(), ioe);
+        }
+      }
+      if (i < list.size())
+        putRowsPipelined(tableName, e.getKey(), list.subList(i, list.size()), false);
+    }
+  }
+
+  // Like putRows(), but the columns are merged into existing rows instead of replacing them, as
+  // put() of each cell would do. Always over HTTP: the binary protocol has no merging write.
+  public void mergeRows(String tableName, Collection<Row> rows) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    Map<String,List<Row>> byWorker = new HashMap<String,List<Row>>();
+    for (Row r : rows) {
+      if (r.key().equals(""))
+        throw new RuntimeException("Row key can't be empty!");
+      byWorker.computeIfAbsent(workerForKey(r.key()).address, a -> new ArrayList<Row>()).add(r);
+    }
+    for (Map.Entry<String,List<Row>> e : byWorker.entrySet())
+      putRowsPipelined(tableName, e.getKey(), e.getValue(), true);
+  }
+
+  static final int PIPELINE_DEPTH = Integer.getInteger("cis5550.kvs.pipelineDepth", 32);
+
+  // Writes rows that all belong to one worker over HTTP, with up to PIPELINE_DEPTH requests in
+  // flight on one connection (see HTTP.pipeline()), so that a distant worker is not limited to one
+  // row per round trip. Each row's response is checked on its own: rows the worker rejected as
+  // overloaded are sent again after a backoff, and rows whose request was lost with the
+  // connection go through putRow() (or put() of each cell, when merging), which fails over if
+  // the worker is gone. With merge, the worker merges the columns into the existing row.
+  void putRowsPipelined(String tableName, String workerAddress, List<Row> rows, boolean merge) throws IOException {
+    ConcurrencyLimit limit = limitFor("http://"+workerAddress);
+    List<Row> pending = rows;
+    for (int attempt=0; !pending.isEmpty(); attempt++) {
+      List<HTTP.PipelinedRequest> requests = new ArrayList<HTTP.PipelinedRequest>();
+      for (Row r : pending)
+        requests.add(new HTTP.PipelinedRequest("PUT", "/data/"+tableName+(merge ? "?merge=1" : ""), r.toByteArray()));
+
+      List<Row> rejected = new ArrayList<Row>(), failed = new ArrayList<Row>();
+      String retryAfter = null;
+      IOException error = null;
+      limit.acquire();
+      try {
+        HTTP.pipeline("http://"+workerAddress, requests, PIPELINE_DEPTH, -1);
+        for (int i=0; i<requests.size(); i++) {
+          HTTP.PipelinedRequest p = requests.get(i);
+          Row row = pending.get(i);
+          if (p.error() != null) {
+            failed.add(row);
+            error = p.error();
+          } else if (isOverloaded(p.response().statusCode()) && (attempt+1 < MAX_ATTEMPTS)) {
+            rejected.add(row);
+            retryAfter = p.response().headers().get("retry-after");
+          } else {
+            forgetReads(tableName, row.key());
+            String result = new String(p.response().body());
+            if (!result.equals("OK"))
+              throw new RuntimeException("PUT returned something other than OK: "+result+" (row "+row.key()+")");
+          }
+        }
+      } finally {
+        limit.release(!rejected.isEmpty());
+      }
+
+      if (!failed.isEmpty()) {
+        System.err.println("KVSClient: "+failed.size()+" pipelined PUTs to "+workerAddress+" failed ("+error.getMessage()+"), retrying one by one");
+        Metrics.add("kvsclient.pipeline.fallbacks", failed.size());
+        for (Row row : failed) {
+          if (!merge) {
+            putRow(tableName, row);
+            continue;
+          }
+          for (String c : row.columns())
+            put(tableName, row.key(), c, row.getBytes(c));
+        }
+      }
+      pending = rejected;
+      if (!pending.isEmpty()) {
+        try {
+          Thread.sleep(backoffMillis(attempt, retryAfter));
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted during backoff");
+        }
+      }
+    }
+  }
+
+  static final int INGEST_BATCH_BYTES = 8*1024*1024;
+
+  // Bulk-loads rows (replacing existing rows with the same keys): the rows are partitioned by
+  // owning worker, sorted by key, and streamed to each worker's /ingest endpoint in batches of
+  // up to INGEST_BATCH_BYTES, instead of one request per cell. Returns the number of rows loaded.
+  public int bulkLoad(String tableName, Collection<Row> rows) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    Vector<WorkerEntry> ws = workers;
+    List<TreeMap<String,Row>> partitions = new ArrayList<TreeMap<String,Row>>();
+    for (int i=0; i<ws.size(); i++)
+      partitions.add(new TreeMap<String,Row>());
+    for (Row r : rows) {
+      if (r.key().equals(""))
+        throw new RuntimeException("Row key can't be empty!");
+      partitions.get(workerIndexForKey(ws, r.key())).put(r.key(), r);
+    }
+
+    int total = 0;
+    for (int i=0; i<partitions.size(); i++) {
+      String target = "http://"+ws.elementAt(i).address+"/ingest/"+java.net.URLEncoder.encode(tableName, "UTF-8");
+      ByteArrayOutputStream batch = new ByteArrayOutputStream();
+      List<String> keys = new ArrayList<String>();
+      Iterator<Row> it = partitions.get(i).values().iterator();
+      while (it.hasNext()) {
+        Row row = it.next();
+        batch.write(row.toByteArray());
+        batch.write('\n');
+        keys.add(row.key());
+        if ((batch.size() >= INGEST_BATCH_BYTES) || !it.hasNext()) {
+          batch.write('\n');
+          HTTP.Response r;
+          try {
+            r = request("POST", target, batch.toByteArray());
+          } finally {
+            // Even a failed batch may have replaced some rows
+            for (String k : keys)
+              forgetReads(tableName, k);
+            keys.clear();
+          }
+          if ((r == null) || (r.statusCode() != 200))
+            throw new IOException("Bulk load into "+tableName+" failed at "+ws.elementAt(i).address+((r == null) ? "" : ": "+new String(r.body())));
+          total += Integer.parseInt(new String(r.body()).trim());
+          batch.reset();
+        }
+      }
+    }
+    return total;
+  }
+
+  // Concurrent identical reads through this client (e.g. many tasks wanting the same robots
+  // or index row) share one request. Keys are "<table>\0<row>\0<column>" (empty column for
+  // whole rows); writes through this client forget the row, so later reads see the write.
+  final SingleFlight<HTTP.Response> reads = new SingleFlight<HTTP.Response>("kvsclient.coalesce");
+
+  HTTP.Response coalescedGet(String tableName, String row, String column, String path) throws IOException {
+    ReadCache cache = cacheFor(tableName);
+    HTTP.Response hit = (cache != null) ? cache.get(row, column) : null;
+    return (hit != null) ? hit : fetch(tableName, row, column, path, cache);
+  }
+
+  // Sends the read (or joins an identical one in flight) and caches the response
+  HTTP.Response fetch(String tableName, String row, String column, String path, ReadCache cache) throws IOException {
+    try {
+      long epoch = (cache != null) ? cache.epoch() : 0;
+      HTTP.Response r = reads.run(tableName+"\0"+row+"\0"+((column == null) ? "" : column), () -> readRequest(tableName, row, column, path));
+      if (cache != null)
+        cache.put(row, column, r, epoch);
+      return r;
+    } catch (IOException | RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException(e);
+    }
+  }
+
+  // A cell (or with column == null, a whole row) over the binary protocol if possible, else HTTP
+  HTTP.Response readRequest(String tableName, String row, String column, String path) throws IOException {
+    BinaryProtocol.Writer req = (column == null) ? new BinaryProtocol.Writer(BinaryProtocol.GET_ROW).putString(tableName).putString(row)
+                                                 : new BinaryProtocol.Writer(BinaryProtocol.GET).putString(tableName).putString(row).putString(column);
+    HTTP.Response r = binaryRowRequest(row, req);
+    return (r != null) ? r : keyRequest("GET", row, path, null);
+  }
+
+  // Called after every write of a row: later reads must not join an older request or use the cache
+  void forgetReads(String tableName, String row) {
+    reads.forgetPrefix(tableName+"\0"+row+"\0");
+    ReadCache cache = cacheFor(tableName);
+    if (cache != null)
+      cache.invalidate(row);
+  }
+
+  // Reads answered by another caller's request, and read requests actually sent (totals for
+  // all clients in this JVM; also reported as kvsclient.coalesce.* metrics).
+  public long coalescedReads() {
+    return reads.shared();
+  }
+
+  public long uncoalescedReads() {
+    return reads.leaders();
+  }
+
+  // ------------------------ Read cache ------------------------
+
+  // Caches are shared by all clients of the same coordinator in this JVM, since clients are
+  // often created per request (see ReadCache). Keys are "<coordinator>/<table>".
+  static final Map<String,ReadCache> caches = new java.util.concurrent.ConcurrentHashMap<String,ReadCache>();
+
+  // Hit and miss counts of one table's cache since it was enabled
+  public static class CacheStats {
+    public long hits, negativeHits, misses, evictions, expirations, entries, bytes, maxBytes;
+
+    public double hitRatio() {
+      return (hits + misses == 0) ? 0 : hits / (double)(hits + misses);
+    }
+
+    public String toString() {
+      return String.format("%d hits (%d negative), %d misses, hit ratio %.3f, %d entries, %d/%d bytes, %d evictions, %d expired",
+                           hits, negativeHits, misses, hitRatio(), entries, bytes, maxBytes, evictions, expirations);
+    }
+  }
+
+  // Caches reads of the table (getRow, get, existsRow, getRows) in this JVM: up to maxBytes,
+  // least-recently-used rows first out; values are kept for ttlMillis and rows or cells that do
+  // not exist for negativeTtlMillis. Writes through KVSClient in this JVM invalidate their row;
+  // writes by other processes are seen once the entries expire, so this is for tables that change
+  // slowly. Enabling again with the same settings keeps the cache, other settings replace it.
+  public void enableCache(String tableName, long maxBytes, long ttlMillis, long negativeTtlMillis) {
+    caches.compute(coordinator+"/"+tableName, (k, old) ->
+      ((old != null) && old.sameSettings(maxBytes, ttlMillis, negativeTtlMillis)) ? old : new ReadCache(tableName, maxBytes, ttlMillis, negativeTtlMillis));
+  }
+
+  public void enableCache(String tableName, long maxBytes, long ttlMillis) {
+    enableCache(tableName, maxBytes, ttlMillis, ttlMillis);
+  }
+
+  public void disableCache(String tableName) {
+    ReadCache cache = caches.remove(coordinator+"/"+tableName);
+    if (cache != null)
+      cache.clear();
+  }
+
+  // Drops what is cached about one row, or with row == null about the whole table, e.g. after
+  // another process has changed it
+  public void invalidateCache(String tableName, String rowOrNull) {
+    ReadCache cache = cacheFor(tableName);
+    if (cache == null)
+      return;
+    if (rowOrNull == null)
+      cache.clear();
+    else
+      cache.invalidate(rowOrNull);
+  }
+
+  // null if the table has no cache
+  public CacheStats cacheStats(String tableName) {
+    ReadCache cache = cacheFor(tableName);
+    return (cache == null) ? null : cache.stats();
+  }
+
+  ReadCache cacheFor(String tableName) {
+    return caches.isEmpty() ? null : caches.get(coordinator+"/"+tableName);
+  }
+
   public Row getRow(String tableName, String row) throws IOException {
     if (!haveWorkers)
       downloadWorkers();
     if (row.equals(""))
       throw new RuntimeException("Row key can't be empty!");
 
-    HTTP.Response resp = HTTP.doRequest("GET", "http://"+workers.elementAt(workerIndexForKey(row)).address+"/data/"+tableName+"/"+java.net.URLEncoder.encode(row, "UTF-8"), null);
+    HTTP.Response resp = coalescedGet(tableName, row, null, "/data/"+tableName+"/"+java.net.URLEncoder.encode(row, "UTF-8"));
     if (resp.statusCode() == 404)
       return null;
 
-    byte[] result = resp.body();
+    return decodeRow(tableName, row, resp.body());
+  }
+
+  static Row decodeRow(String tableName, String row, byte[] bytes) {
     try {
-      return Row.readFrom(new ByteArrayInputStream(result));
+      return Row.readFrom(new ByteArrayInputStream(bytes));
     } catch (Exception e) {
-      throw new RuntimeException("Decoding error while reading Row '"+row+"' in table '"+tableName+"' from getRow() URL (encoded as '"+java.net.URLEncoder.encode(row, "UTF-8")+"')");
+      throw new RuntimeException("Decoding error while reading Row '"+row+"' in table '"+tableName+"'");
+    }
+  }
+
+  static final int GET_BATCH_ROWS = 256;
+
+  // Reads many rows; a worker with a binary port is asked for up to GET_BATCH_ROWS of them per
+  // request. Rows that do not exist are left out of the result.
+  public Map<String,Row> getRows(String tableName, Collection<String> rows) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    ReadCache cache = cacheFor(tableName);
+    long epoch = (cache != null) ? cache.epoch() : 0;
+    Map<String,Row> result = new HashMap<String,Row>();
+    Map<String,List<String>> byWorker = new HashMap<String,List<String>>();
+    for (String key : new LinkedHashSet<String>(rows)) {
+      if (key.equals(""))
+        throw new RuntimeException("Row key can't be empty!");
+      HTTP.Response hit = (cache != null) ? cache.get(key, null) : null;
+      if (hit != null) {
+        if (hit.statusCode() == 200)
+          result.put(key, decodeRow(tableName, key, hit.body()));
+        continue;
+      }
+      byWorker.computeIfAbsent(workerForKey(key).address, a -> new ArrayList<String>()).add(key);
+    }
+
+    for (Map.Entry<String,List<String>> e : byWorker.entrySet()) {
+      List<String> keys = e.getValue();
+      String bin = binaryAddress(e.getKey());
+      int i = 0;
+      if (bin != null) {
+        try {
+          while (i < keys.size()) {
+            List<String> batch = keys.subList(i, Math.min(keys.size(), i+GET_BATCH_ROWS));
+            BinaryProtocol.Writer req = new BinaryProtocol.Writer(BinaryProtocol.GET_ROWS).putString(tableName).putInt(batch.size());
+            for (String key : batch)
+              req.putString(key);
+            BinaryClient.Reply r = binaryCall(bin, req);
+            if (r.status != BinaryProtocol.OK)
+              throw new IOException("Batched read from "+tableName+" failed: "+((r.status == BinaryProtocol.ERROR) ? r.fields.getString() : "status "+r.status));
+            for (String key : batch) {
+              byte[] row = (r.fields.getInt() == 0) ? null : r.fields.getBytes();
+              if (cache != null)
+                cache.put(key, null, (row == null) ? ReadCache.NOT_FOUND : new HTTP.Response(row, Collections.emptyMap(), 200), epoch);
+              if (row != null)
+                result.put(key, decodeRow(tableName, key, row));
+            }
+            i += batch.size();
+          }
+        } catch (IOException ioe) {
+          binaryFailed(e.getKey(), ioe);
+        }
+      }
+      for (; i<keys.size(); i++) {
+        String key = keys.get(i);
+        HTTP.Response resp = fetch(tableName, key, null, "/data/"+tableName+"/"+java.net.URLEncoder.encode(key, "UTF-8"), cache);
+        if (resp.statusCode() == 200)
+          result.put(key, decodeRow(tableName, key, resp.body()));
+      }
     }
+    return result;
   }
 
   public byte[] get(String tableName, String row, String column) throws IOException {
@@ -305,33 +1228,537 @@ public class KVSClient implements KVS {
     if (row.equals(""))
       throw new RuntimeException("Row key can't be empty!");
 
-    HTTP.Response res = HTTP.doRequest("GET", "http://"+workers.elementAt(workerIndexForKey(row)).address+"/data/"+tableName+"/"+java.net.URLEncoder.encode(row, "UTF-8")+"/"+java.net.URLEncoder.encode(column, "UTF-8"), null);
-    return ((res != null) && (res.statusCode() == 200)) ? res.body() : null;
+    HTTP.Response res = coalescedGet(tableName, row, column, "/data/"+tableName+"/"+java.net.URLEncoder.encode(row, "UTF-8")+"/"+java.net.URLEncoder.encode(column, "UTF-8"));
+    return ((res != null) && (res.statusCode() == 200)) ? res.body().clone() : null;
   }
 
   public boolean existsRow(String tableName, String row) throws FileNotFoundException, IOException {
     if (!haveWorkers)
       downloadWorkers();
 
-    HTTP.Response r = HTTP.doRequest("GET", "http://"+workers.elementAt(workerIndexForKey(row)).address+"/data/"+tableName+"/"+java.net.URLEncoder.encode(row, "UTF-8"), null);
+    String path = "/data/"+tableName+"/"+java.net.URLEncoder.encode(row, "UTF-8");
+    HTTP.Response r = (cacheFor(tableName) != null) ? coalescedGet(tableName, row, null, path) : readRequest(tableName, row, null, path);
     return r.statusCode() == 200;
   }
 
+  // Asks all workers at once; throws an IOException naming the workers that did not answer
   public int count(String tableName) throws IOException {
+    int total = 0;
+    for (int n : countPerWorker(tableName, FANOUT_DEADLINE_MS).check("Count of "+tableName).results.values())
+      total += n;
+    return total;
+  }
+
+  // The row count of each worker (including replica copies, as in count())
+  public FanOut<Integer> countPerWorker(String tableName, long deadlineMillis) throws IOException {
+    FanOut<Integer> result = fanOut(deadlineMillis, countCall(tableName));
+    rememberCounts(tableName, result.results);
+    return result;
+  }
+
+  WorkerCall<Integer> countCall(String tableName) {
+    return (address, deadline) -> Integer.valueOf(new String(expect200(request("GET", "http://"+address+"/count/"+tableName, null, deadline)).body()).trim());
+  }
+
+  // Row counts per worker and table ("<address>/<table>") that count(), countPerWorker() or
+  // stats() saw recently, for countApproximate(); shared by the clients in this JVM
+  static final class KnownCount {
+    final long rows, at;
+
+    KnownCount(long rowsArg, long atArg) {
+      rows = rowsArg;
+      at = atArg;
+    }
+  }
+
+  static final Map<String,KnownCount> knownCounts = new ConcurrentHashMap<String,KnownCount>();
+
+  static void rememberCounts(String tableName, Map<String,? extends Number> perWorker) {
+    long now = System.currentTimeMillis();
+    for (Map.Entry<String,? extends Number> e : perWorker.entrySet())
+      knownCounts.put(e.getKey()+"/"+tableName, new KnownCount(e.getValue().longValue(), now));
+  }
+
+  static void forgetCounts(String tableName) {
+    knownCounts.keySet().removeIf(k -> k.substring(k.indexOf('/')+1).equals(tableName));
+  }
+
+  // Like count(), but served from the workers' counts seen in the last maxAgeMillis; only the
+  // workers without such a count are asked. A worker that does not answer contributes its last
+  // known count, or nothing if there is none, so the result is for progress reports and the like.
+  public int countApproximate(String tableName, long maxAgeMillis) throws IOException {
     if (!haveWorkers)
       downloadWorkers();
-
-    int total = 0;
+    long now = System.currentTimeMillis(), total = 0;
+    List<String> stale = new ArrayList<String>();
     for (WorkerEntry w : workers) {
-      HTTP.Response r = HTTP.doRequest("GET", "http://"+w.address+"/count/"+tableName, null);
+      KnownCount k = knownCounts.get(w.address+"/"+tableName);
+      if ((k != null) && (now - k.at <= maxAgeMillis))
+        total += k.rows;
+      else
+        stale.add(w.address);
+    }
+    if (stale.isEmpty()) {
+      Metrics.inc("kvsclient.count.approximateHits");
+      return (int)total;
+    }
+
+    FanOut<Integer> fresh = fanOut(stale, FANOUT_DEADLINE_MS, countCall(tableName));
+    rememberCounts(tableName, fresh.results);
+    for (int n : fresh.results.values())
+      total += n;
+    for (String address : fresh.errors.keySet()) {
+      KnownCount k = knownCounts.get(address+"/"+tableName);
+      if (k != null)
+        total += k.rows;
+    }
+    return (int)total;
+  }
+
+  // Table statistics summed over all workers (see stats()).
+  public static class Stats {
+    public long rows, bytes, lastModified;
+    public boolean approximate;
+    public final Map<String,Long> columnRows = new TreeMap<String,Long>();
+    public final Map<String,Long> columnBytes = new TreeMap<String,Long>();
+    // Approximate key deciles of the whole table (first and last key included)
+    public final List<String> keyQuantiles = new ArrayList<String>();
+    public final Map<String,Long> rowsPerWorker = new TreeMap<String,Long>();
+
+    public long avgBytes(String column) {
+      Long n = columnRows.get(column), b = columnBytes.get(column);
+      return ((n == null) || (n <= 0)) ? 0 : b/n;
+    }
+
+    public String toString() {
+      return rows+" rows, "+bytes+" bytes, columns "+columnBytes.keySet()+(approximate ? " (approximate)" : "");
+    }
+  }
+
+  // Like count(), this includes replica copies that workers hold. Key quantiles are merged
+  // from each worker's deciles, weighted by the worker's row count.
+  public Stats stats(String tableName) throws IOException {
+    String path = "/stats/"+java.net.URLEncoder.encode(tableName, "UTF-8");
+    FanOut<String> answers = fanOut(FANOUT_DEADLINE_MS, (address, deadline) ->
+      new String(expect200(request("GET", "http://"+address+path, null, deadline)).body(), "UTF-8"));
+    answers.check("Statistics of "+tableName);
+
+    Stats st = new Stats();
+    TreeMap<String,Double> weighted = new TreeMap<String,Double>();
+    for (Map.Entry<String,String> answer : answers.results.entrySet()) {
+      long workerRows = 0;
+      List<String> quantiles = new ArrayList<String>();
+      for (String line : answer.getValue().split("\n")) {
+        int sp = line.indexOf(' ');
+        if (sp < 0)
+          continue;
+        String name = line.substring(0, sp), value = line.substring(sp+1);
+        if (name.equals("rows"))
+          workerRows = Long.parseLong(value);
+        else if (name.equals("bytes"))
+          st.bytes += Long.parseLong(value);
+        else if (name.equals("lastModified"))
+          st.lastModified = Math.max(st.lastModified, Long.parseLong(value));
+        else if (name.equals("approximate"))
+          st.approximate |= value.equals("true");
+        else if (name.startsWith("column.") && name.endsWith(".rows"))
+          st.columnRows.merge(name.substring(7, name.length()-5), Long.parseLong(value), Long::sum);
+        else if (name.startsWith("column.") && name.endsWith(".bytes"))
+          st.columnBytes.merge(name.substring(7, name.length()-6), Long.parseLong(value), Long::sum);
+        else if (name.startsWith("quantile."))
+          quantiles.add(java.net.URLDecoder.decode(value, "UTF-8"));
+      }
+      st.rows += workerRows;
+      st.rowsPerWorker.put(answer.getKey(), workerRows);
+      // Each boundary key stands for an equal share of the worker's rows
+      for (String q : quantiles)
+        weighted.merge(q, (double)workerRows/quantiles.size(), Double::sum);
+    }
+
+    double total = 0, seen = 0;
+    for (double v : weighted.values())
+      total += v;
+    int next = 0;
+    for (Map.Entry<String,Double> e : weighted.entrySet()) {
+      seen += e.getValue();
+      while ((next <= 10) && (seen >= total*next/10.0 - 1e-9) && (total > 0)) {
+        st.keyQuantiles.add(e.getKey());
+        next++;
+      }
+    }
+    if ((next <= 10) && !weighted.isEmpty())
+      while (next++ <= 10)
+        st.keyQuantiles.add(weighted.lastKey());
+    rememberCounts(tableName, st.rowsPerWorker);
+    return st;
+  }
+
+  // One {workerAddress, startRow, endRowExclusive} per key range a worker owns (null = open).
+  // The last worker also owns the wrap-around range below the first worker's ID. Restricting
+  // worker-side requests to these ranges keeps replicas from being counted twice.
+  String[][] ownedRanges() throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    int n = workers.size();
+    String[][] out = new String[n+1][];
+    out[0] = new String[] { workers.elementAt(n-1).address, null, workers.elementAt(0).id };
+    for (int i=0; i<n; i++)
+      out[i+1] = new String[] { workers.elementAt(i).address, workers.elementAt(i).id, (i<n-1) ? workers.elementAt(i+1).id : null };
+    return out;
+  }
+
+  String rangeURL(String[] range, String path, String params) throws IOException {
+    String url = "http://"+range[0]+path+"?"+((params == null) ? "" : params);
+    if (range[1] != null)
+      url += "&startRow="+java.net.URLEncoder.encode(range[1], "UTF-8");
+    if (range[2] != null)
+      url += "&endRowExclusive="+java.net.URLEncoder.encode(range[2], "UTF-8");
+    return url;
+  }
+
+  // Key ranges that together cover the table, perWorkerRange of them for each range a worker
+  // serves, split at boundaries the worker picks so that the pieces hold about the same amount
+  // of data. Each range is { startRow, endRowExclusive }, with null for an open end. A range
+  // whose worker cannot be reached stays in one piece.
+  public List<String[]> splitRanges(String tableName, int perWorkerRange) throws IOException {
+    String[][] ranges = ownedRanges();
+    FanOut<List<String>> splits = fanOutRanges(ranges, FANOUT_DEADLINE_MS, (range, deadline) -> {
+      List<String> cuts = new ArrayList<String>();
+      if (perWorkerRange > 1) {
+        HTTP.Response r = request("GET", rangeURL(range, "/splits/"+java.net.URLEncoder.encode(tableName, "UTF-8"), "n="+perWorkerRange), null, deadline);
+        if ((r != null) && (r.statusCode() == 200))
+          for (String line : new String(r.body(), "UTF-8").split("\n"))
+            if (!line.isEmpty())
+              cuts.add(java.net.URLDecoder.decode(line, "UTF-8"));
+      }
+      return cuts;
+    });
+
+    List<String[]> out = new ArrayList<String[]>();
+    for (String[] range : ranges) {
+      List<String> cuts = splits.results.getOrDefault(rangeLabel(range), Collections.emptyList());
+      String start = range[1];
+      for (String cut : cuts) {
+        out.add(new String[] { start, cut });
+        start = cut;
+      }
+      out.add(new String[] { start, range[2] });
+    }
+    return out;
+  }
+
+  // Uniform random sample of up to n rows, drawn on the workers. Each worker returns a
+  // shuffled reservoir sample of its range plus the range's population; the client then
+  // draws from the per-worker samples in proportion to the remaining populations.
+  public List<Row> sample(String tableName, int n) throws IOException {
+    String[][] ranges = ownedRanges();
+    FanOut<HTTP.Response> answers = fanOutRanges(ranges, FANOUT_DEADLINE_MS, (range, deadline) ->
+      request("GET", rangeURL(range, "/sample/"+java.net.URLEncoder.encode(tableName, "UTF-8"), "n="+n), null, deadline));
+    answers.check("Sample of "+tableName);
+
+    List<LinkedList<Row>> samples = new ArrayList<LinkedList<Row>>();
+    long[] population = new long[ranges.length];
+    long total = 0;
+    for (int i=0; i<ranges.length; i++) {
+      LinkedList<Row> rows = new LinkedList<Row>();
+      HTTP.Response r = answers.results.get(rangeLabel(ranges[i]));
       if ((r != null) && (r.statusCode() == 200)) {
-        String result = new String(r.body());
-        total += Integer.valueOf(result).intValue();
+        ByteArrayInputStream in = new ByteArrayInputStream(r.body());
+        try {
+          Row row;
+          while ((row = Row.readFrom(in)) != null)
+            rows.add(row);
+        } catch (Exception e) {
+          throw new IOException("Decoding error in sample of '"+tableName+"' from "+ranges[i][0]);
+        }
+        String pop = r.headers().get("x-population");
+        population[i] = (pop == null) ? rows.size() : Long.parseLong(pop);
       }
-    } 
+      samples.add(rows);
+      total += population[i];
+    }
+
+    Random rnd = new Random();
+    List<Row> result = new ArrayList<Row>();
+    while ((result.size() < n) && (total > 0)) {
+      long pick = (long)(rnd.nextDouble() * total);
+      int i = 0;
+      while (pick >= population[i]) {
+        pick -= population[i];
+        i++;
+      }
+      population[i]--;
+      total--;
+      if (!samples.get(i).isEmpty())
+        result.add(samples.get(i).removeFirst());
+    }
+    return result;
+  }
+
+  String aggregate(String[] range, String tableName, String column, String op, long deadline) throws IOException {
+    HTTP.Response r = request("GET", rangeURL(range, "/aggregate/"+java.net.URLEncoder.encode(tableName, "UTF-8")+"/"+java.net.URLEncoder.encode(column, "UTF-8"), "op="+op), null, deadline);
+    if ((r == null) || (r.statusCode() != 200))
+      throw new IOException("Aggregate '"+op+"' on "+tableName+"/"+column+" failed at "+range[0]);
+    return new String(r.body(), "UTF-8").trim();
+  }
+
+  // The aggregate over every owned range, all asked at once
+  Collection<String> aggregateAll(String tableName, String column, String op) throws IOException {
+    return fanOutRanges(ownedRanges(), FANOUT_DEADLINE_MS, (range, deadline) -> aggregate(range, tableName, column, op, deadline))
+      .check("Aggregate '"+op+"' on "+tableName+"/"+column).results.values();
+  }
+
+  // Number of rows that have the given column, computed on the workers.
+  public long countWithColumn(String tableName, String column) throws IOException {
+    long total = 0;
+    for (String count : aggregateAll(tableName, column, "count"))
+      total += Long.parseLong(count);
     return total;
   }
 
+  // Count of rows per distinct value of the given column, computed on the workers.
+  public Map<String,Long> histogram(String tableName, String column) throws IOException {
+    Map<String,Long> result = new HashMap<String,Long>();
+    for (String answer : aggregateAll(tableName, column, "histogram")) {
+      for (String line : answer.split("\n")) {
+        int sp = line.indexOf(' ');
+        if (sp <= 0)
+          continue;
+        result.merge(java.net.URLDecoder.decode(line.substring(sp+1), "UTF-8"), Long.parseLong(line.substring(0, sp)), Long::sum);
+      }
+    }
+    return result;
+  }
+
+  // {number of rows with a numeric value in the column, sum of those values}
+  double[] numericAggregate(String tableName, String column) throws IOException {
+    double[] result = new double[2];
+    for (String answer : aggregateAll(tableName, column, "sum")) {
+      String[] pcs = answer.split(" ");
+      result[0] += Long.parseLong(pcs[0]);
+      result[1] += Double.parseDouble(pcs[1]);
+    }
+    return result;
+  }
+
+  public double sum(String tableName, String column) throws IOException {
+    return numericAggregate(tableName, column)[1];
+  }
+
+  // Average over the rows whose value in the column is numeric; NaN if there are none.
+  public double average(String tableName, String column) throws IOException {
+    double[] agg = numericAggregate(tableName, column);
+    return (agg[0] == 0) ? Double.NaN : agg[1] / agg[0];
+  }
+
+  // Declares a secondary index on every worker. 'derive' is "value" (index the column as is)
+  // or "host" (index the host part of a URL column).
+  public void createIndex(String tableName, String indexName, String column, String derive) throws IOException {
+    String path = "/index/"+java.net.URLEncoder.encode(tableName, "UTF-8")+"/"+java.net.URLEncoder.encode(indexName, "UTF-8");
+    byte[] body = (column+" "+derive).getBytes("UTF-8");
+    fanOut(FANOUT_DEADLINE_MS, (address, deadline) -> expect200(request("PUT", "http://"+address+path, body, deadline)))
+      .check("Creating index '"+indexName+"' on "+tableName);
+  }
+
+  public void dropIndex(String tableName, String indexName) throws IOException {
+    putToAll("/dropindex/"+java.net.URLEncoder.encode(tableName, "UTF-8")+"/"+java.net.URLEncoder.encode(indexName, "UTF-8"), null);
+  }
+
+  String indexQuery(String[] range, String path, String params, long deadline) throws IOException {
+    HTTP.Response r = request("GET", rangeURL(range, path, params), null, deadline);
+    if (r == null)
+      throw new IOException("Index query failed at "+range[0]);
+    if (r.statusCode() == 503)
+      throw new IOException("Index is still building on "+range[0]+"; retry later");
+    if (r.statusCode() != 200)
+      throw new IOException("Index query failed at "+range[0]+" ("+r.statusCode()+")");
+    return new String(r.body(), "UTF-8");
+  }
+
+  // Keys of the rows whose indexed value equals 'value', in key order.
+  Collection<String> indexQueryAll(String path, String params) throws IOException {
+    return fanOutRanges(ownedRanges(), FANOUT_DEADLINE_MS, (range, deadline) -> indexQuery(range, path, params, deadline))
+      .check("Index query").results.values();
+  }
+
+  public List<String> lookup(String tableName, String indexName, String value) throws IOException {
+    String path = "/index/"+java.net.URLEncoder.encode(tableName, "UTF-8")+"/"+java.net.URLEncoder.encode(indexName, "UTF-8")+"/"+java.net.URLEncoder.encode(value, "UTF-8");
+    TreeSet<String> rows = new TreeSet<String>();
+    for (String answer : indexQueryAll(path, null))
+      for (String line : answer.split("\n"))
+        if (!line.isEmpty())
+          rows.add(java.net.URLDecoder.decode(line, "UTF-8"));
+    return new ArrayList<String>(rows);
+  }
+
+  // Indexed values in [fromValue, toValueExclusive) (null = open) with their row keys.
+  public SortedMap<String,List<String>> lookupRange(String tableName, String indexName, String fromValue, String toValueExclusive) throws IOException {
+    String path = "/index/"+java.net.URLEncoder.encode(tableName, "UTF-8")+"/"+java.net.URLEncoder.encode(indexName, "UTF-8");
+    String params = "";
+    if (fromValue != null)
+      params = "from="+java.net.URLEncoder.encode(fromValue, "UTF-8");
+    if (toValueExclusive != null)
+      params = (params.equals("") ? "" : (params+"&"))+"to="+java.net.URLEncoder.encode(toValueExclusive, "UTF-8");
+
+    TreeMap<String,List<String>> result = new TreeMap<String,List<String>>();
+    for (String answer : indexQueryAll(path, params)) {
+      for (String line : answer.split("\n")) {
+        int sp = line.indexOf(' ');
+        if (sp <= 0)
+          continue;
+        String value = java.net.URLDecoder.decode(line.substring(0, sp), "UTF-8");
+        result.computeIfAbsent(value, v -> new ArrayList<String>()).add(java.net.URLDecoder.decode(line.substring(sp+1), "UTF-8"));
+      }
+    }
+    for (List<String> rows : result.values())
+      Collections.sort(rows);
+    return result;
+  }
+
+  // Makes a job JAR available to every worker for runOnRows(); returns its content-derived name.
+  // Workers that already have the JAR are skipped.
+  public String uploadJAR(byte[] jar) throws IOException {
+    String name;
+    try {
+      StringBuilder sb = new StringBuilder();
+      for (byte b : java.security.MessageDigest.getInstance("SHA-1").digest(jar))
+        sb.append(String.format("%02x", b));
+      name = sb.toString();
+    } catch (java.security.NoSuchAlgorithmException e) {
+      throw new RuntimeException("SHA-1 not supported?!?");
+    }
+
+    fanOut(FANOUT_DEADLINE_MS, (address, deadline) -> {
+      HTTP.Response have = request("GET", "http://"+address+"/jar/"+name, null, deadline);
+      if ((have != null) && (have.statusCode() == 200))
+        return have;
+      return expect200(request("PUT", "http://"+address+"/jar/"+name, jar, deadline));
+    }).check("JAR upload");
+    return name;
+  }
+
+  static String readToken(InputStream in) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    while (true) {
+      int b = in.read();
+      if (b < 0)
+        throw new EOFException("Truncated response");
+      if ((b == ' ') || (b == '\n'))
+        return sb.toString();
+      sb.append((char)b);
+    }
+  }
+
+  // Runs a serialized function (any Serializable with an op(Row) method whose class is in the
+  // uploaded JAR) on the workers that own [startRow, endRowExclusive), and returns the string
+  // forms of the non-null results. Only the results cross the network.
+  public List<String> runOnRows(String tableName, String startRow, String endRowExclusive, String jarName, byte[] function) throws IOException {
+    List<String[]> ranges = new ArrayList<String[]>();
+    for (String[] owned : ownedRanges()) {
+      String lo = owned[1], hi = owned[2];
+      if ((startRow != null) && ((lo == null) || (startRow.compareTo(lo) > 0)))
+        lo = startRow;
+      if ((endRowExclusive != null) && ((hi == null) || (endRowExclusive.compareTo(hi) < 0)))
+        hi = endRowExclusive;
+      if ((lo != null) && (hi != null) && (lo.compareTo(hi) >= 0))
+        continue;
+      ranges.add(new String[] { owned[0], lo, hi });
+    }
+
+    List<String> results = new ArrayList<String>();
+    FanOut<List<String>> parts = fanOutRanges(ranges.toArray(new String[0][]), UDF_DEADLINE_MS, (range, deadline) -> runOnRange(range, tableName, jarName, function, deadline));
+    for (List<String> part : parts.check("Row function on "+tableName).results.values())
+      results.addAll(part);
+    return results;
+  }
+
+  static final long UDF_DEADLINE_MS = 60*60*1000;
+
+  // Gives up (SocketTimeoutException) once the deadline has passed, so that the request does not
+  // outlive the fan-out that reported it as timed out
+  List<String> runOnRange(String[] range, String tableName, String jarName, byte[] function, long deadline) throws IOException {
+    List<String> results = new ArrayList<String>();
+    String url = rangeURL(range, "/udf/"+java.net.URLEncoder.encode(tableName, "UTF-8"), "jar="+jarName);
+    long left = deadline - System.currentTimeMillis();
+    if (left <= 0)
+      throw new SocketTimeoutException("Deadline exceeded before sending POST "+url);
+    try (HTTP.StreamingResponse r = HTTP.doStreamingRequest("POST", url, function, (int) Math.min(300000, left), left)) {
+      if (r == null)
+        throw new IOException("Invalid URL: "+url);
+      if (r.statusCode() != 200)
+        throw new IOException("Row function failed ("+r.statusCode()+"): "+new String(r.body().readAllBytes(), "UTF-8"));
+
+      InputStream in = new BufferedInputStream(r.body());
+      while (true) {
+        if (System.currentTimeMillis() > deadline)
+          throw new SocketTimeoutException("Deadline exceeded while reading the results from "+url);
+        String tok = readToken(in);
+        if (tok.equals("end")) {
+          readToken(in);
+          readToken(in);
+          break;
+        }
+        byte[] value = in.readNBytes(Integer.parseInt(tok));
+        if (in.read() != '\n')
+          throw new IOException("Framing error in row function results");
+        results.add(new String(value, "UTF-8"));
+      }
+    }
+    return results;
+  }
+
+  // Merged stream of the row changes to a table across all workers, resuming from offsets
+  // previously obtained from ChangeStream.offsets() (null starts from the oldest retained change).
+  // Only changes made while the table's change logging is on (setChangeLog()) are seen.
+  public ChangeStream subscribe(String tableName, Map<String,String> offsets) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    List<String[]> ws = new ArrayList<String[]>();
+    Map<String,List<String[]>> owned = new HashMap<String,List<String[]>>();
+    int n = workers.size();
+    for (int i=0; i<n; i++) {
+      WorkerEntry w = workers.elementAt(i);
+      ws.add(new String[] { w.id, w.address });
+      List<String[]> ranges = new ArrayList<String[]>();
+      ranges.add(new String[] { w.id, (i<n-1) ? workers.elementAt(i+1).id : null });
+      if (i == n-1)
+        ranges.add(new String[] { null, workers.elementAt(0).id });
+      owned.put(w.id, ranges);
+    }
+    return new ChangeStream(tableName, ws, owned, offsets);
+  }
+
+  // Takes a snapshot of a persistent table on every worker, under one ID, and returns that ID.
+  // Scans with the ID read the table as of the snapshot (each worker's own point in time)
+  // until it is released or its lease runs out.
+  public String createSnapshot(String tableName, long leaseMillis) throws IOException {
+    String chars = "abcdefghijklmnopqrstuvwxyz0123456789";
+    Random rnd = new Random();
+    String id = "";
+    for (int i=0; i<12; i++)
+      id += chars.charAt(rnd.nextInt(chars.length()));
+
+    String path = "/snapshot/"+java.net.URLEncoder.encode(tableName, "UTF-8")+"?id="+id+"&lease="+leaseMillis;
+    FanOut<HTTP.Response> result = fanOut(FANOUT_DEADLINE_MS, (address, deadline) -> expect200(request("POST", "http://"+address+path, null, deadline)));
+    if (!result.complete()) {
+      releaseSnapshot(tableName, id);
+      result.check("Snapshot of "+tableName);
+    }
+    return id;
+  }
+
+  // Extends the lease of a snapshot; false if it has already expired on some worker.
+  public boolean renewSnapshot(String tableName, String snapshotID, long leaseMillis) throws IOException {
+    String path = "/snapshot/"+java.net.URLEncoder.encode(tableName, "UTF-8")+"/"+snapshotID;
+    return fanOut(FANOUT_DEADLINE_MS, (address, deadline) -> expect200(request("PUT", "http://"+address+path, (""+leaseMillis).getBytes(), deadline))).complete();
+  }
+
+  public void releaseSnapshot(String tableName, String snapshotID) throws IOException {
+    putToAll("/dropsnapshot/"+java.net.URLEncoder.encode(tableName, "UTF-8")+"/"+snapshotID, null);
+  }
+
   public Iterator<Row> scan(String tableName) throws FileNotFoundException, IOException {
     return scan(tableName, null, null);
   }
@@ -343,6 +1770,26 @@ public class KVSClient implements KVS {
     return new KVSIterator(tableName, startRow, endRowExclusive);
   }
 
+  // Scan as of a snapshot taken with createSnapshot()
+  public Iterator<Row> scan(String tableName, String startRow, String endRowExclusive, String snapshotID) throws FileNotFoundException, IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    return new KVSIterator(tableName, startRow, endRowExclusive, snapshotID);
+  }
+
+  // Reads all ranges concurrently (see ParallelScan); ordered=false returns rows as they arrive
+  public ParallelScan scanParallel(String tableName, String startRow, String endRowExclusive, boolean ordered) throws IOException {
+    return scanParallel(tableName, startRow, endRowExclusive, ordered, ParallelScan.DEFAULT_PREFETCH_ROWS);
+  }
+
+  public ParallelScan scanParallel(String tableName, String startRow, String endRowExclusive, boolean ordered, int prefetchRowsPerRange) throws IOException {
+    if (!haveWorkers)
+      downloadWorkers();
+
+    return new ParallelScan(tableName, scanRanges(tableName, startRow, endRowExclusive, null), ordered, prefetchRowsPerRange);
+  }
+
   public static void main(String args[]) throws Exception {
   	if (args.length < 2) {
       System.err.println("Syntax: client <coordinator> get <tableName> <row> <column>");
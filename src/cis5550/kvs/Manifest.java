@@ -0,0 +1,251 @@
+package cis5550.kvs;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cis5550.tools.KeyEncoder;
+import cis5550.tools.Metrics;
+
+/**
+ * Per-table key manifest for persistent (pt-) tables: the sorted row keys with the size of
+ * each row file, plus row/byte totals. Counts and scans are answered from memory instead of
+ * walking the table directory.
+ *
+ * The manifest is checkpointed to <table>/.manifest. On startup a checkpoint is trusted for
+ * every row bucket (the __xx subdirectory a row file lives in) whose directory has not been
+ * modified since the checkpoint; only the modified buckets are re-listed from disk. Creating
+ * or deleting a row file bumps its directory's mtime, so key sets are exact; only the byte
+ * sizes of rows overwritten after the last checkpoint can be stale after a crash.
+ */
+final class Manifest {
+
+  static final String FILE_NAME = ".manifest";
+  private static final String VERSION = "v1";
+  // Directory mtimes can be coarse; re-list buckets touched shortly before the checkpoint too.
+  private static final long MTIME_SLACK_MS = 2000;
+
+  static final class Table {
+    final ConcurrentSkipListMap<String, Long> rows = new ConcurrentSkipListMap<>();
+    final AtomicLong bytes = new AtomicLong();
+    volatile boolean dirty;
+
+    int rowCount() { return rows.size(); }
+    long byteCount() { return bytes.get(); }
+
+    void put(String row, long size) {
+      Long old = rows.put(row, size);
+      bytes.addAndGet(size - ((old == null) ? 0 : old));
+      dirty = true;
+    }
+
+    void remove(String row) {
+      Long old = rows.remove(row);
+      if (old != null) { bytes.addAndGet(-old); dirty = true; }
+    }
+
+    /** Sorted keys in [startRow, endRowExclusive); either bound may be null. */
+    NavigableSet<String> range(String startRow, String endRowExclusive) {
+      NavigableMap<String, Long> m = rows;
+      if (startRow != null && !startRow.isEmpty()) m = m.tailMap(startRow, true);
+      if (endRowExclusive != null && !endRowExclusive.isEmpty()) m = m.headMap(endRowExclusive, false);
+      return m.navigableKeySet();
+    }
+  }
+
+  private static String rootDir;
+  private static final Map<String, Table> tables = new ConcurrentHashMap<>();
+
+  private Manifest() {}
+
+  static void init(String root) {
+    rootDir = root;
+  }
+
+  /** The manifest of a table, loaded from its checkpoint or rebuilt from disk on first use. */
+  static Table of(String table) {
+    return tables.computeIfAbsent(table, Manifest::load);
+  }
+
+  static void recordWrite(String table, String row, long size) {
+    of(table).put(row, size);
+  }
+
+  static void recordDelete(String table, String row) {
+    of(table).remove(row);
+  }
+
+  static void dropTable(String table) {
+    tables.remove(table);
+  }
+
+  static void renameTable(String oldName, String newName) {
+    Table t = tables.remove(oldName);
+    if (t != null) tables.put(newName, t);
+  }
+
+  // ------------------------- Loading -------------------------
+
+  // Same rule as Worker.rowPathEncoded(), without encoding the whole (possibly long) key.
+  static String bucketOf(String row) {
+    if (row.length() < 6) {
+      String enc = KeyEncoder.encode(row);
+      return (enc.length() >= 6) ? "__" + enc.substring(0, 2) : "";
+    }
+    return "__" + KeyEncoder.encode(row.substring(0, 2)).substring(0, 2);
+  }
+
+  private static Table load(String table) {
+    Path dir = Paths.get(rootDir, table);
+    Table t = new Table();
+    if (!Files.isDirectory(dir)) return t;
+
+    long checkpointAt = readCheckpoint(dir.resolve(FILE_NAME), t);
+    if (checkpointAt < 0) return rebuild(dir);
+
+    // Find buckets modified since the checkpoint (including ones that disappeared). The
+    // table directory itself always qualifies, since the checkpoint is written into it,
+    // but it only holds the bucket directories and a few short-keyed rows.
+    Set<String> stale = new HashSet<>();
+    Set<String> present = new HashSet<>();
+    long cutoff = checkpointAt - MTIME_SLACK_MS;
+    try {
+      if (Files.getLastModifiedTime(dir).toMillis() >= cutoff) stale.add("");
+      try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+        for (Path p : ds) {
+          String name = p.getFileName().toString();
+          if (!Files.isDirectory(p) || !name.startsWith("__")) continue;
+          present.add(name);
+          if (Files.getLastModifiedTime(p).toMillis() >= cutoff) stale.add(name);
+        }
+      }
+    } catch (IOException e) {
+      return rebuild(dir);
+    }
+
+    Iterator<Map.Entry<String, Long>> it = t.rows.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, Long> e = it.next();
+      String b = bucketOf(e.getKey());
+      if (stale.contains(b) || (!b.isEmpty() && !present.contains(b))) {
+        t.bytes.addAndGet(-e.getValue());
+        it.remove();
+      }
+    }
+    for (String b : stale) listBucket(dir, b, t);
+    Metrics.add("kvs.manifest.rebuiltBuckets", stale.size());
+    t.dirty = !stale.isEmpty();
+    return t;
+  }
+
+  private static Table rebuild(Path dir) {
+    Table t = new Table();
+    listBucket(dir, "", t);
+    try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+      for (Path p : ds)
+        if (Files.isDirectory(p) && p.getFileName().toString().startsWith("__"))
+          listBucket(dir, p.getFileName().toString(), t);
+    } catch (IOException ignored) {}
+    Metrics.inc("kvs.manifest.rebuiltTables");
+    t.dirty = true;
+    return t;
+  }
+
+  // Returns the checkpoint time, or -1 if there is no usable checkpoint.
+  private static long readCheckpoint(Path file, Table t) {
+    if (!Files.exists(file)) return -1;
+    try (BufferedReader br = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      String[] hdr = br.readLine().split(" ");
+      if (hdr.length != 4 || !hdr[0].equals(VERSION)) return -1;
+      long at = Long.parseLong(hdr[1]);
+      long expectRows = Long.parseLong(hdr[2]), expectBytes = Long.parseLong(hdr[3]);
+      String line;
+      while ((line = br.readLine()) != null) {
+        int sp = line.lastIndexOf(' ');
+        if (sp <= 0) return -1;
+        t.put(KeyEncoder.decode(line.substring(0, sp)), Long.parseLong(line.substring(sp + 1)));
+      }
+      // A truncated or partially written checkpoint fails these checks and is rebuilt.
+      if (t.rowCount() != expectRows || t.byteCount() != expectBytes) return -1;
+      return at;
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
+  private static void listBucket(Path tableDir, String bucket, Table t) {
+    Path dir = bucket.isEmpty() ? tableDir : tableDir.resolve(bucket);
+    if (!Files.isDirectory(dir)) return;
+    try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+      for (Path p : ds) {
+        String name = p.getFileName().toString();
+        if (name.startsWith(".") || !Files.isRegularFile(p)) continue;
+        t.put(KeyEncoder.decode(name), Files.size(p));
+      }
+    } catch (IOException ignored) {}
+  }
+
+  /** Loads every table's manifest up front; returns the number of tables loaded. */
+  static int loadAll(Collection<String> persistentTables) {
+    int n = 0;
+    for (String table : persistentTables) { of(table); n++; }
+    return n;
+  }
+
+  // ----------------------- Checkpointing -----------------------
+
+  static void checkpoint(String table, Table t) throws IOException {
+    Path dir = Paths.get(rootDir, table);
+    if (!Files.isDirectory(dir)) return;
+    t.dirty = false;
+    long at = System.currentTimeMillis();
+    // Copy first so the header totals match the entries even while writes continue.
+    TreeMap<String, Long> snap = new TreeMap<>(t.rows);
+    long total = 0;
+    for (long v : snap.values()) total += v;
+
+    Path tmp = dir.resolve(FILE_NAME + ".tmp");
+    try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+      w.write(VERSION + " " + at + " " + snap.size() + " " + total + "\n");
+      for (Map.Entry<String, Long> e : snap.entrySet()) {
+        w.write(KeyEncoder.encode(e.getKey()));
+        w.write(' ');
+        w.write(Long.toString(e.getValue()));
+        w.write('\n');
+      }
+    }
+    Files.move(tmp, dir.resolve(FILE_NAME), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    Metrics.inc("kvs.manifest.checkpoints");
+  }
+
+  static void checkpointAll() {
+    for (Map.Entry<String, Table> e : tables.entrySet()) {
+      Table t = e.getValue();
+      Metrics.set("kvs.table." + e.getKey() + ".rows", t.rowCount());
+      Metrics.set("kvs.table." + e.getKey() + ".bytes", t.byteCount());
+      if (!t.dirty) continue;
+      try {
+        checkpoint(e.getKey(), t);
+      } catch (IOException ioe) {
+        t.dirty = true;
+        System.err.println("Manifest checkpoint failed for " + e.getKey() + ": " + ioe.getMessage());
+      }
+    }
+  }
+
+  static void startCheckpointer(long intervalMs) {
+    Thread t = new Thread(() -> {
+      while (true) {
+        try { Thread.sleep(intervalMs); } catch (InterruptedException ie) { return; }
+        checkpointAll();
+      }
+    }, "ManifestCheckpointer");
+    t.setDaemon(true);
+    t.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(Manifest::checkpointAll, "ManifestShutdown"));
+  }
+}
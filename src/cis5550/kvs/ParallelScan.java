@@ -0,0 +1,159 @@
+package cis5550.kvs;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import cis5550.tools.HTTP;
+import cis5550.tools.Metrics;
+
+/**
+ * A scan that reads all key ranges of a table at once. Each range (see KVSClient.scanRanges())
+ * is streamed by its own thread into a bounded buffer, so the workers send rows concurrently
+ * and a full-table scan runs about as fast as the slowest worker instead of the sum of all.
+ *
+ * Unordered scans hand out rows from whichever range has one ready. Ordered scans return rows
+ * in key order: the ranges are disjoint and each comes back sorted, so the merge of the ranges
+ * is simply their concatenation in key order, while the later ranges are already prefetching.
+ * As with scan(), a range that cannot be read (missing table, worker down) is logged and skipped.
+ * close() stops the readers; a scan that is abandoned without it ends its readers after a while.
+ */
+public class ParallelScan implements Iterator<Row>, Closeable {
+
+  public static final int DEFAULT_PREFETCH_ROWS = 64;   // per range
+  static final int READ_TIMEOUT_MS = 300000;             // 5 minutes per read, as in scan()
+  static final long OFFER_WAIT_MS = 1000;
+  static final long ABANDON_MS = 10*60*1000;             // reader gives up if nobody takes rows
+
+  static final Row END = new Row("");                    // marks the end of one range
+
+  final String tableName;
+  final Vector<String> ranges;
+  final boolean ordered;
+  // Ordered: one buffer per range; unordered: a single buffer shared by all readers
+  final List<BlockingQueue<Row>> buffers = new ArrayList<BlockingQueue<Row>>();
+  final List<Thread> readers = new ArrayList<Thread>();
+  volatile boolean closed;
+  int current;             // ordered: range being returned; unordered: ranges that have ended
+  Row nextRow;
+
+  ParallelScan(String tableNameArg, Vector<String> rangesArg, boolean orderedArg, int prefetchRows) {
+    tableName = tableNameArg;
+    ranges = rangesArg;
+    ordered = orderedArg;
+    prefetchRows = Math.max(1, prefetchRows);
+    if (ordered) {
+      for (int i=0; i<ranges.size(); i++)
+        buffers.add(new ArrayBlockingQueue<Row>(prefetchRows));
+    } else {
+      buffers.add(new ArrayBlockingQueue<Row>(prefetchRows*Math.max(1, ranges.size())));
+    }
+    for (int i=0; i<ranges.size(); i++) {
+      final int index = i;
+      final BlockingQueue<Row> buffer = buffers.get(ordered ? i : 0);
+      Thread t = new Thread(() -> read(index, buffer), "KVSScan-"+tableName+"-"+i);
+      t.setDaemon(true);
+      readers.add(t);
+    }
+    for (Thread t : readers)
+      t.start();
+    Metrics.inc("kvsclient.parallelScans");
+  }
+
+  // Streams one range into its buffer; always finishes with END so the consumer never waits forever
+  void read(int index, BlockingQueue<Row> buffer) {
+    String url = ranges.elementAt(index);
+    HTTP.StreamingResponse response = null;
+    long rows = 0;
+    try {
+      int overloadRetries = 0;
+      while (true) {
+        response = HTTP.doStreamingRequest("GET", url, null, READ_TIMEOUT_MS);
+        if (!KVSClient.isOverloaded(response.statusCode()) || (overloadRetries >= KVSClient.SCAN_MAX_ATTEMPTS))
+          break;
+        long delay = KVSClient.backoffMillis(overloadRetries++, response.headers().get("retry-after"));
+        response.close();
+        response = null;
+        Thread.sleep(delay);
+      }
+      if (response.statusCode() == 404)
+        throw new FileNotFoundException(url);
+      if (response.statusCode() != 200)
+        throw new IOException("Server returned HTTP response code: "+response.statusCode()+" for URL: "+url);
+
+      InputStream in = response.body();
+      Row r;
+      while (!closed && ((r = Row.readFrom(in)) != null)) {
+        if (!offer(buffer, r))
+          return;
+        rows ++;
+      }
+    } catch (InterruptedException ie) {
+      return;
+    } catch (FileNotFoundException fnfe) {
+      System.err.println("ParallelScan: Range "+index+" not found: "+fnfe.getMessage());
+    } catch (Exception e) {
+      if (!closed)
+        System.err.println("ParallelScan: Error reading range "+index+" of "+tableName+" after "+rows+" rows: "+e.getMessage());
+    } finally {
+      if (response != null)
+        response.close();
+      Metrics.add("kvsclient.parallelScan.rows", rows);
+      Thread.interrupted();    // close() interrupts us, but a consumer may still be waiting for END
+      offer(buffer, END);
+    }
+  }
+
+  // Waits for room in the buffer, giving up if the scan is closed or nobody has taken a row for ABANDON_MS
+  boolean offer(BlockingQueue<Row> buffer, Row r) {
+    long waited = 0;
+    try {
+      while (!buffer.offer(r, OFFER_WAIT_MS, TimeUnit.MILLISECONDS)) {
+        waited += OFFER_WAIT_MS;
+        if (closed || (waited >= ABANDON_MS))
+          return false;
+      }
+      return true;
+    } catch (InterruptedException ie) {
+      return false;
+    }
+  }
+
+  Row take() throws InterruptedException {
+    while (current < ranges.size()) {
+      Row r = buffers.get(ordered ? current : 0).take();
+      if (r != END)
+        return r;
+      current ++;
+    }
+    return null;
+  }
+
+  public synchronized boolean hasNext() {
+    if (nextRow != null)
+      return true;
+    if (closed)
+      return false;
+    try {
+      nextRow = take();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    return (nextRow != null);
+  }
+
+  public synchronized Row next() {
+    if (!hasNext())
+      throw new NoSuchElementException();
+    Row r = nextRow;
+    nextRow = null;
+    return r;
+  }
+
+  public void close() {
+    closed = true;
+    for (Thread t : readers)
+      t.interrupt();
+  }
+}
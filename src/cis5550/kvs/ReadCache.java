@@ -0,0 +1,162 @@
+package cis5550.kvs;
+
+import java.util.*;
+
+import cis5550.tools.HTTP;
+import cis5550.tools.Metrics;
+
+/**
+ * Client-side cache of what was read from one table (see KVSClient.enableCache()): whole rows
+ * and single cells, as the workers' responses. Entries are grouped by row, so that a write can
+ * drop everything cached about its row, and rows are evicted least-recently-used once the cache
+ * holds more than maxBytes. Entries expire after ttlMillis; rows or cells that do not exist are
+ * remembered as well (negative entries), for negativeTtlMillis.
+ *
+ * Writes through KVSClient in this JVM invalidate their row. A read that was in flight while
+ * anything in the table was invalidated is not stored, since it may have fetched the value from
+ * before the write. Writes by other processes are seen once the entries have expired.
+ */
+final class ReadCache {
+
+  static final long ENTRY_OVERHEAD = 96;     // rough per-entry cost of keys, maps and the response
+  static final HTTP.Response NOT_FOUND = new HTTP.Response(new byte[0], Collections.emptyMap(), 404);
+
+  private static final class Entry {
+    final HTTP.Response response;
+    final long expires;
+    final long size;
+
+    Entry(HTTP.Response responseArg, long expiresArg, long sizeArg) {
+      response = responseArg;
+      expires = expiresArg;
+      size = sizeArg;
+    }
+  }
+
+  final String tableName;
+  final long maxBytes, ttlMillis, negativeTtlMillis;
+  // row -> column ("" for the whole row) -> entry, in LRU order of the rows
+  private final LinkedHashMap<String, Map<String, Entry>> rows = new LinkedHashMap<>(256, 0.75f, true);
+  private long bytes, entries, epoch;
+  private long hits, negativeHits, misses, evictions, expirations;
+
+  ReadCache(String tableNameArg, long maxBytesArg, long ttlMillisArg, long negativeTtlMillisArg) {
+    tableName = tableNameArg;
+    maxBytes = maxBytesArg;
+    ttlMillis = ttlMillisArg;
+    negativeTtlMillis = negativeTtlMillisArg;
+  }
+
+  boolean sameSettings(long maxBytesArg, long ttlMillisArg, long negativeTtlMillisArg) {
+    return (maxBytes == maxBytesArg) && (ttlMillis == ttlMillisArg) && (negativeTtlMillis == negativeTtlMillisArg);
+  }
+
+  /** The cached response for a cell (or with column == null, the whole row), or null on a miss. */
+  synchronized HTTP.Response get(String row, String column) {
+    String col = (column == null) ? "" : column;
+    Map<String, Entry> cols = rows.get(row);
+    Entry e = (cols == null) ? null : cols.get(col);
+    if ((e != null) && (e.expires <= System.currentTimeMillis())) {
+      remove(row, cols, col, e);
+      expirations ++;
+      e = null;
+    }
+    // A row that does not exist has no cells either
+    if ((e == null) && (column != null) && (cols != null)) {
+      Entry whole = cols.get("");
+      if ((whole != null) && (whole.response.statusCode() == 404) && (whole.expires > System.currentTimeMillis()))
+        e = whole;
+    }
+    if (e == null) {
+      misses ++;
+      Metrics.inc("kvsclient.cache.misses");
+      return null;
+    }
+    hits ++;
+    Metrics.inc("kvsclient.cache.hits");
+    if (e.response.statusCode() == 404)
+      negativeHits ++;
+    return e.response;
+  }
+
+  /** Changes whenever something in the table is invalidated; read it before sending the request. */
+  synchronized long epoch() {
+    return epoch;
+  }
+
+  /** Stores a 200 or 404 response unless the table has been invalidated since epochAtStart. */
+  synchronized void put(String row, String column, HTTP.Response r, long epochAtStart) {
+    if ((r == null) || (epochAtStart != epoch))
+      return;
+    boolean found = (r.statusCode() == 200);
+    if (!found && (r.statusCode() != 404))
+      return;
+    long ttl = found ? ttlMillis : negativeTtlMillis;
+    String col = (column == null) ? "" : column;
+    long size = ENTRY_OVERHEAD + 2L*(row.length() + col.length()) + (found ? r.body().length : 0);
+    if ((ttl <= 0) || (size > maxBytes))
+      return;
+
+    Map<String, Entry> cols = rows.computeIfAbsent(row, k -> new HashMap<String, Entry>(4));
+    Entry old = cols.put(col, new Entry(found ? r : NOT_FOUND, System.currentTimeMillis() + ttl, size));
+    if (old != null) {
+      bytes -= old.size;
+      entries --;
+    }
+    bytes += size;
+    entries ++;
+
+    Iterator<Map.Entry<String, Map<String, Entry>>> it = rows.entrySet().iterator();
+    while ((bytes > maxBytes) && it.hasNext()) {
+      Map.Entry<String, Map<String, Entry>> eldest = it.next();
+      if (eldest.getKey().equals(row))
+        continue;
+      for (Entry e : eldest.getValue().values()) {
+        bytes -= e.size;
+        entries --;
+        evictions ++;
+      }
+      it.remove();
+    }
+  }
+
+  /** Drops everything cached about the row. */
+  synchronized void invalidate(String row) {
+    epoch ++;
+    Map<String, Entry> cols = rows.remove(row);
+    if (cols != null) {
+      for (Entry e : cols.values()) {
+        bytes -= e.size;
+        entries --;
+      }
+    }
+  }
+
+  synchronized void clear() {
+    epoch ++;
+    rows.clear();
+    bytes = 0;
+    entries = 0;
+  }
+
+  private void remove(String row, Map<String, Entry> cols, String col, Entry e) {
+    cols.remove(col);
+    if (cols.isEmpty())
+      rows.remove(row);
+    bytes -= e.size;
+    entries --;
+  }
+
+  synchronized KVSClient.CacheStats stats() {
+    KVSClient.CacheStats s = new KVSClient.CacheStats();
+    s.hits = hits;
+    s.negativeHits = negativeHits;
+    s.misses = misses;
+    s.evictions = evictions;
+    s.expirations = expirations;
+    s.entries = entries;
+    s.bytes = bytes;
+    s.maxBytes = maxBytes;
+    return s;
+  }
+}
@@ -0,0 +1,215 @@
+package cis5550.kvs;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import cis5550.tools.URLParser;
+
+/**
+ * Declarative secondary indexes over the local rows of a KVS worker. An index maps a value
+ * derived from one column (the value itself, or e.g. the host of a URL) to the keys of the rows
+ * that have it, and is kept up to date on every write to the table.
+ *
+ * Definitions of indexes on persistent tables are saved in <table>/.indexes so they survive a
+ * restart; the index contents live in memory and are rebuilt from the table in the background.
+ */
+final class SecondaryIndex {
+
+  static final String DEFS_FILE = ".indexes";
+  static final List<String> DERIVATIONS = List.of("value", "host");
+
+  final String name, column, derive;
+  // value -> row keys, plus the reverse mapping so an update can drop the old entry
+  private final ConcurrentSkipListMap<String, ConcurrentSkipListSet<String>> byValue = new ConcurrentSkipListMap<>();
+  private final ConcurrentHashMap<String, String> valueOf = new ConcurrentHashMap<>();
+  // Rows written while the background build runs; the build must not overwrite them.
+  private volatile Set<String> touchedDuringBuild;
+  volatile boolean ready;
+
+  private SecondaryIndex(String name, String column, String derive) {
+    this.name = name; this.column = column; this.derive = derive;
+  }
+
+  // table -> index name -> index
+  private static final Map<String, Map<String, SecondaryIndex>> indexes = new ConcurrentHashMap<>();
+  private static String rootDir;
+
+  static void init(String root) {
+    rootDir = root;
+  }
+
+  // ------------------------- Maintenance -------------------------
+
+  String derive(byte[] raw) {
+    if (raw == null) return null;
+    String v = new String(raw, StandardCharsets.UTF_8);
+    if (derive.equals("host")) {
+      String host = URLParser.parseURL(v)[1];
+      return (host == null || host.isEmpty()) ? null : host.toLowerCase(Locale.ROOT);
+    }
+    return v;
+  }
+
+  private synchronized void set(String row, String value) {
+    String old = (value == null) ? valueOf.remove(row) : valueOf.put(row, value);
+    if (old != null && !old.equals(value)) {
+      ConcurrentSkipListSet<String> rows = byValue.get(old);
+      if (rows != null) {
+        rows.remove(row);
+        if (rows.isEmpty()) byValue.remove(old, rows);
+      }
+    }
+    if (value != null) byValue.computeIfAbsent(value, v -> new ConcurrentSkipListSet<>()).add(row);
+  }
+
+  private synchronized void liveSet(String row, String value) {
+    Set<String> touched = touchedDuringBuild;
+    if (touched != null) touched.add(row);
+    set(row, value);
+  }
+
+  // The row was read before taking the lock; a live write since then wins.
+  private synchronized void buildSet(String row, String value) {
+    if (!touchedDuringBuild.contains(row)) set(row, value);
+  }
+
+  /** After a single-cell write; only indexes on that column are affected. */
+  static void onWrite(String table, String row, String column, byte[] value) {
+    Map<String, SecondaryIndex> m = indexes.get(table);
+    if (m == null) return;
+    for (SecondaryIndex ix : m.values())
+      if (ix.column.equals(column)) ix.liveSet(row, ix.derive(value));
+  }
+
+  /** After a whole-row write (or any write where the full row is at hand). */
+  static void onRowWrite(String table, String row, Map<String, byte[]> cols) {
+    Map<String, SecondaryIndex> m = indexes.get(table);
+    if (m == null) return;
+    for (SecondaryIndex ix : m.values()) ix.liveSet(row, ix.derive(cols.get(ix.column)));
+  }
+
+  static void onRowDelete(String table, String row) {
+    Map<String, SecondaryIndex> m = indexes.get(table);
+    if (m == null) return;
+    for (SecondaryIndex ix : m.values()) ix.liveSet(row, null);
+  }
+
+  static void dropTable(String table) {
+    indexes.remove(table);
+  }
+
+  static void renameTable(String oldName, String newName) {
+    Map<String, SecondaryIndex> m = indexes.remove(oldName);
+    if (m != null) indexes.put(newName, m);
+  }
+
+  // ------------------------- Definitions -------------------------
+
+  interface RowSource {
+    Collection<String> keys(String table);
+    Map<String, byte[]> row(String table, String key);
+  }
+
+  /**
+   * Declares (or replaces) an index and starts building it from the existing rows.
+   * Returns false if the derivation is unknown.
+   */
+  static boolean define(String table, String name, String column, String derive, boolean persist, RowSource src) {
+    if (!DERIVATIONS.contains(derive)) return false;
+    SecondaryIndex ix = new SecondaryIndex(name, column, derive);
+    ix.touchedDuringBuild = ConcurrentHashMap.newKeySet();
+    indexes.computeIfAbsent(table, t -> new ConcurrentHashMap<>()).put(name, ix);
+    if (persist) saveDefinitions(table);
+
+    Thread t = new Thread(() -> {
+      for (String key : src.keys(table)) {
+        if (ix.touchedDuringBuild.contains(key)) continue;
+        Map<String, byte[]> cols = src.row(table, key);
+        if (cols != null) ix.buildSet(key, ix.derive(cols.get(column)));
+      }
+      synchronized (ix) { ix.touchedDuringBuild = null; }
+      ix.ready = true;
+      System.out.println("Secondary index " + table + "/" + name + " built: " + ix.valueOf.size() + " rows");
+    }, "IndexBuild-" + table + "-" + name);
+    t.setDaemon(true);
+    t.start();
+    return true;
+  }
+
+  /** Rebuilds every index of a table from scratch, e.g. after rows were adopted in bulk. */
+  static void rebuild(String table, RowSource src) {
+    for (SecondaryIndex ix : new ArrayList<>(list(table)))
+      define(table, ix.name, ix.column, ix.derive, false, src);
+  }
+
+  static boolean remove(String table, String name, boolean persist) {
+    Map<String, SecondaryIndex> m = indexes.get(table);
+    if (m == null || m.remove(name) == null) return false;
+    if (persist) saveDefinitions(table);
+    return true;
+  }
+
+  static SecondaryIndex get(String table, String name) {
+    Map<String, SecondaryIndex> m = indexes.get(table);
+    return (m == null) ? null : m.get(name);
+  }
+
+  static Collection<SecondaryIndex> list(String table) {
+    Map<String, SecondaryIndex> m = indexes.get(table);
+    return (m == null) ? Collections.emptyList() : m.values();
+  }
+
+  // One "<name> <column> <derive>" line per index.
+  private static void saveDefinitions(String table) {
+    StringBuilder sb = new StringBuilder();
+    for (SecondaryIndex ix : list(table))
+      sb.append(ix.name).append(' ').append(ix.column).append(' ').append(ix.derive).append('\n');
+    try {
+      Path dir = Paths.get(rootDir, table);
+      Files.createDirectories(dir);
+      Files.writeString(dir.resolve(DEFS_FILE), sb.toString(), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      System.err.println("Cannot save index definitions for " + table + ": " + e.getMessage());
+    }
+  }
+
+  /** Re-declares the saved indexes of every persistent table (contents rebuild in the background). */
+  static void loadDefinitions(Collection<String> persistentTables, RowSource src) {
+    for (String table : persistentTables) {
+      Path f = Paths.get(rootDir, table, DEFS_FILE);
+      if (!Files.exists(f)) continue;
+      try {
+        for (String line : Files.readAllLines(f, StandardCharsets.UTF_8)) {
+          String[] p = line.trim().split(" ");
+          if (p.length == 3) define(table, p[0], p[1], p[2], false, src);
+        }
+      } catch (IOException e) {
+        System.err.println("Cannot load index definitions for " + table + ": " + e.getMessage());
+      }
+    }
+  }
+
+  // --------------------------- Queries ---------------------------
+
+  /** Row keys with exactly this value. */
+  SortedSet<String> lookup(String value) {
+    ConcurrentSkipListSet<String> rows = byValue.get(value);
+    return (rows == null) ? Collections.emptySortedSet() : rows;
+  }
+
+  /** Values in [from, toExclusive) with their row keys; either bound may be null. */
+  NavigableMap<String, ConcurrentSkipListSet<String>> range(String from, String toExclusive) {
+    NavigableMap<String, ConcurrentSkipListSet<String>> m = byValue;
+    if (from != null && !from.isEmpty()) m = m.tailMap(from, true);
+    if (toExclusive != null && !toExclusive.isEmpty()) m = m.headMap(toExclusive, false);
+    return m;
+  }
+
+  int distinctValues() { return byValue.size(); }
+  int indexedRows() { return valueOf.size(); }
+}
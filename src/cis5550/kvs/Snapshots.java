@@ -0,0 +1,221 @@
+package cis5550.kvs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import cis5550.tools.Metrics;
+
+/**
+ * Point-in-time snapshots of persistent (pt-) tables, kept copy-on-write.
+ *
+ * Row files are only ever replaced atomically (written to a temporary file, then renamed over
+ * the old one), so the previous version of a row stays intact as its own file until unlinked.
+ * A snapshot records the table's key set when it was taken; before a row in that set is
+ * replaced for the first time, the current file is hard-linked into
+ * <table>/.snapshots/<id>/. Reads as of the snapshot use that preserved link if there is one
+ * and the live file otherwise, so no row is copied unless it actually changes.
+ *
+ * Snapshots are held under a lease that must be renewed, and are released explicitly or when
+ * the lease runs out. They do not survive a worker restart.
+ */
+final class Snapshots {
+
+  static final String DIR = ".snapshots";
+  static final long DEFAULT_LEASE_MS = 10 * 60_000;
+
+  static final class Snapshot {
+    final String id;
+    final long createdAt;
+    final NavigableSet<String> keys;
+    // Rows whose snapshot version has been linked into the snapshot directory
+    final Set<String> preserved = ConcurrentHashMap.newKeySet();
+    volatile long leaseUntil;
+
+    Snapshot(String id, NavigableSet<String> keys, long leaseMs) {
+      this.id = id;
+      this.createdAt = System.currentTimeMillis();
+      this.keys = keys;
+      this.leaseUntil = createdAt + leaseMs;
+    }
+
+    /** Keys as of the snapshot in [startRow, endRowExclusive); either bound may be null. */
+    NavigableSet<String> range(String startRow, String endRowExclusive) {
+      NavigableSet<String> s = keys;
+      if (startRow != null && !startRow.isEmpty()) s = s.tailSet(startRow, true);
+      if (endRowExclusive != null && !endRowExclusive.isEmpty()) s = s.headSet(endRowExclusive, false);
+      return s;
+    }
+  }
+
+  private static String rootDir;
+  // table -> snapshot id -> snapshot
+  private static final Map<String, Map<String, Snapshot>> snapshots = new ConcurrentHashMap<>();
+  // Writers share a table's lock; taking a snapshot excludes them briefly for a clean cut.
+  private static final Map<String, ReentrantReadWriteLock> locks = new ConcurrentHashMap<>();
+
+  private Snapshots() {}
+
+  static boolean validId(String id) {
+    return id != null && id.matches("[A-Za-z0-9_-]{1,64}");
+  }
+
+  /** Removes snapshot directories left over from before a restart. */
+  static void init(String root, Collection<String> persistentTables) {
+    rootDir = root;
+    for (String table : persistentTables) deleteQuietly(Paths.get(rootDir, table, DIR));
+  }
+
+  private static Path dir(String table, String id) {
+    return Paths.get(rootDir, table, DIR, id);
+  }
+
+  /** The lock a writer holds while replacing row files of a table. */
+  static Lock writerLock(String table) {
+    return locks.computeIfAbsent(table, t -> new ReentrantReadWriteLock()).readLock();
+  }
+
+  /** Excludes every writer of the table (e.g. while row files are moved to the cold tier). */
+  static Lock tableLock(String table) {
+    return locks.computeIfAbsent(table, t -> new ReentrantReadWriteLock()).writeLock();
+  }
+
+  /** True if some snapshot of the table includes the row. */
+  static boolean covers(String table, String row) {
+    Map<String, Snapshot> m = snapshots.get(table);
+    if (m == null) return false;
+    for (Snapshot s : m.values())
+      if (s.keys.contains(row)) return true;
+    return false;
+  }
+
+  // ------------------------- Lifecycle -------------------------
+
+  /** Takes a snapshot of the given key set; returns null if the ID is already in use. */
+  static Snapshot create(String table, String id, long leaseMs, Manifest.Table manifest) {
+    Lock l = locks.computeIfAbsent(table, t -> new ReentrantReadWriteLock()).writeLock();
+    l.lock();
+    try {
+      Map<String, Snapshot> m = snapshots.computeIfAbsent(table, t -> new ConcurrentHashMap<>());
+      if (m.containsKey(id)) return null;
+      Snapshot s = new Snapshot(id, Collections.unmodifiableNavigableSet(new TreeSet<>(manifest.rows.navigableKeySet())), leaseMs);
+      m.put(id, s);
+      Metrics.inc("kvs.snapshot.created");
+      return s;
+    } finally {
+      l.unlock();
+    }
+  }
+
+  /** The snapshot, or null if it is unknown, released, or its lease has run out. */
+  static Snapshot get(String table, String id) {
+    Map<String, Snapshot> m = snapshots.get(table);
+    Snapshot s = (m == null || id == null) ? null : m.get(id);
+    if (s == null) return null;
+    if (s.leaseUntil < System.currentTimeMillis()) {
+      release(table, id);
+      return null;
+    }
+    return s;
+  }
+
+  static boolean renew(String table, String id, long leaseMs) {
+    Snapshot s = get(table, id);
+    if (s == null) return false;
+    s.leaseUntil = System.currentTimeMillis() + leaseMs;
+    return true;
+  }
+
+  static boolean release(String table, String id) {
+    Map<String, Snapshot> m = snapshots.get(table);
+    Snapshot s = (m == null) ? null : m.remove(id);
+    if (s == null) return false;
+    deleteQuietly(dir(table, id));
+    Metrics.inc("kvs.snapshot.released");
+    return true;
+  }
+
+  static void expireLeases() {
+    long now = System.currentTimeMillis();
+    int active = 0;
+    for (Map.Entry<String, Map<String, Snapshot>> e : snapshots.entrySet())
+      for (Snapshot s : new ArrayList<>(e.getValue().values())) {
+        if (s.leaseUntil < now) {
+          System.out.println("Snapshot " + e.getKey() + "/" + s.id + " expired");
+          release(e.getKey(), s.id);
+        } else {
+          active++;
+        }
+      }
+    Metrics.set("kvs.snapshot.active", active);
+  }
+
+  static Collection<Snapshot> list(String table) {
+    Map<String, Snapshot> m = snapshots.get(table);
+    return (m == null) ? Collections.emptyList() : m.values();
+  }
+
+  // The directories go away with the table itself.
+  static void dropTable(String table) {
+    snapshots.remove(table);
+  }
+
+  static void renameTable(String oldName, String newName) {
+    Map<String, Snapshot> m = snapshots.remove(oldName);
+    if (m != null) snapshots.put(newName, m);
+  }
+
+  // ----------------------- Copy-on-write -----------------------
+
+  /**
+   * Called (under the writer lock) right before a row file is replaced: links the current
+   * version into every snapshot that covers the row and has not preserved it yet.
+   */
+  static void beforeReplace(String table, String row, Path live) throws IOException {
+    Map<String, Snapshot> m = snapshots.get(table);
+    if (m == null || m.isEmpty()) return;
+    for (Snapshot s : m.values()) {
+      if (!s.keys.contains(row) || s.preserved.contains(row)) continue;
+      Path d = dir(table, s.id);
+      Files.createDirectories(d);
+      try {
+        Files.createLink(d.resolve(live.getFileName()), live);
+      } catch (FileAlreadyExistsException e) {
+        // A concurrent writer linked the same (still unreplaced) version first
+      } catch (UnsupportedOperationException e) {
+        Files.copy(live, d.resolve(live.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+      }
+      s.preserved.add(row);
+      Metrics.inc("kvs.snapshot.preservedRows");
+    }
+  }
+
+  /** The bytes of the row file as of the snapshot, or null if the row was not in it. */
+  static byte[] read(Snapshot s, String table, String row, Path live) throws IOException {
+    if (!s.keys.contains(row)) return null;
+    if (!s.preserved.contains(row)) {
+      // Open first: if the row is still not preserved afterwards, the file we opened is the
+      // version from before any replacement (writers preserve before they replace).
+      try (InputStream in = Files.newInputStream(live)) {
+        if (!s.preserved.contains(row)) return in.readAllBytes();
+      } catch (NoSuchFileException e) {
+        if (!s.preserved.contains(row)) return null;
+      }
+    }
+    return Files.readAllBytes(dir(table, s.id).resolve(live.getFileName()));
+  }
+
+  private static void deleteQuietly(Path p) {
+    if (!Files.exists(p)) return;
+    try (DirectoryStream<Path> ds = Files.isDirectory(p) ? Files.newDirectoryStream(p) : null) {
+      if (ds != null) for (Path c : ds) deleteQuietly(c);
+      Files.deleteIfExists(p);
+    } catch (IOException e) {
+      System.err.println("Cannot delete " + p + ": " + e.getMessage());
+    }
+  }
+}
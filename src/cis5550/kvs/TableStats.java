@@ -0,0 +1,289 @@
+package cis5550.kvs;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cis5550.tools.Metrics;
+
+/**
+ * Per-table statistics kept up to date by the write paths: for each column, how many rows
+ * have it and how many value bytes it holds, plus the time of the last write. Row counts come
+ * from the manifest (persistent tables) or the table map (in-memory tables), and key quantiles
+ * are computed from the row keys on request and cached briefly.
+ *
+ * Stats of persistent tables are checkpointed to <table>/.stats together with the manifest's
+ * row and byte totals at that moment. If those no longer match on startup (e.g. after a crash),
+ * the stats are rebuilt from the rows in the background and reported as approximate meanwhile.
+ * Like /count, the numbers cover every row the worker holds, including replica copies.
+ */
+final class TableStats {
+
+  static final String FILE_NAME = ".stats";
+  private static final String VERSION = "v1";
+  static final int QUANTILES = 10;                 // deciles: 11 boundary keys
+  private static final long QUANTILE_CACHE_MS = 30_000;
+  private static final long CHECKPOINT_INTERVAL_MS = 30_000;
+
+  /** Where the row keys and rows come from; supplied by the worker. */
+  interface Source {
+    int rowCount(String table);
+    Collection<String> keys(String table);          // sorted for persistent tables
+    Map<String, byte[]> row(String table, String key);
+  }
+
+  static final class Column {
+    final AtomicLong rows = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+  }
+
+  private static final class Stats {
+    final Map<String, Column> columns = new ConcurrentHashMap<>();
+    final AtomicLong lastModified = new AtomicLong();
+    volatile boolean approximate;
+    volatile boolean dirty;
+    volatile List<String> quantiles;
+    volatile long quantilesAt;
+    volatile int quantilesRows = -1;
+
+    Column column(String name) {
+      return columns.computeIfAbsent(name, n -> new Column());
+    }
+
+    void apply(String col, byte[] oldValue, byte[] newValue) {
+      if (oldValue == null && newValue == null) return;
+      Column c = column(col);
+      c.rows.addAndGet(((newValue != null) ? 1 : 0) - ((oldValue != null) ? 1 : 0));
+      c.bytes.addAndGet(((newValue != null) ? newValue.length : 0) - ((oldValue != null) ? oldValue.length : 0));
+      dirty = true;
+    }
+  }
+
+  private static String rootDir;
+  private static Source source;
+  private static final Map<String, Stats> tables = new ConcurrentHashMap<>();
+
+  private TableStats() {}
+
+  private static boolean isPersistent(String table) {
+    return table.startsWith("pt-");
+  }
+
+  private static Stats of(String table) {
+    return tables.computeIfAbsent(table, t -> new Stats());
+  }
+
+  // ------------------------- Write hooks -------------------------
+
+  static void onCellWrite(String table, String col, byte[] oldValue, byte[] newValue) {
+    Stats s = of(table);
+    s.apply(col, oldValue, newValue);
+    s.lastModified.set(System.currentTimeMillis());
+  }
+
+  /** A whole row was written; oldCols is the previous version, or null for a new row. */
+  static void onRowWrite(String table, Map<String, byte[]> oldCols, Map<String, byte[]> newCols) {
+    Stats s = of(table);
+    if (oldCols != null)
+      for (Map.Entry<String, byte[]> e : oldCols.entrySet())
+        s.apply(e.getKey(), e.getValue(), newCols.get(e.getKey()));
+    for (Map.Entry<String, byte[]> e : newCols.entrySet())
+      if (oldCols == null || !oldCols.containsKey(e.getKey()))
+        s.apply(e.getKey(), null, e.getValue());
+    s.lastModified.set(System.currentTimeMillis());
+  }
+
+  static void onRowDelete(String table, Map<String, byte[]> oldCols) {
+    Stats s = of(table);
+    for (Map.Entry<String, byte[]> e : oldCols.entrySet())
+      s.apply(e.getKey(), e.getValue(), null);
+    s.lastModified.set(System.currentTimeMillis());
+  }
+
+  static void dropTable(String table) {
+    tables.remove(table);
+  }
+
+  static void renameTable(String oldName, String newName) {
+    Stats s = tables.remove(oldName);
+    if (s != null) { s.quantiles = null; tables.put(newName, s); }
+  }
+
+  // ------------------------- Reporting -------------------------
+
+  /**
+   * "name value" lines: rows, bytes, lastModified, approximate, then per column
+   * column.<c>.rows/.bytes/.avgBytes, then quantile.<i> <URL-encoded key> for i = 0..QUANTILES
+   * (evenly spaced ranks, first and last key included; none for an empty table).
+   */
+  static String render(String table) {
+    Stats s = tables.getOrDefault(table, new Stats());
+    int rows = source.rowCount(table);
+    long total = 0;
+    StringBuilder cols = new StringBuilder();
+    for (Map.Entry<String, Column> e : new TreeMap<>(s.columns).entrySet()) {
+      long n = e.getValue().rows.get(), b = e.getValue().bytes.get();
+      if (n <= 0 && b <= 0) continue;
+      total += b;
+      cols.append("column.").append(e.getKey()).append(".rows ").append(n).append('\n');
+      cols.append("column.").append(e.getKey()).append(".bytes ").append(b).append('\n');
+      cols.append("column.").append(e.getKey()).append(".avgBytes ").append((n > 0) ? b / n : 0).append('\n');
+    }
+    StringBuilder sb = new StringBuilder();
+    sb.append("rows ").append(rows).append('\n');
+    sb.append("bytes ").append(total).append('\n');
+    sb.append("lastModified ").append(s.lastModified.get()).append('\n');
+    sb.append("approximate ").append(s.approximate).append('\n');
+    sb.append(cols);
+    List<String> q = quantiles(table, s, rows);
+    for (int i = 0; i < q.size(); i++)
+      sb.append("quantile.").append(i).append(' ').append(java.net.URLEncoder.encode(q.get(i), StandardCharsets.UTF_8)).append('\n');
+    return sb.toString();
+  }
+
+  private static List<String> quantiles(String table, Stats s, int rows) {
+    long now = System.currentTimeMillis();
+    List<String> q = s.quantiles;
+    if (q != null && s.quantilesRows == rows && now - s.quantilesAt < QUANTILE_CACHE_MS) return q;
+
+    List<String> keys;
+    Collection<String> all = source.keys(table);
+    if (isPersistent(table)) {
+      keys = new ArrayList<>(QUANTILES + 1);
+      int n = all.size(), i = 0, next = 0;
+      for (String k : all) {
+        if (n <= 0) break;
+        // Rank of the next boundary key: round(j * (n-1) / QUANTILES)
+        while (next <= QUANTILES && i == (int) Math.round((double) next * (n - 1) / QUANTILES)) {
+          keys.add(k);
+          next++;
+        }
+        if (next > QUANTILES) break;
+        i++;
+      }
+    } else {
+      List<String> sorted = new ArrayList<>(all);
+      Collections.sort(sorted);
+      keys = new ArrayList<>();
+      int n = sorted.size();
+      for (int j = 0; n > 0 && j <= QUANTILES; j++)
+        keys.add(sorted.get((int) Math.round((double) j * (n - 1) / QUANTILES)));
+    }
+    s.quantiles = keys;
+    s.quantilesAt = now;
+    s.quantilesRows = rows;
+    Metrics.inc("kvs.stats.quantileComputations");
+    return keys;
+  }
+
+  // ---------------------- Persistence ----------------------
+
+  /** Loads checkpointed stats of persistent tables; stale or missing ones are rebuilt in the background. */
+  static void init(String root, Source src, Collection<String> persistentTables) {
+    rootDir = root;
+    source = src;
+    List<String> stale = new ArrayList<>();
+    for (String table : persistentTables)
+      if (!load(table)) stale.add(table);
+    if (stale.isEmpty()) return;
+    for (String table : stale) of(table).approximate = true;
+    Thread t = new Thread(() -> {
+      for (String table : stale) {
+        try {
+          rebuild(table);
+        } catch (Exception e) {
+          System.err.println("Cannot rebuild statistics of " + table + ": " + e);
+        }
+      }
+    }, "TableStatsRebuild");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  private static boolean load(String table) {
+    Path f = Paths.get(rootDir, table, FILE_NAME);
+    Manifest.Table m = Manifest.of(table);
+    if (!Files.exists(f)) return m.rowCount() == 0;
+    try (BufferedReader br = Files.newBufferedReader(f, StandardCharsets.UTF_8)) {
+      String[] hdr = br.readLine().split(" ");
+      if (hdr.length != 4 || !hdr[0].equals(VERSION)) return false;
+      if (Long.parseLong(hdr[1]) != m.rowCount() || Long.parseLong(hdr[2]) != m.byteCount()) return false;
+      Stats s = new Stats();
+      s.lastModified.set(Long.parseLong(hdr[3]));
+      String line;
+      while ((line = br.readLine()) != null) {
+        String[] p = line.split(" ");
+        Column c = s.column(p[0]);
+        c.rows.set(Long.parseLong(p[1]));
+        c.bytes.set(Long.parseLong(p[2]));
+      }
+      tables.put(table, s);
+      return true;
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
+  // Recounts the columns of every row. Writes during the rebuild can make it slightly off,
+  // so the result stays marked approximate if any happened.
+  private static void rebuild(String table) {
+    Stats before = of(table);
+    long lastWrite = before.lastModified.get();
+    Stats s = new Stats();
+    s.lastModified.set(lastWrite);
+    long n = 0;
+    for (String key : source.keys(table)) {
+      Map<String, byte[]> row = source.row(table, key);
+      if (row == null) continue;
+      for (Map.Entry<String, byte[]> e : row.entrySet())
+        s.apply(e.getKey(), null, e.getValue());
+      n++;
+    }
+    if (tables.get(table) != before) return;   // dropped or renamed meanwhile
+    s.approximate = before.lastModified.get() != lastWrite;
+    s.lastModified.set(before.lastModified.get());   // 0 if unknown (no write since startup)
+    s.dirty = true;
+    tables.put(table, s);
+    Metrics.inc("kvs.stats.rebuilds");
+    System.out.println("Rebuilt statistics of " + table + " from " + n + " rows");
+  }
+
+  static void checkpointAll() {
+    for (Map.Entry<String, Stats> e : tables.entrySet()) {
+      String table = e.getKey();
+      Stats s = e.getValue();
+      if (!isPersistent(table) || !s.dirty) continue;
+      Path dir = Paths.get(rootDir, table);
+      if (!Files.isDirectory(dir)) continue;
+      s.dirty = false;
+      Manifest.Table m = Manifest.of(table);
+      try {
+        Path tmp = dir.resolve(FILE_NAME + ".tmp");
+        try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+          w.write(VERSION + " " + m.rowCount() + " " + m.byteCount() + " " + s.lastModified.get() + "\n");
+          for (Map.Entry<String, Column> c : s.columns.entrySet())
+            w.write(c.getKey() + " " + c.getValue().rows.get() + " " + c.getValue().bytes.get() + "\n");
+        }
+        Files.move(tmp, dir.resolve(FILE_NAME), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException ioe) {
+        s.dirty = true;
+        System.err.println("Cannot checkpoint statistics of " + table + ": " + ioe.getMessage());
+      }
+    }
+  }
+
+  static void startCheckpointer() {
+    Thread t = new Thread(() -> {
+      while (true) {
+        try { Thread.sleep(CHECKPOINT_INTERVAL_MS); } catch (InterruptedException ie) { return; }
+        checkpointAll();
+      }
+    }, "TableStatsCheckpointer");
+    t.setDaemon(true);
+    t.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(TableStats::checkpointAll, "TableStatsShutdown"));
+  }
+}
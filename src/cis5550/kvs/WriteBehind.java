@@ -0,0 +1,275 @@
+package cis5550.kvs;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import cis5550.tools.Metrics;
+
+/**
+ * Write-behind buffering for designated persistent tables. Writes to such a table update an
+ * in-memory copy of the row and are acknowledged at once; a background flusher writes the dirty
+ * rows to disk every flush interval, or sooner once a table has too many dirty rows. Repeated
+ * writes to the same row between flushes reach the disk only once.
+ *
+ * Point reads see buffered writes. Range operations (scans, counts, snapshots, ...) work off
+ * the files and the manifest, so callers flush the table first. Writes acknowledged within the
+ * last flush interval can be lost if the worker crashes; a clean shutdown flushes everything.
+ * The setting is kept in <table>/.writebehind.
+ */
+final class WriteBehind {
+
+  static final String CONFIG_FILE = ".writebehind";
+  static final int DEFAULT_MAX_DIRTY_ROWS = 10_000;
+  private static final long TICK_MS = 100;
+
+  /** Where rows come from and go to: the worker's row files. */
+  interface Store {
+    Map<String, byte[]> read(String table, String row);
+    void write(String table, String row, Map<String, byte[]> cols) throws IOException;
+  }
+
+  private static final class Buffer {
+    long flushIntervalMs;
+    int maxDirtyRows;
+    final Object flushLock = new Object();
+    Map<String, Map<String, byte[]>> dirty = new HashMap<>();
+    Map<String, Map<String, byte[]>> flushing = Collections.emptyMap();  // batch being written
+    long nextFlush;
+    boolean retired;   // replaced or dropped; writers must go elsewhere
+
+    Buffer(long flushIntervalMs, int maxDirtyRows) {
+      this.flushIntervalMs = flushIntervalMs;
+      this.maxDirtyRows = maxDirtyRows;
+      this.nextFlush = System.currentTimeMillis() + flushIntervalMs;
+    }
+  }
+
+  private static String rootDir;
+  private static Store store;
+  private static final Map<String, Buffer> buffers = new ConcurrentHashMap<>();
+  private static final Object flushSignal = new Object();
+
+  private WriteBehind() {}
+
+  static void init(String root, Store s, Collection<String> persistentTables) {
+    rootDir = root;
+    store = s;
+    for (String table : persistentTables) {
+      Path f = Paths.get(rootDir, table, CONFIG_FILE);
+      if (!Files.exists(f)) continue;
+      try {
+        String[] p = Files.readString(f, StandardCharsets.UTF_8).trim().split(" ");
+        buffers.put(table, new Buffer(Long.parseLong(p[0]), Integer.parseInt(p[1])));
+      } catch (Exception e) {
+        System.err.println("Ignoring bad write-behind setting for " + table + ": " + e.getMessage());
+      }
+    }
+  }
+
+  static boolean enabled(String table) {
+    return buffers.containsKey(table);
+  }
+
+  /** "<flushIntervalMs> <maxDirtyRows> <dirtyRows>", or null if the table is not buffered. */
+  static String describe(String table) {
+    Buffer b = buffers.get(table);
+    if (b == null) return null;
+    synchronized (b) {
+      return b.flushIntervalMs + " " + b.maxDirtyRows + " " + b.dirty.size();
+    }
+  }
+
+  /**
+   * Turns write-behind on (flushIntervalMs > 0) or off for a table. Turning it off flushes the
+   * buffer first; writes arriving meanwhile wait, then go straight to disk.
+   */
+  static synchronized void configure(String table, long flushIntervalMs, int maxDirtyRows) throws IOException {
+    Path f = Paths.get(rootDir, table, CONFIG_FILE);
+    Buffer b = buffers.get(table);
+    if (flushIntervalMs <= 0) {
+      if (b != null) retire(table, b, true);
+      Files.deleteIfExists(f);
+      return;
+    }
+    Files.createDirectories(f.getParent());
+    Files.writeString(f, flushIntervalMs + " " + maxDirtyRows + "\n", StandardCharsets.UTF_8);
+    if (b == null) {
+      buffers.put(table, new Buffer(flushIntervalMs, maxDirtyRows));
+    } else {
+      synchronized (b) {
+        b.flushIntervalMs = flushIntervalMs;
+        b.maxDirtyRows = maxDirtyRows;
+        b.nextFlush = Math.min(b.nextFlush, System.currentTimeMillis() + flushIntervalMs);
+      }
+    }
+  }
+
+  // Holds the buffer's locks while flushing (or discarding) it, so that no writer can read a
+  // row from disk that still has a newer version in the buffer.
+  private static void retire(String table, Buffer b, boolean flush) throws IOException {
+    synchronized (b.flushLock) {
+      synchronized (b) {
+        b.retired = true;
+        try {
+          if (flush) flush(table, b);
+        } finally {
+          buffers.remove(table, b);
+        }
+      }
+    }
+  }
+
+  // ------------------------- Writes and reads -------------------------
+
+  // The buffered copy of a row, created from the newest version (in flight or on disk).
+  private static Map<String, byte[]> rowForUpdate(Buffer b, String table, String row) {
+    Map<String, byte[]> cols = b.dirty.get(row);
+    if (cols != null) return cols;
+    Map<String, byte[]> base = b.flushing.get(row);
+    if (base == null) base = store.read(table, row);
+    cols = (base == null) ? new LinkedHashMap<>() : new LinkedHashMap<>(base);
+    b.dirty.put(row, cols);
+    return cols;
+  }
+
+  /** Buffers a cell write; false if the table is not (or no longer) in write-behind mode. */
+  static boolean putCell(String table, String row, String col, byte[] value) {
+    Buffer b = buffers.get(table);
+    if (b == null) return false;
+    int dirty;
+    synchronized (b) {
+      if (b.retired) return false;
+      rowForUpdate(b, table, row).put(col, value);
+      dirty = b.dirty.size();
+    }
+    afterWrite(b, dirty);
+    return true;
+  }
+
+  static boolean putRow(String table, String row, Map<String, byte[]> cols) {
+    Buffer b = buffers.get(table);
+    if (b == null) return false;
+    int dirty;
+    synchronized (b) {
+      if (b.retired) return false;
+      b.dirty.put(row, new LinkedHashMap<>(cols));
+      dirty = b.dirty.size();
+    }
+    afterWrite(b, dirty);
+    return true;
+  }
+
+  private static void afterWrite(Buffer b, int dirty) {
+    Metrics.inc("kvs.writebehind.writes");
+    if (dirty >= b.maxDirtyRows) {
+      synchronized (flushSignal) { flushSignal.notifyAll(); }
+    }
+  }
+
+  /** The buffered version of a row (a copy), or null if the row is not buffered. */
+  static Map<String, byte[]> read(String table, String row) {
+    Buffer b = buffers.get(table);
+    if (b == null) return null;
+    synchronized (b) {
+      Map<String, byte[]> cols = b.dirty.get(row);
+      if (cols == null) cols = b.flushing.get(row);
+      return (cols == null) ? null : new LinkedHashMap<>(cols);
+    }
+  }
+
+  // ------------------------------ Flushing ------------------------------
+
+  /** Writes out every buffered row of the table; returns once they are on disk. */
+  static void flush(String table) throws IOException {
+    Buffer b = buffers.get(table);
+    if (b != null) flush(table, b);
+  }
+
+  private static void flush(String table, Buffer b) throws IOException {
+    // One flush at a time per table, so batches reach the disk in order.
+    synchronized (b.flushLock) {
+      Map<String, Map<String, byte[]>> batch;
+      synchronized (b) {
+        b.nextFlush = System.currentTimeMillis() + b.flushIntervalMs;
+        if (b.dirty.isEmpty()) return;
+        batch = b.dirty;
+        b.dirty = new HashMap<>();
+        b.flushing = batch;
+      }
+      Set<String> written = new HashSet<>();
+      try {
+        for (Map.Entry<String, Map<String, byte[]>> e : batch.entrySet()) {
+          store.write(table, e.getKey(), e.getValue());
+          written.add(e.getKey());
+        }
+        Metrics.add("kvs.writebehind.flushedRows", batch.size());
+      } finally {
+        synchronized (b) {
+          // Rows that did not make it to disk stay buffered, unless rewritten in the meantime.
+          for (Map.Entry<String, Map<String, byte[]>> e : batch.entrySet())
+            if (!written.contains(e.getKey())) b.dirty.putIfAbsent(e.getKey(), e.getValue());
+          b.flushing = Collections.emptyMap();
+        }
+      }
+    }
+  }
+
+  static void flushAll() {
+    for (String table : buffers.keySet()) {
+      try {
+        flush(table);
+      } catch (IOException e) {
+        System.err.println("Write-behind flush of " + table + " failed: " + e.getMessage());
+      }
+    }
+  }
+
+  /** Discards the buffer of a table that is being deleted, waiting out a flush in progress. */
+  static void dropTable(String table) {
+    Buffer b = buffers.get(table);
+    if (b == null) return;
+    try {
+      retire(table, b, false);
+    } catch (IOException impossible) {}
+  }
+
+  // The setting file moves with the table directory; the buffer was flushed before the move.
+  static void renameTable(String oldName, String newName) {
+    Buffer b = buffers.remove(oldName);
+    if (b != null) buffers.put(newName, b);
+  }
+
+  static void startFlusher() {
+    Thread t = new Thread(() -> {
+      while (true) {
+        synchronized (flushSignal) {
+          try { flushSignal.wait(TICK_MS); } catch (InterruptedException ie) { return; }
+        }
+        long now = System.currentTimeMillis();
+        int dirty = 0;
+        for (Map.Entry<String, Buffer> e : buffers.entrySet()) {
+          Buffer b = e.getValue();
+          boolean due;
+          synchronized (b) {
+            due = !b.dirty.isEmpty() && (now >= b.nextFlush || b.dirty.size() >= b.maxDirtyRows);
+          }
+          if (due) {
+            try {
+              flush(e.getKey());
+            } catch (IOException ioe) {
+              System.err.println("Write-behind flush of " + e.getKey() + " failed: " + ioe.getMessage());
+            }
+          }
+          synchronized (b) { dirty += b.dirty.size(); }
+        }
+        Metrics.set("kvs.writebehind.dirtyRows", dirty);
+      }
+    }, "WriteBehindFlusher");
+    t.setDaemon(true);
+    t.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(WriteBehind::flushAll, "WriteBehindShutdown"));
+  }
+}
@@ -0,0 +1,311 @@
+package cis5550.test;
+
+import static cis5550.webserver.Server.*;
+
+import cis5550.tools.HTTP;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.io.*;
+import java.net.*;
+
+// Behaviour tests for the HTTP client (cis5550.tools.HTTP), against the web server from this
+// tree, which runs in the same JVM, and against a scripted server that sends exactly the bytes
+// a test needs, including responses that our own server would never send.
+
+public class HTTPTest extends GenericTest {
+
+  static final int SERVER_PORT = 8200;
+  static final int SCRIPTED_PORT = 8201;
+
+  // Returns the raw response to the n-th request on the c-th connection (both from 0), or null
+  // to close the connection without answering; a response with "Connection: close" closes it, too
+  interface Script {
+    byte[] respond(String method, String path, int c, int n) throws Exception;
+  }
+
+  volatile Script script;
+  final AtomicInteger connections = new AtomicInteger();
+
+  void runSetup() {
+  }
+
+  void prompt() {
+
+    /* Make sure the ports are free */
+
+    System.out.println("This test runs a web server on port "+SERVER_PORT+" and a scripted server on port "+SCRIPTED_PORT+".");
+    System.out.println("Make sure that nothing else is running on these ports, and then hit Enter in this window to continue.");
+    (new Scanner(System.in)).nextLine();
+
+  }
+
+  void cleanup() {
+  }
+
+  void startScriptedServer() throws Exception {
+    final ServerSocket ss = new ServerSocket(SCRIPTED_PORT);
+    Thread t = new Thread(() -> {
+      while (true) {
+        try {
+          final Socket s = ss.accept();
+          final int c = connections.getAndIncrement();
+          Thread h = new Thread(() -> serveScripted(s, c));
+          h.setDaemon(true);
+          h.start();
+        } catch (IOException ioe) {
+          return;
+        }
+      }
+    });
+    t.setDaemon(true);
+    t.start();
+  }
+
+  void serveScripted(Socket s, int c) {
+    try {
+      InputStream in = new BufferedInputStream(s.getInputStream());
+      OutputStream out = s.getOutputStream();
+      for (int n=0; true; n++) {
+        String requestLine = readLine(in);
+        if (requestLine == null)
+          break;
+        int contentLength = 0;
+        String line;
+        while (((line = readLine(in)) != null) && !line.equals(""))
+          if (line.toLowerCase().startsWith("content-length:"))
+            contentLength = Integer.parseInt(line.substring(15).trim());
+        in.readNBytes(contentLength);
+        String p[] = requestLine.split(" ");
+        byte response[] = script.respond(p[0], p[1], c, n);
+        if (response == null)
+          break;
+        out.write(response);
+        out.flush();
+        if (new String(response).contains("\r\nConnection: close\r\n"))
+          break;
+      }
+    } catch (Exception e) {
+      // the client went away
+    } finally {
+      try { s.close(); } catch (IOException ioe) {}
+    }
+  }
+
+  String readLine(InputStream in) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    int b;
+    while ((b = in.read()) >= 0) {
+      if (b == '\n')
+        return sb.toString();
+      if (b != '\r')
+        sb.append((char)b);
+    }
+    return (sb.length() > 0) ? sb.toString() : null;
+  }
+
+  byte[] response(String headers, String body) {
+    return ("HTTP/1.1 200 OK\r\n"+headers+"\r\n"+body).getBytes();
+  }
+
+  byte[] withLength(String body) {
+    return response("Content-Length: "+body.length()+"\r\n", body);
+  }
+
+  void startServer() throws Exception {
+    port(SERVER_PORT);
+    get("/slow", (req, res) -> {
+      res.write("first".getBytes());
+      Thread.sleep(1500);
+      res.write("second".getBytes());
+      return null;
+    });
+    get("/echo/:n", (req, res) -> req.params("n"));
+    put("/store/:k", (req, res) -> req.params("k")+"="+req.body());
+  }
+
+  void runTests(Set<String> tests) throws Exception {
+
+    startServer();
+    startScriptedServer();
+    Thread.sleep(500);
+
+    System.out.printf("\n%-10s%-40sResult\n", "Test", "Description");
+    System.out.println("--------------------------------------------------------");
+
+    if (tests.contains("chunked")) try {
+      setTimeoutMillis(15000);
+      startTest("chunked", "Chunked and streamed response bodies", 5);
+      String base = "http://localhost:"+SCRIPTED_PORT;
+      final StringBuilder big = new StringBuilder();
+      for (int i=0; i<1000; i++)
+        big.append(String.format("%09d\n", i));
+      script = (method, path, c, n) -> {
+        if (path.equals("/chunked"))
+          return response("Transfer-Encoding: chunked\r\n", "5;name=value\r\nHello\r\n7\r\n, world\r\n0\r\nX-Trailer: yes\r\n\r\n");
+        if (path.equals("/big")) {
+          StringBuilder sb = new StringBuilder();
+          for (int i=0; i<big.length(); i+=1000)
+            sb.append(Integer.toHexString(1000)).append("\r\n").append(big, i, i+1000).append("\r\n");
+          return response("Transfer-Encoding: chunked\r\n", sb+"0\r\n\r\n");
+        }
+        if (path.equals("/truncated"))
+          return response("Transfer-Encoding: chunked\r\nConnection: close\r\n", "a\r\n0123");
+        return null;
+      };
+
+      int before = connections.get();
+      HTTP.Response r = HTTP.doRequest("GET", base+"/chunked", null);
+      if (!new String(r.body()).equals("Hello, world"))
+        testFailed("A chunked body with a chunk extension and a trailer was decoded as '"+new String(r.body())+"' instead of 'Hello, world'", true);
+      r = HTTP.doRequest("GET", base+"/chunked", null);
+      if (!new String(r.body()).equals("Hello, world"))
+        testFailed("The second chunked response was decoded as '"+new String(r.body())+"'", true);
+      if (connections.get() - before != 1)
+        testFailed("Two requests for chunked responses used "+(connections.get() - before)+" connections; the connection should be kept alive after the last chunk and its trailers", true);
+
+      try (HTTP.StreamingResponse sr = HTTP.doStreamingRequest("GET", base+"/big", null)) {
+        String body = new String(sr.body().readAllBytes());
+        if (!body.equals(big.toString()))
+          testFailed("A streamed body of 10 chunks of 1000 bytes was decoded into "+body.length()+" bytes that differ from what was sent", true);
+      }
+
+      try {
+        r = HTTP.doRequest("GET", base+"/truncated", null);
+        testFailed("A chunked body that ends in the middle of a chunk was returned as '"+new String(r.body())+"' instead of failing", true);
+      } catch (IOException ioe) {
+      }
+
+      // A body streamed by our server arrives as it is written, not when the route returns
+      long start = System.currentTimeMillis();
+      try (HTTP.StreamingResponse sr = HTTP.doStreamingRequest("GET", "http://localhost:"+SERVER_PORT+"/slow", null)) {
+        byte first[] = sr.body().readNBytes(5);
+        long elapsed = System.currentTimeMillis() - start;
+        if (!new String(first).equals("first") || (elapsed > 1000))
+          testFailed("The first part of a streamed body should arrive at once, but '"+new String(first)+"' arrived after "+elapsed+" ms", true);
+        String rest = new String(sr.body().readAllBytes());
+        if (!rest.equals("second"))
+          testFailed("The rest of the streamed body was '"+rest+"' instead of 'second'", true);
+      }
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("pipeline")) try {
+      setTimeoutMillis(20000);
+      startTest("pipeline", "Pipelined requests", 5);
+      List<HTTP.PipelinedRequest> reqs = new ArrayList<HTTP.PipelinedRequest>();
+      for (int i=0; i<300; i++)
+        reqs.add((i%2 == 0) ? new HTTP.PipelinedRequest("GET", "/echo/"+i, null) : new HTTP.PipelinedRequest("PUT", "/store/"+i, ("v"+i).getBytes()));
+      HTTP.pipeline("http://localhost:"+SERVER_PORT, reqs, 16, 5000);
+      for (int i=0; i<300; i++) {
+        HTTP.PipelinedRequest r = reqs.get(i);
+        String expected = (i%2 == 0) ? ""+i : i+"=v"+i;
+        if (r.response() == null)
+          testFailed("Pipelined request #"+i+" failed: "+r.error(), true);
+        if ((r.response().statusCode() != 200) || !new String(r.response().body()).equals(expected))
+          testFailed("Pipelined request #"+i+" got the response '"+new String(r.response().body())+"' (status "+r.response().statusCode()+") instead of '"+expected+"'; the responses may have been matched to the wrong requests", true);
+      }
+
+      // A server that closes the connection after every third response; the rest is sent again
+      String base = "http://localhost:"+SCRIPTED_PORT;
+      script = (method, path, c, n) -> (n < 3) ? withLength(path) : null;
+      int before = connections.get();
+      reqs = new ArrayList<HTTP.PipelinedRequest>();
+      for (int i=0; i<10; i++)
+        reqs.add(new HTTP.PipelinedRequest("GET", "/p/"+i, null));
+      HTTP.pipeline(base, reqs, 8, 5000);
+      for (int i=0; i<10; i++) {
+        HTTP.PipelinedRequest r = reqs.get(i);
+        if ((r.response() == null) || !new String(r.response().body()).equals("/p/"+i))
+          testFailed("With a server that closes the connection after three responses, pipelined request #"+i+" got "+((r.response() == null) ? "the error "+r.error() : "the response '"+new String(r.response().body())+"'")+" instead of '/p/"+i+"'", true);
+      }
+      if (connections.get() - before < 4)
+        testFailed("Ten requests to a server that answers three per connection were sent on only "+(connections.get() - before)+" connections", true);
+
+      // A server that stops answering: the earlier requests keep their responses, the rest fail
+      final int first = connections.get();
+      script = (method, path, c, n) -> ((c == first) && (n < 2)) ? withLength(path) : null;
+      reqs = new ArrayList<HTTP.PipelinedRequest>();
+      for (int i=0; i<10; i++)
+        reqs.add(new HTTP.PipelinedRequest("GET", "/q/"+i, null));
+      HTTP.pipeline(base, reqs, 8, 5000);
+      for (int i=0; i<10; i++) {
+        HTTP.PipelinedRequest r = reqs.get(i);
+        if ((i < 2) && ((r.response() == null) || !new String(r.response().body()).equals("/q/"+i)))
+          testFailed("Pipelined request #"+i+" was answered before the server stopped answering, but got "+((r.response() == null) ? "the error "+r.error() : "the response '"+new String(r.response().body())+"'"), true);
+        if ((i >= 2) && ((r.response() != null) || (r.error() == null)))
+          testFailed("Pipelined request #"+i+" was never answered, but it has "+((r.response() != null) ? "a response" : "no error"), true);
+      }
+
+      try {
+        new HTTP.PipelinedRequest("POST", "/echo/1", null);
+        testFailed("A POST request could be pipelined, although it might then be sent twice", true);
+      } catch (IllegalArgumentException iae) {
+      }
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    System.out.println("--------------------------------------------------------\n");
+    if (numTestsFailed == 0)
+      System.out.println("Looks like your solution passed all of the selected tests. Congratulations!");
+    else
+      System.out.println(numTestsFailed+" test(s) failed.");
+
+    cleanup();
+    closeOutputFile();
+  }
+
+	public static void main(String args[]) throws Exception {
+
+    /* Make a set of enabled tests. If no command-line arguments were specified, run all tests. */
+
+    Set<String> tests = new TreeSet<String>();
+    boolean runSetup = true, runTests = true, promptUser = true, outputToFile = false, exitUponFailure = true, cleanup = true;
+
+    if ((args.length > 0) && args[0].equals("auto")) {
+      runSetup = false;
+      runTests = true;
+      outputToFile = true;
+      exitUponFailure = false;
+      promptUser = false;
+      cleanup = false;
+    } else if ((args.length > 0) && args[0].equals("setup")) {
+      runSetup = true;
+      runTests = false;
+      promptUser = false;
+      cleanup = false;
+    } else if ((args.length > 0) && args[0].equals("cleanup")) {
+      runSetup = false;
+      runTests = false;
+      promptUser = false;
+      cleanup = true;
+    } else if ((args.length > 0) && args[0].equals("version")) {
+      System.out.println("HTTP client behaviour tests v1.0");
+      System.exit(1);
+    }
+
+    if ((args.length == 0) || args[0].equals("all") || args[0].equals("auto") || (args.length>1) && (args[1].equals("all") || args[1].equals("auto"))) {
+      tests.add("chunked");
+      tests.add("pipeline");
+    }
+
+    for (int i=0; i<args.length; i++)
+      if (!args[i].equals("all") && !args[i].equals("auto") && !args[i].equals("setup") && !args[i].equals("cleanup"))
+        tests.add(args[i]);
+
+    HTTPTest t = new HTTPTest();
+    t.setExitUponFailure(exitUponFailure);
+    if (outputToFile)
+      t.outputToFile();
+    if (runSetup)
+      t.runSetup();
+    if (promptUser)
+      t.prompt();
+    if (runTests)
+      t.runTests(tests);
+    if (cleanup)
+      t.cleanup();
+
+    // The web server's thread would keep the JVM running
+    System.exit(0);
+  }
+}
@@ -0,0 +1,623 @@
+package cis5550.test;
+
+import cis5550.kvs.*;
+import cis5550.tools.HTTP;
+import java.util.*;
+import java.nio.file.*;
+import java.io.*;
+
+// Behaviour tests for the KVS. Unlike the homework tests, this one starts its own coordinator
+// and workers (as child processes, with the classpath it runs with), because some of the tests
+// need to restart or stop a worker halfway through.
+
+public class KVSTest extends GenericTest {
+
+  static final int COORDINATOR_PORT = 8100;
+  static final String WORKER_IDS[] = { "aaaaa", "mmmmm" };   // so keys starting with 'c' live on worker 1, and keys starting with 'x' on worker 2
+
+  Process coordinator;
+  Process workers[] = new Process[WORKER_IDS.length];
+
+  String coordinatorAddress() {
+    return "localhost:"+COORDINATOR_PORT;
+  }
+
+  int workerPort(int i) {
+    return COORDINATOR_PORT+1+i;
+  }
+
+  String workerAddress(int i) {
+    return "localhost:"+workerPort(i);
+  }
+
+  String workerDir(int i) {
+    return "kvstest-worker"+(i+1);
+  }
+
+  void runSetup() throws Exception {
+    for (int i=0; i<WORKER_IDS.length; i++) {
+      deleteRecursively(Paths.get(workerDir(i)));
+      Files.createDirectories(Paths.get(workerDir(i)));
+      Files.write(Paths.get(workerDir(i), "id"), WORKER_IDS[i].getBytes());
+    }
+  }
+
+  void prompt() {
+
+    /* Make sure the ports are free */
+
+    System.out.println("This test starts a KVS coordinator on port "+COORDINATOR_PORT+" and "+WORKER_IDS.length+" workers on the ports after it,");
+    System.out.println("with their files in kvstest-worker1, kvstest-worker2, ... in the local directory.");
+    System.out.println("Make sure that nothing else is running on these ports, and then hit Enter in this window to continue.");
+    (new Scanner(System.in)).nextLine();
+
+  }
+
+  // Not synchronized: testFailed() holds the monitor when it exits, and this runs as a shutdown hook
+  void cleanup() {
+    try {
+      for (int i=0; i<workers.length; i++) {
+        if (workers[i] != null)
+          workers[i].destroyForcibly().waitFor();
+        workers[i] = null;
+      }
+      if (coordinator != null)
+        coordinator.destroyForcibly().waitFor();
+      coordinator = null;
+      for (int i=0; i<WORKER_IDS.length; i++)
+        deleteRecursively(Paths.get(workerDir(i)));
+    } catch (Exception e) {
+      System.err.println("Cleanup failed: "+e);
+    }
+  }
+
+  void deleteRecursively(Path p) throws IOException {
+    if (!Files.exists(p))
+      return;
+    try (java.util.stream.Stream<Path> s = Files.walk(p)) {
+      List<Path> all = new ArrayList<Path>();
+      s.forEach(all::add);
+      Collections.reverse(all);
+      for (Path q : all)
+        Files.deleteIfExists(q);
+    }
+  }
+
+  Process launch(String logFile, String... args) throws IOException {
+    List<String> cmd = new ArrayList<String>();
+    cmd.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    cmd.add("-cp");
+    cmd.add(System.getProperty("java.class.path"));
+    cmd.addAll(Arrays.asList(args));
+    ProcessBuilder pb = new ProcessBuilder(cmd);
+    pb.redirectErrorStream(true);
+    pb.redirectOutput(ProcessBuilder.Redirect.appendTo(new File(logFile)));
+    return pb.start();
+  }
+
+  void startCoordinator() throws Exception {
+    coordinator = launch("kvstest-coordinator.log", "cis5550.kvs.Coordinator", ""+COORDINATOR_PORT);
+  }
+
+  void startWorker(int i) throws Exception {
+    workers[i] = launch(workerDir(i)+".log", "cis5550.kvs.Worker", ""+workerPort(i), workerDir(i), coordinatorAddress());
+  }
+
+  // A clean stop runs the worker's shutdown hooks; a crash does not
+  void stopWorker(int i, boolean crash) throws Exception {
+    if (crash)
+      workers[i].destroyForcibly();
+    else
+      workers[i].destroy();
+    workers[i].waitFor();
+    workers[i] = null;
+  }
+
+  // Waits until the coordinator lists every worker, and none of them as suspect
+  void waitForWorkers() throws Exception {
+    long deadline = System.currentTimeMillis() + 20000;
+    while (System.currentTimeMillis() < deadline) {
+      try {
+        HTTP.Response r = HTTP.doRequest("GET", "http://"+coordinatorAddress()+"/workers", null);
+        String lines[] = new String(r.body()).split("\n");
+        String suspect = r.headers().get("x-suspect-workers");
+        if ((r.statusCode() == 200) && lines[0].trim().equals(""+WORKER_IDS.length) && ((suspect == null) || suspect.trim().equals("")))
+          return;
+      } catch (IOException ioe) {
+        // not up yet
+      }
+      Thread.sleep(200);
+    }
+    throw new Exception("The workers did not register with the coordinator within 20 seconds; see the kvstest-*.log files");
+  }
+
+  void startCluster() throws Exception {
+    runSetup();
+    Runtime.getRuntime().addShutdownHook(new Thread(this::cleanup));   // also when a failed test exits
+    startCoordinator();
+    for (int i=0; i<WORKER_IDS.length; i++)
+      startWorker(i);
+    waitForWorkers();
+  }
+
+  // The coordinator keeps listing a stopped worker for a while, so wait for the worker itself
+  void waitForWorker(int i) throws Exception {
+    long deadline = System.currentTimeMillis() + 20000;
+    while (true) {
+      try {
+        if (HTTP.doRequest("GET", "http://"+workerAddress(i)+"/", null).statusCode() == 200)
+          break;
+      } catch (IOException ioe) {
+        if (System.currentTimeMillis() > deadline)
+          throw new Exception("Worker "+(i+1)+" did not come back within 20 seconds; see "+workerDir(i)+".log");
+      }
+      Thread.sleep(200);
+    }
+    waitForWorkers();
+  }
+
+  void restartWorker(int i, boolean crash) throws Exception {
+    stopWorker(i, crash);
+    startWorker(i);
+    waitForWorker(i);
+  }
+
+  // The IDs that the coordinator lists as suspect (it stopped hearing from them)
+  String suspectWorkers() throws Exception {
+    String s = HTTP.doRequest("GET", "http://"+coordinatorAddress()+"/workers", null).headers().get("x-suspect-workers");
+    return (s == null) ? "" : s.trim();
+  }
+
+  String bodyOf(String method, String url, String body) throws Exception {
+    HTTP.Response r = HTTP.doRequest(method, url, (body == null) ? null : body.getBytes());
+    if (r.statusCode() != 200)
+      throw new Exception(method+" "+url+" returned "+r.statusCode()+": "+new String(r.body()));
+    return new String(r.body());
+  }
+
+  int workerCount(int i, String table) throws Exception {
+    return Integer.parseInt(bodyOf("GET", "http://"+workerAddress(i)+"/count/"+table, null).trim());
+  }
+
+  // Replicas are written asynchronously, so give them a moment to arrive
+  int waitForCount(int i, String table, int expected) throws Exception {
+    long deadline = System.currentTimeMillis() + 5000;
+    int n;
+    while (((n = workerCount(i, table)) != expected) && (System.currentTimeMillis() < deadline))
+      Thread.sleep(100);
+    return n;
+  }
+
+  // The value of a cell on one particular worker, without any failover to replicas
+  String valueOn(int i, String table, String row, String column) throws Exception {
+    HTTP.Response r = HTTP.doRequest("GET", "http://"+workerAddress(i)+"/data/"+table+"/"+row+"/"+column, null);
+    return (r.statusCode() == 200) ? new String(r.body()) : null;
+  }
+
+  String value(KVSClient kvs, String table, String row, String column) throws Exception {
+    byte v[] = kvs.get(table, row, column);
+    return (v == null) ? null : new String(v);
+  }
+
+  void runTests(Set<String> tests) throws Exception {
+
+    System.out.println("Starting the coordinator and "+WORKER_IDS.length+" workers...");
+    startCluster();
+    KVSClient kvs = new KVSClient(coordinatorAddress());
+
+    System.out.printf("\n%-10s%-40sResult\n", "Test", "Description");
+    System.out.println("--------------------------------------------------------");
+
+    if (tests.contains("ttl")) try {
+      setTimeoutMillis(15000);
+      startTest("ttl", "Rows expire after their TTL", 5);
+      String t = "kvstest-ttl";
+      kvs.put(t, "cat", "v", "short-lived");
+      kvs.put(t, "cow", "v", "long-lived");
+      kvs.put(t, "xylophone", "v", "short-lived");
+      if (!kvs.setTTL(t, "cat", 1000) || !kvs.setTTL(t, "xylophone", 1000))
+        testFailed("setTTL() returned false for rows that exist", true);
+      Thread.sleep(2000);
+      if (value(kvs, t, "cat", "v") != null || value(kvs, t, "xylophone", "v") != null)
+        testFailed("Rows with a TTL of 1s could still be read 2s later", true);
+      if (!"long-lived".equals(value(kvs, t, "cow", "v")))
+        testFailed("A row without a TTL disappeared along with rows that had one", true);
+
+      // A table TTL is renewed by every write to a row
+      String t2 = "kvstest-ttl2";
+      kvs.setTTL(t2, 2000);
+      for (int i=0; i<20; i++)
+        kvs.put(t2, ((i%2==0) ? "c" : "x")+i, "v", "value"+i);
+      Thread.sleep(1200);
+      kvs.put(t2, "c0", "v", "renewed");
+      kvs.put(t2, "x1", "v", "renewed");
+      Thread.sleep(1200);
+      for (int i=0; i<20; i++) {
+        String row = ((i%2==0) ? "c" : "x")+i, v = value(kvs, t2, row, "v");
+        if ((i < 2) && !"renewed".equals(v))
+          testFailed("Row '"+row+"' of '"+t2+"' was renewed by a write 1.2s ago, and the table TTL is 2s, but get() returned "+v, true);
+        if ((i >= 2) && (v != null))
+          testFailed("Row '"+row+"' of '"+t2+"' was written 2.4s ago, and the table TTL is 2s, but it could still be read", true);
+      }
+      Thread.sleep(1500);
+      int n = kvs.count(t2);
+      if (n != 0)
+        testFailed("All rows of '"+t2+"' (and their replicas) should have expired by now, but count() returned "+n, true);
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("manifest")) try {
+      setTimeoutMillis(90000);
+      startTest("manifest", "Row counts survive restarts and crashes", 5);
+      String t = "pt-kvstest-manifest";
+      List<Row> rows = new ArrayList<Row>();
+      for (int i=0; i<300; i++) {
+        Row r = new Row(((i%2==0) ? "c" : "x")+i);
+        r.put("v", "value"+i);
+        rows.add(r);
+      }
+      kvs.putRows(t, rows);
+      // With two workers, each one holds every row: its own, and replicas of the other's
+      int n = waitForCount(0, t, 300);
+      if (n != 300)
+        testFailed("After writing 300 rows, worker 1 holds "+n+" of them", true);
+
+      restartWorker(0, false);
+      n = workerCount(0, t);
+      if (n != 300)
+        testFailed("Worker 1 held 300 rows of '"+t+"' before a clean restart, but "+n+" after it", true);
+
+      // Rows written after the last manifest checkpoint must be found when the worker crashes
+      for (int i=300; i<350; i++)
+        kvs.put(t, "c"+i, "v", "value"+i);
+      restartWorker(0, true);
+      n = workerCount(0, t);
+      if (n != 350)
+        testFailed("Worker 1 held 350 rows of '"+t+"' before it crashed, but "+n+" after the restart", true);
+
+      kvs = new KVSClient(coordinatorAddress());
+      int scanned = 0;
+      Iterator<Row> iter = kvs.scan(t);
+      while (iter.hasNext()) {
+        Row r = iter.next();
+        if (!r.get("v").equals("value"+r.key().substring(1)))
+          testFailed("After the restarts, row '"+r.key()+"' of '"+t+"' has value '"+r.get("v")+"'", true);
+        scanned ++;
+      }
+      if (scanned != 350)
+        testFailed("After the restarts, a scan of '"+t+"' returned "+scanned+" rows instead of 350", true);
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("changes")) try {
+      setTimeoutMillis(60000);
+      startTest("changes", "Change logs report gaps", 5);
+      String t = "kvstest-changes", url = "http://"+workerAddress(0)+"/changes/"+t;
+      HTTP.Response r = HTTP.doRequest("GET", url+"?wait=0", null);
+      if (r.statusCode() != 404)
+        testFailed("GET /changes for a table whose changes are not logged returned "+r.statusCode()+" instead of 404", true);
+      kvs.setChangeLog(t, true);
+      for (int i=1; i<=3; i++)
+        kvs.put(t, "c"+i, "v", "value"+i);
+
+      // Epoch 0 matches no log, so the client is told that it missed changes, and gets them all
+      r = HTTP.doRequest("GET", url+"?since=0&epoch=0&wait=0", null);
+      String epoch = r.headers().get("x-log-epoch");
+      if (!"true".equals(r.headers().get("x-gap")) || !new String(r.body()).equals("1 put c1\n2 put c2\n3 put c3\n"))
+        testFailed("GET /changes with a wrong epoch should report a gap (X-Gap: true) and return the three changes, but returned X-Gap: "+r.headers().get("x-gap")+" and:\n"+new String(r.body()), true);
+      r = HTTP.doRequest("GET", url+"?since=3&epoch="+epoch+"&wait=0", null);
+      if ((r.headers().get("x-gap") != null) || (r.body().length != 0) || !"3".equals(r.headers().get("x-last-seq")))
+        testFailed("GET /changes from the head of the log should return nothing and no gap, but returned X-Gap: "+r.headers().get("x-gap")+", X-Last-Seq: "+r.headers().get("x-last-seq")+" and:\n"+new String(r.body()), true);
+      kvs.put(t, "c4", "v", "value4");
+      r = HTTP.doRequest("GET", url+"?since=3&epoch="+epoch+"&wait=0", null);
+      if ((r.headers().get("x-gap") != null) || !new String(r.body()).equals("4 put c4\n"))
+        testFailed("After one more write, GET /changes should return just that change, but returned X-Gap: "+r.headers().get("x-gap")+" and:\n"+new String(r.body()), true);
+      r = HTTP.doRequest("GET", url+"?since=100&epoch="+epoch+"&wait=0", null);
+      if (!"true".equals(r.headers().get("x-gap")))
+        testFailed("GET /changes from beyond the head of the log did not report a gap", true);
+
+      // A subscriber whose saved offsets are from before the log was recreated must see a gap
+      ChangeStream cs = kvs.subscribe(t, null);
+      for (int i=0; i<4; i++)
+        if (cs.poll(5000) == null)
+          testFailed("A new subscription returned only "+i+" of the four changes", true);
+      Map<String,String> saved = cs.offsets();
+      cs.close();
+      kvs.setChangeLog(t, false);
+      kvs.setChangeLog(t, true);
+      kvs.put(t, "c5", "v", "value5");
+      cs = kvs.subscribe(t, saved);
+      boolean sawGap = false, sawPut = false;
+      for (ChangeStream.Change c; !(sawGap && sawPut) && ((c = cs.poll(5000)) != null); ) {
+        if ((c.type == ChangeStream.Type.GAP) && c.workerID.equals(WORKER_IDS[0]))
+          sawGap = true;
+        if ((c.type == ChangeStream.Type.PUT) && c.row.equals("c5"))
+          sawPut = true;
+      }
+      cs.close();
+      if (!sawGap || !sawPut)
+        testFailed("After the change log was recreated, a subscription resumed from older offsets should report a gap and then the new change, but gap="+sawGap+", new change="+sawPut, true);
+
+      // Changes that have fallen out of the log are a gap, too
+      r = HTTP.doRequest("GET", url+"?since=0&epoch=0&wait=0", null);
+      epoch = r.headers().get("x-log-epoch");
+      List<Row> rows = new ArrayList<Row>();
+      for (int i=0; i<100010; i++) {
+        Row row = new Row(String.format("c%06d", i));
+        row.put("v", "x");
+        rows.add(row);
+      }
+      kvs.bulkLoad(t, rows);
+      r = HTTP.doRequest("GET", url+"?since=1&epoch="+epoch+"&wait=0&limit=1", null);
+      if (!"true".equals(r.headers().get("x-gap")))
+        testFailed("GET /changes from a position that more than 100,000 newer changes have pushed out of the log did not report a gap", true);
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("snapshot")) try {
+      setTimeoutMillis(60000);
+      startTest("snapshot", "Snapshots see rows as of their creation", 5);
+      String t = "pt-kvstest-snapshot";
+      List<Row> rows = new ArrayList<Row>();
+      for (int i=0; i<3000; i++) {
+        Row r = new Row(String.format("%s%05d", (i%2==0) ? "c" : "x", i));
+        r.put("v", "old");
+        rows.add(r);
+      }
+      kvs.bulkLoad(t, rows);
+      String id = kvs.createSnapshot(t, 60000);
+
+      // Rewrite every row, and add some new ones; more than a worker returns per scan request
+      List<Row> newer = new ArrayList<Row>();
+      for (int i=0; i<3200; i++) {
+        Row r = new Row(String.format("%s%05d", (i%2==0) ? "c" : "x", i));
+        r.put("v", "new");
+        newer.add(r);
+      }
+      kvs.putRows(t, newer);
+
+      int n = 0;
+      Iterator<Row> iter = kvs.scan(t, null, null, id);
+      while (iter.hasNext()) {
+        Row r = iter.next();
+        if (!"old".equals(r.get("v")))
+          testFailed("A scan of snapshot "+id+" returned row '"+r.key()+"' with value '"+r.get("v")+"', which was written after the snapshot was taken", true);
+        n ++;
+      }
+      if (n != 3000)
+        testFailed("The table had 3000 rows when snapshot "+id+" was taken, but a scan of the snapshot returned "+n, true);
+      n = 0;
+      iter = kvs.scan(t);
+      while (iter.hasNext()) {
+        Row r = iter.next();
+        if (!"new".equals(r.get("v")))
+          testFailed("A scan of the live table returned row '"+r.key()+"' with its old value", true);
+        n ++;
+      }
+      if (n != 3200)
+        testFailed("A scan of the live table returned "+n+" rows instead of 3200", true);
+
+      kvs.releaseSnapshot(t, id);
+      HTTP.Response r = HTTP.doRequest("GET", "http://"+workerAddress(0)+"/data/"+t+"?snapshot="+id, null);
+      if (r.statusCode() != 410)
+        testFailed("A scan of a released snapshot returned "+r.statusCode()+" instead of 410", true);
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("wbehind")) try {
+      setTimeoutMillis(90000);
+      startTest("wbehind", "Buffered writes reach the disk", 5);
+      String t = "pt-kvstest-writebehind", wbURL = "http://"+workerAddress(0)+"/writebehind/"+t;
+      kvs.setWriteBehind(t, 60000, 10000);
+      for (int i=0; i<100; i++)
+        kvs.put(t, "c"+i, "v", "value"+i);
+      String d = bodyOf("GET", wbURL, null);
+      if (!d.equals("60000 10000 100"))
+        testFailed("After 100 writes with a flush interval of 60s, GET /writebehind should return '60000 10000 100', but returned '"+d+"'", true);
+      if (!"value7".equals(valueOn(0, t, "c7", "v")))
+        testFailed("A buffered write could not be read back", true);
+
+      // Range operations flush first
+      int n = workerCount(0, t);
+      d = bodyOf("GET", wbURL, null);
+      if ((n != 100) || !d.equals("60000 10000 0"))
+        testFailed("A count should flush the buffered rows and include them, but it returned "+n+", and GET /writebehind then returned '"+d+"'", true);
+
+      // The flusher writes the rows within the interval, so they survive a crash after that
+      kvs.setWriteBehind(t, 500, 10000);
+      for (int i=100; i<200; i++)
+        kvs.put(t, "c"+i, "v", "value"+i);
+      Thread.sleep(1500);
+      d = bodyOf("GET", wbURL, null);
+      if (!d.equals("500 10000 0"))
+        testFailed("1.5s after the writes, with a flush interval of 0.5s, GET /writebehind returned '"+d+"' instead of '500 10000 0'", true);
+      restartWorker(0, true);
+      for (int i=0; i<200; i++)
+        if (!("value"+i).equals(valueOn(0, t, "c"+i, "v")))
+          testFailed("Row c"+i+" was flushed before the worker crashed, but was lost", true);
+      d = bodyOf("GET", wbURL, null);
+      if (!d.startsWith("500 10000 "))
+        testFailed("The write-behind setting did not survive a restart; GET /writebehind returned '"+d+"'", true);
+
+      // Too many dirty rows start a flush early
+      kvs.setWriteBehind(t, 60000, 50);
+      for (int i=200; i<400; i++)
+        kvs.put(t, "c"+i, "v", "value"+i);
+      Thread.sleep(500);
+      n = Integer.parseInt(bodyOf("GET", wbURL, null).split(" ")[2]);
+      if (n > 50)
+        testFailed("The table allows 50 dirty rows, but "+n+" were still buffered 0.5s after the last write", true);
+
+      // ... and a clean shutdown flushes everything
+      for (int i=400; i<450; i++)
+        kvs.put(t, "c"+i, "v", "value"+i);
+      restartWorker(0, false);
+      for (int i=200; i<450; i++)
+        if (!("value"+i).equals(valueOn(0, t, "c"+i, "v")))
+          testFailed("Row c"+i+" was written before a clean shutdown, but was lost", true);
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("coldtier")) try {
+      setTimeoutMillis(60000);
+      startTest("coldtier", "Cold rows are archived and promoted", 5);
+      String t = "pt-kvstest-cold", coldURL = "http://"+workerAddress(0)+"/coldtier/"+t;
+      kvs.setColdTier(t, 1.0/86400);   // one second
+      for (int i=0; i<50; i++)
+        kvs.put(t, "c"+i, "v", "value"+i);
+      Thread.sleep(2500);
+      String moved = bodyOf("POST", coldURL+"/migrate", null);
+      if (!moved.equals("50"))
+        testFailed("All 50 rows of '"+t+"' on worker 1 were idle for longer than the table allows, but a migration moved "+moved, true);
+      String d[] = bodyOf("GET", coldURL, null).split(" ");
+      if (!d[1].equals("50") || !d[2].equals("1"))
+        testFailed("After the migration, GET /coldtier should report 50 cold rows in one segment, but returned '"+String.join(" ", d)+"'", true);
+
+      // Cold rows are still counted and scanned
+      int n = workerCount(0, t);
+      if (n != 50)
+        testFailed("After the migration, worker 1 counts "+n+" rows instead of 50", true);
+      n = 0;
+      Iterator<Row> iter = kvs.scan(t, "c", "d");
+      while (iter.hasNext()) {
+        Row r = iter.next();
+        if (!("value"+r.key().substring(1)).equals(r.get("v")))
+          testFailed("A scan returned cold row '"+r.key()+"' with value '"+r.get("v")+"'", true);
+        n ++;
+      }
+      if (n != 50)
+        testFailed("A scan of the cold rows returned "+n+" rows instead of 50", true);
+
+      // A point read promotes the row, and a write replaces the cold copy
+      if (!"value7".equals(valueOn(0, t, "c7", "v")))
+        testFailed("Cold row c7 could not be read", true);
+      kvs.put(t, "c8", "v", "changed");
+      d = bodyOf("GET", coldURL, null).split(" ");
+      if (!d[1].equals("48"))
+        testFailed("After a point read and a write of two cold rows, GET /coldtier should report 48 cold rows, but returned '"+String.join(" ", d)+"'", true);
+      if (!"changed".equals(valueOn(0, t, "c8", "v")))
+        testFailed("A write to cold row c8 was not visible; the row has value '"+valueOn(0, t, "c8", "v")+"'", true);
+
+      // The tier survives a restart
+      restartWorker(0, false);
+      if (!"value9".equals(valueOn(0, t, "c9", "v")) || !"value7".equals(valueOn(0, t, "c7", "v")))
+        testFailed("After a restart, the rows of the cold tier could not be read", true);
+      d = bodyOf("GET", coldURL, null).split(" ");
+      if (!d[1].equals("47"))
+        testFailed("After a restart and the promotion of one more row, GET /coldtier should report 47 cold rows, but returned '"+String.join(" ", d)+"'", true);
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    if (tests.contains("failover")) try {
+      setTimeoutMillis(120000);
+      startTest("failover", "Reads fail over, writes do not", 5);
+      String t = "kvstest-failover";
+      kvs.put(t, "xray", "v", "before");
+      kvs.put(t, "cello", "v", "before");
+      long deadline = System.currentTimeMillis() + 5000;
+      while ((valueOn(0, t, "xray", "v") == null) && (System.currentTimeMillis() < deadline))
+        Thread.sleep(100);
+      if (valueOn(0, t, "xray", "v") == null)
+        testFailed("Row 'xray' lives on worker 2, but was not replicated to worker 1", true);
+
+      // Right after the crash, the owner merely refuses connections
+      stopWorker(1, true);
+      KVSClient kvs2 = new KVSClient(coordinatorAddress());
+      if (!"before".equals(value(kvs2, t, "xray", "v")))
+        testFailed("Right after worker 2 crashed, its row 'xray' could not be read from the replica on worker 1", true);
+
+      // ... and then the coordinator marks it as suspect, but keeps its key range
+      deadline = System.currentTimeMillis() + 30000;
+      while (!suspectWorkers().contains(WORKER_IDS[1]) && (System.currentTimeMillis() < deadline))
+        Thread.sleep(500);
+      if (!suspectWorkers().contains(WORKER_IDS[1]))
+        testFailed("Worker 2 crashed, but the coordinator did not list it as suspect (X-Suspect-Workers) within 30 seconds", true);
+      kvs2 = new KVSClient(coordinatorAddress());
+      if (kvs2.numWorkers() != 2)
+        testFailed("The coordinator dropped the suspect worker from its list; it should keep its key range until the worker is unregistered", true);
+      if (!"before".equals(value(kvs2, t, "xray", "v")) || !"before".equals(value(kvs2, t, "cello", "v")))
+        testFailed("While worker 2 was suspect, its row 'xray' could not be read from the replica, or the row 'cello' of worker 1 could not be read", true);
+      try {
+        kvs2.put(t, "xylophone", "v", "during");
+        testFailed("A write of row 'xylophone', which belongs to the suspect worker 2, succeeded", true);
+      } catch (IOException ioe) {
+      }
+      if (valueOn(0, t, "xylophone", "v") != null)
+        testFailed("A write of row 'xylophone', which belongs to the suspect worker 2, was redirected to worker 1", true);
+
+      // Once the worker is back, it is no longer suspect and takes writes again
+      startWorker(1);
+      waitForWorker(1);
+      kvs2.put(t, "xylophone", "v", "after");
+      if (!"after".equals(valueOn(1, t, "xylophone", "v")))
+        testFailed("After worker 2 came back, a write of its row 'xylophone' did not reach it", true);
+      testSucceeded();
+    } catch (Exception e) { testFailed("An exception occurred: "+e, false); e.printStackTrace(); }
+
+    System.out.println("--------------------------------------------------------\n");
+    if (numTestsFailed == 0)
+      System.out.println("Looks like your solution passed all of the selected tests. Congratulations!");
+    else
+      System.out.println(numTestsFailed+" test(s) failed.");
+
+    cleanup();
+    closeOutputFile();
+  }
+
+	public static void main(String args[]) throws Exception {
+
+    /* Make a set of enabled tests. If no command-line arguments were specified, run all tests. */
+
+    Set<String> tests = new TreeSet<String>();
+    boolean runSetup = true, runTests = true, promptUser = true, outputToFile = false, exitUponFailure = true, cleanup = true;
+
+    if ((args.length > 0) && args[0].equals("auto")) {
+      runSetup = false;
+      runTests = true;
+      outputToFile = true;
+      exitUponFailure = false;
+      promptUser = false;
+      cleanup = false;
+    } else if ((args.length > 0) && args[0].equals("setup")) {
+      runSetup = true;
+      runTests = false;
+      promptUser = false;
+      cleanup = false;
+    } else if ((args.length > 0) && args[0].equals("cleanup")) {
+      runSetup = false;
+      runTests = false;
+      promptUser = false;
+      cleanup = true;
+    } else if ((args.length > 0) && args[0].equals("version")) {
+      System.out.println("KVS behaviour tests v1.0");
+      System.exit(1);
+    }
+
+    if ((args.length == 0) || args[0].equals("all") || args[0].equals("auto") || (args.length>1) && (args[1].equals("all") || args[1].equals("auto"))) {
+      tests.add("ttl");
+      tests.add("manifest");
+      tests.add("changes");
+      tests.add("snapshot");
+      tests.add("wbehind");
+      tests.add("coldtier");
+      tests.add("failover");
+    }
+
+    for (int i=0; i<args.length; i++)
+      if (!args[i].equals("all") && !args[i].equals("auto") && !args[i].equals("setup") && !args[i].equals("cleanup"))
+        tests.add(args[i]);
+
+    KVSTest t = new KVSTest();
+    t.setExitUponFailure(exitUponFailure);
+    if (outputToFile)
+      t.outputToFile();
+    if (runSetup)
+      t.runSetup();
+    if (promptUser)
+      t.prompt();
+    if (runTests)
+      t.runTests(tests);
+    if (cleanup)
+      t.cleanup();
+  }
+}
@@ -0,0 +1,512 @@
+package cis5550.tools;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.net.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+
+// Non-blocking HTTP/1.1 client: request() returns at once with a CompletableFuture, and a single
+// selector thread drives all connections, so one caller can keep hundreds of requests in flight
+// without a thread each. Like HTTP, it keeps a pool of keep-alive connections per server, at
+// most maxConnectionsPerHost of them; requests beyond that wait in a queue for the server and
+// are sent as connections free up. Idle connections are watched by the selector, so ones the
+// server closes are dropped right away, and they are closed after HTTP's idle timeout.
+//
+// Responses must carry a Content-Length or end when the server closes the connection (as all
+// responses of our web server do); chunked responses are rejected. Futures complete on a small
+// pool of callback threads, never on the selector thread. Connects time out after HTTP's
+// connect timeout; a request can also be given a deadline for the whole exchange.
+//
+// Metrics: asynchttp.requests, .connects, .reused, .queued, .staleRetries, .timeouts.
+
+public class AsyncHTTP {
+
+  static volatile int maxConnectionsPerHost = Integer.getInteger("cis5550.asynchttp.maxConnectionsPerHost", 64);
+  static final long TICK_MS = 100;
+  static final int MAX_STALE_RETRIES = 3;
+
+  public static void setMaxConnectionsPerHost(int n) {
+    maxConnectionsPerHost = Math.max(1, n);
+    submitted.add(DISPATCH_ALL);
+    wakeup();
+  }
+
+  // ------------------------- Requests -------------------------
+
+  static final class Call {
+    final Target target;
+    final byte bytes[];
+    final boolean idempotent;
+    final boolean head;
+    final long deadline;
+    final CompletableFuture<HTTP.Response> result = new CompletableFuture<HTTP.Response>();
+    int retries;
+
+    Call(Target targetArg, byte bytesArg[], boolean idempotentArg, boolean headArg, long deadlineArg) {
+      target = targetArg;
+      bytes = bytesArg;
+      idempotent = idempotentArg;
+      head = headArg;
+      deadline = deadlineArg;
+    }
+  }
+
+  static final class Target {
+    final String host;
+    final int port;
+
+    Target(String hostArg, int portArg) {
+      host = hostArg;
+      port = portArg;
+    }
+  }
+
+  static final Call DISPATCH_ALL = new Call(null, null, false, false, 0);
+
+  public static CompletableFuture<HTTP.Response> request(String method, String urlArg, byte uploadOrNull[]) {
+    return request(method, urlArg, uploadOrNull, -1);
+  }
+
+  // The request fails with a SocketTimeoutException if it has not completed within timeoutMillis
+  public static CompletableFuture<HTTP.Response> request(String method, String urlArg, byte uploadOrNull[], long timeoutMillis) {
+    int pos = urlArg.indexOf("://");
+    if (pos >= 0) {
+      if (!urlArg.substring(0, pos).equals("http"))
+        return CompletableFuture.failedFuture(new IOException("Unsupported protocol "+urlArg.substring(0, pos)));
+      urlArg = urlArg.substring(pos+3);
+    }
+    pos = urlArg.indexOf('/');
+    if (pos < 0)
+      return CompletableFuture.failedFuture(new IOException("No path in URL "+urlArg));
+
+    String host = urlArg.substring(0, pos), path = urlArg.substring(pos);
+    int port = 80;
+    pos = host.indexOf(":");
+    if (pos > 0) {
+      try { port = Integer.valueOf(host.substring(pos+1)).intValue(); } catch (NumberFormatException nfe) {}
+      host = host.substring(0, pos);
+    }
+
+    StringBuilder request = new StringBuilder(128);
+    request.append(method).append(' ').append(path).append(" HTTP/1.1\r\nHost: ").append(host).append("\r\n");
+    if (uploadOrNull != null)
+      request.append("Content-Length: ").append(uploadOrNull.length).append("\r\n");
+    request.append("User-agent: cis5550-crawler\r\nConnection: keep-alive\r\n\r\n");
+    byte head[] = request.toString().getBytes(StandardCharsets.ISO_8859_1);
+    byte bytes[] = head;
+    if (uploadOrNull != null) {
+      bytes = Arrays.copyOf(head, head.length + uploadOrNull.length);
+      System.arraycopy(uploadOrNull, 0, bytes, head.length, uploadOrNull.length);
+    }
+
+    long deadline = (timeoutMillis > 0) ? System.currentTimeMillis() + timeoutMillis : 0;
+    Call call = new Call(new Target(host, port), bytes, !method.equals("POST"), method.equals("HEAD"), deadline);
+    Metrics.inc("asynchttp.requests");
+    if (selector == null)
+      ensureStarted();
+    submitted.add(call);
+    wakeup();
+    return call.result;
+  }
+
+  // ------------------------- Selector thread -------------------------
+
+  static final ConcurrentLinkedQueue<Call> submitted = new ConcurrentLinkedQueue<Call>();
+  static final AtomicBoolean wakeupPending = new AtomicBoolean();
+  static volatile Selector selector;
+
+  // Futures are completed here, so callers' continuations never run on the selector thread
+  static final ExecutorService callbacks = Executors.newFixedThreadPool(2, r -> {
+    Thread t = new Thread(r, "AsyncHTTP-callback");
+    t.setDaemon(true);
+    return t;
+  });
+
+  static void wakeup() {
+    Selector s = selector;
+    if ((s != null) && wakeupPending.compareAndSet(false, true))
+      s.wakeup();
+  }
+
+  static synchronized void ensureStarted() {
+    if (selector != null)
+      return;
+    try {
+      selector = Selector.open();
+    } catch (IOException ioe) {
+      throw new UncheckedIOException("Cannot open a selector", ioe);
+    }
+    Thread t = new Thread(AsyncHTTP::loop, "AsyncHTTP");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  // State below is only touched by the selector thread
+  static final Map<String,Pool> pools = new HashMap<String,Pool>();
+  static final ByteBuffer readBuffer = ByteBuffer.allocateDirect(65536);
+
+  static void loop() {
+    long nextTick = System.currentTimeMillis() + TICK_MS;
+    while (true) {
+      try {
+        selector.select(TICK_MS);
+        wakeupPending.set(false);
+
+        Call call;
+        while ((call = submitted.poll()) != null) {
+          if (call == DISPATCH_ALL) {
+            for (Pool p : pools.values())
+              p.dispatch();
+            continue;
+          }
+          Target target = call.target;
+          Pool p = pools.computeIfAbsent(target.host+":"+target.port, k -> new Pool(target));
+          p.pending.add(call);
+          if (p.idle.isEmpty() && p.open >= maxConnectionsPerHost)
+            Metrics.inc("asynchttp.queued");
+          p.dispatch();
+        }
+
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          SelectionKey key = it.next();
+          it.remove();
+          Connection c = (Connection) key.attachment();
+          if (key.isValid())
+            c.ready(key);
+        }
+
+        long now = System.currentTimeMillis();
+        if (now >= nextTick) {
+          nextTick = now + TICK_MS;
+          for (Pool p : pools.values())
+            p.tick(now);
+        }
+      } catch (Throwable t) {
+        System.err.println("AsyncHTTP selector: "+t);
+      }
+    }
+  }
+
+  static void complete(Call call, HTTP.Response r) {
+    callbacks.execute(() -> call.result.complete(r));
+  }
+
+  static void fail(Call call, Throwable t) {
+    if (t instanceof SocketTimeoutException)
+      Metrics.inc("asynchttp.timeouts");
+    callbacks.execute(() -> call.result.completeExceptionally(t));
+  }
+
+  // ------------------------- Connection pools -------------------------
+
+  static final class Pool {
+    final Target target;
+    InetSocketAddress address;
+    final ArrayDeque<Call> pending = new ArrayDeque<Call>();
+    final ArrayDeque<Connection> idle = new ArrayDeque<Connection>();
+    final Set<Connection> busy = new HashSet<Connection>();
+    int open;
+
+    Pool(Target targetArg) {
+      target = targetArg;
+    }
+
+    // Starts pending requests on idle connections, or on new ones while there is room
+    void dispatch() {
+      while (!pending.isEmpty()) {
+        Connection c = idle.pollFirst();
+        if (c == null) {
+          if (open >= maxConnectionsPerHost)
+            return;
+          try {
+            c = connect();
+          } catch (IOException ioe) {
+            Call call = pending.poll();
+            fail(call, new IOException("Cannot connect to server "+target.host+":"+target.port+" ("+ioe.getMessage()+")", ioe));
+            continue;
+          }
+        } else {
+          c.reused = true;
+          Metrics.inc("asynchttp.reused");
+        }
+        c.start(pending.poll());
+      }
+    }
+
+    Connection connect() throws IOException {
+      if (address == null || address.isUnresolved())
+        address = new InetSocketAddress(target.host, target.port);
+      SocketChannel ch = SocketChannel.open();
+      try {
+        ch.configureBlocking(false);
+        ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        boolean connected = ch.connect(address);
+        Connection c = new Connection(this, ch);
+        c.connected = connected;
+        c.connectDeadline = System.currentTimeMillis() + ((HTTP.connectTimeoutMillis > 0) ? HTTP.connectTimeoutMillis : 5000);
+        c.key = ch.register(selector, connected ? 0 : SelectionKey.OP_CONNECT, c);
+        open ++;
+        Metrics.inc("asynchttp.connects");
+        return c;
+      } catch (IOException ioe) {
+        try { ch.close(); } catch (IOException e) {}
+        throw ioe;
+      }
+    }
+
+    void tick(long now) {
+      for (Connection c : new ArrayList<Connection>(busy)) {
+        if (!c.connected && now > c.connectDeadline)
+          c.failed(new SocketTimeoutException("Connect to "+target.host+":"+target.port+" timed out"));
+        else if ((c.call != null) && (c.call.deadline > 0) && (now > c.call.deadline))
+          c.failed(new SocketTimeoutException("Deadline exceeded for a request to "+target.host+":"+target.port));
+      }
+      Iterator<Call> pit = pending.iterator();
+      while (pit.hasNext()) {
+        Call call = pit.next();
+        if ((call.deadline > 0) && (now > call.deadline)) {
+          pit.remove();
+          fail(call, new SocketTimeoutException("Deadline exceeded waiting for a connection to "+target.host+":"+target.port));
+        }
+      }
+      Iterator<Connection> iit = idle.iterator();
+      while (iit.hasNext()) {
+        Connection c = iit.next();
+        if (now - c.idleSince >= HTTP.idleTimeoutMillis) {
+          iit.remove();
+          c.close();
+        }
+      }
+    }
+  }
+
+  // ------------------------- Connections -------------------------
+
+  static final class Connection {
+    final Pool pool;
+    final SocketChannel ch;
+    SelectionKey key;
+    boolean connected, reused;
+    long connectDeadline, idleSince;
+    Call call;
+    ByteBuffer out;
+    Parser parser;
+
+    Connection(Pool poolArg, SocketChannel chArg) {
+      pool = poolArg;
+      ch = chArg;
+    }
+
+    void start(Call callArg) {
+      call = callArg;
+      out = ByteBuffer.wrap(call.bytes);
+      parser = new Parser(call.head);
+      pool.busy.add(this);
+      if (connected)
+        write();
+    }
+
+    void ready(SelectionKey k) {
+      try {
+        if (k.isConnectable()) {
+          ch.finishConnect();
+          connected = true;
+          write();
+          return;
+        }
+        if (k.isWritable())
+          write();
+        if (k.isValid() && k.isReadable())
+          read();
+      } catch (IOException ioe) {
+        failed(ioe);
+      }
+    }
+
+    void write() {
+      try {
+        ch.write(out);
+        key.interestOps(out.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+      } catch (IOException ioe) {
+        failed(ioe);
+      }
+    }
+
+    void read() throws IOException {
+      while (true) {
+        readBuffer.clear();
+        int n = ch.read(readBuffer);
+        if (n == 0)
+          return;
+        if (n < 0) {
+          if ((call != null) && parser.endsAtClose()) {
+            finished(parser.response(), false);
+            return;
+          }
+          throw new EOFException((call == null) ? "Idle connection closed" : "Server closed the connection before the response was complete");
+        }
+        if (call == null)
+          throw new IOException("Unexpected data on an idle connection");
+        readBuffer.flip();
+        if (parser.feed(readBuffer)) {
+          finished(parser.response(), parser.keepAlive && !readBuffer.hasRemaining());
+          return;
+        }
+      }
+    }
+
+    void finished(HTTP.Response r, boolean keepAlive) {
+      Call done = call;
+      call = null;
+      out = null;
+      parser = null;
+      pool.busy.remove(this);
+      if (keepAlive) {
+        idleSince = System.currentTimeMillis();
+        pool.idle.addFirst(this);
+      } else {
+        close();
+      }
+      complete(done, r);
+      pool.dispatch();
+    }
+
+    void failed(IOException ioe) {
+      Call c = call;
+      boolean started = (parser != null) && parser.started;
+      pool.idle.remove(this);
+      close();
+      if (c != null) {
+        // A pooled connection the server closed while idle fails before any response arrives
+        if (reused && !started && c.idempotent && !(ioe instanceof SocketTimeoutException) && (c.retries < MAX_STALE_RETRIES)) {
+          c.retries ++;
+          Metrics.inc("asynchttp.staleRetries");
+          pool.pending.addFirst(c);
+        } else if (ioe instanceof SocketTimeoutException) {
+          fail(c, ioe);
+        } else if (!started && ((ioe instanceof SocketException) || (ioe instanceof EOFException))) {
+          fail(c, new HTTP.ResetBeforeResponseException("Connection to "+pool.target.host+":"+pool.target.port+" closed before a response ("+ioe.getMessage()+")", ioe));
+        } else {
+          fail(c, new IOException("Connection to "+pool.target.host+":"+pool.target.port+" failed ("+ioe.getMessage()+")", ioe));
+        }
+      }
+      pool.dispatch();
+    }
+
+    void close() {
+      if (!ch.isOpen())
+        return;
+      call = null;
+      pool.busy.remove(this);
+      pool.open --;
+      if (key != null)
+        key.cancel();
+      try { ch.close(); } catch (IOException e) {}
+    }
+  }
+
+  // ------------------------- Response parsing -------------------------
+
+  // Incremental parser for one response; feed() returns true once the response is complete.
+  static final class Parser {
+    final boolean head;
+    final ByteArrayOutputStream header = new ByteArrayOutputStream(256);
+    int lineLength;
+    boolean started, inBody, keepAlive;
+    int statusCode;
+    Map<String,String> headers;
+    long contentLength = -1;
+    byte body[];
+    int have;
+    ByteArrayOutputStream untilClose;
+
+    Parser(boolean headArg) {
+      head = headArg;
+    }
+
+    boolean feed(ByteBuffer buf) throws IOException {
+      while (buf.hasRemaining()) {
+        if (!inBody) {
+          byte b = buf.get();
+          started = true;
+          header.write(b);
+          if (b == '\n') {
+            if (lineLength == 0) {
+              if (headerDone())
+                return true;
+            }
+            lineLength = 0;
+          } else if (b != '\r') {
+            lineLength ++;
+          }
+        } else if (contentLength >= 0) {
+          int n = (int) Math.min(buf.remaining(), contentLength - have);
+          buf.get(body, have, n);
+          have += n;
+          if (have == contentLength)
+            return true;
+        } else {
+          byte chunk[] = new byte[buf.remaining()];
+          buf.get(chunk);
+          untilClose.write(chunk, 0, chunk.length);
+        }
+      }
+      return false;
+    }
+
+    // Parses the status line and headers; true if the response has no body
+    boolean headerDone() throws IOException {
+      String[] lines = header.toString(StandardCharsets.ISO_8859_1).split("\r?\n");
+      header.reset();
+      String[] p = lines[0].split(" ");
+      try {
+        statusCode = Integer.parseInt(p[1]);
+      } catch (Exception e) {
+        throw new IOException("Malformed status line: "+lines[0]);
+      }
+      if (statusCode >= 100 && statusCode < 200)
+        return false;   // 100 Continue and the like: the real response follows
+      headers = new HashMap<String,String>();
+      for (int i=1; i<lines.length; i++) {
+        String[] p2 = lines[i].split(":", 2);
+        if (p2.length == 2)
+          headers.put(p2[0].trim().toLowerCase(), p2[1].trim());
+      }
+      String te = headers.get("transfer-encoding");
+      if ((te != null) && te.toLowerCase().contains("chunked"))
+        throw new IOException("Chunked responses are not supported");
+      if (headers.get("content-length") != null) {
+        try {
+          contentLength = Long.parseLong(headers.get("content-length"));
+        } catch (NumberFormatException nfe) {
+          throw new IOException("Malformed Content-Length: "+headers.get("content-length"));
+        }
+        if (contentLength > Integer.MAX_VALUE - 8)
+          throw new IOException("Response too large ("+contentLength+" bytes)");
+      }
+      if (head || statusCode == 204 || statusCode == 304)
+        contentLength = 0;
+      keepAlive = (contentLength >= 0) && !"close".equalsIgnoreCase(headers.get("connection"));
+      inBody = true;
+      if (contentLength >= 0) {
+        body = new byte[(int) contentLength];
+        return contentLength == 0;
+      }
+      untilClose = new ByteArrayOutputStream();
+      return false;
+    }
+
+    boolean endsAtClose() {
+      return inBody && (contentLength < 0);
+    }
+
+    HTTP.Response response() {
+      return new HTTP.Response((contentLength >= 0) ? body : untilClose.toByteArray(), headers, statusCode);
+    }
+  }
+}
@@ -0,0 +1,209 @@
+package cis5550.tools;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.util.Locale;
+import java.util.zip.*;
+
+/**
+ * HTTP content codings (Content-Encoding / Accept-Encoding) shared by the web server and the
+ * HTTP client: gzip and deflate from java.util.zip. Bodies are compressed only when they are at
+ * least minBytes long, with the configured codec and level, and not at all on loopback
+ * connections, where bandwidth costs nothing and the CPU time would only add latency.
+ * Decoding always works, whatever is configured.
+ *
+ * Settings come from the system properties cis5550.http.compression (gzip, deflate or none),
+ * cis5550.http.compressionLevel (1-9), cis5550.http.compressionMinBytes and
+ * cis5550.http.compressLoopback, and can be changed with the setters below.
+ *
+ * Metrics: http.compress.bytesIn and .bytesOut for bodies compressed in one piece, and
+ * http.compress.streams for streamed ones.
+ */
+public class Compression {
+
+  public static final String GZIP = "gzip", DEFLATE = "deflate", NONE = "none";
+  static final int BUFFER_BYTES = 65536;
+
+  static volatile String codec = normalize(System.getProperty("cis5550.http.compression", GZIP));
+  static volatile int level = Integer.getInteger("cis5550.http.compressionLevel", 1);
+  static volatile int minBytes = Integer.getInteger("cis5550.http.compressionMinBytes", 4096);
+  static volatile boolean loopback = Boolean.getBoolean("cis5550.http.compressLoopback");
+
+  private Compression() {}
+
+  /** A body that decodes to more bytes than allowed. */
+  public static class TooLargeException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public TooLargeException(String message) {
+      super(message);
+    }
+  }
+
+  public static void setCodec(String c) {
+    String n = normalize(c);
+    if (n == null)
+      throw new IllegalArgumentException("Unsupported codec '"+c+"' (use gzip, deflate or none)");
+    codec = n;
+  }
+
+  public static void setLevel(int l) {
+    if (l < 1 || l > 9)
+      throw new IllegalArgumentException("Compression level must be between 1 and 9");
+    level = l;
+  }
+
+  public static void setMinBytes(int n) {
+    minBytes = Math.max(0, n);
+  }
+
+  public static void setCompressLoopback(boolean b) {
+    loopback = b;
+  }
+
+  /** The codec used for compressing, or null if compression is off. */
+  public static String codec() {
+    String c = codec;
+    return (c == null || c.equals(NONE)) ? null : c;
+  }
+
+  /** The Accept-Encoding value for what can be decoded here. */
+  public static String accepted() {
+    return GZIP+", "+DEFLATE;
+  }
+
+  /** True if a body of this length, to or from this peer, should be compressed. */
+  public static boolean worthCompressing(long length, InetAddress peer) {
+    return (codec() != null) && (length >= minBytes) && compressesFor(peer);
+  }
+
+  /** True if compression is on for connections with this peer. */
+  public static boolean compressesFor(InetAddress peer) {
+    return (codec() != null) && (loopback || (peer == null) || !peer.isLoopbackAddress());
+  }
+
+  /** True if bodies with this Content-Encoding can be decoded (identity included). */
+  public static boolean canDecode(String coding) {
+    String n = normalize(coding);
+    return isIdentity(coding) || ((n != null) && !n.equals(NONE));
+  }
+
+  public static boolean isIdentity(String coding) {
+    return (coding == null) || coding.trim().isEmpty() || coding.trim().equalsIgnoreCase("identity");
+  }
+
+  /**
+   * The coding to compress a response with, given the request's Accept-Encoding: the configured
+   * codec if the client takes it, else the other one we support, else null.
+   */
+  public static String negotiate(String acceptEncoding) {
+    String preferred = codec();
+    if (preferred == null || acceptEncoding == null)
+      return null;
+    String other = null;
+    for (String item : acceptEncoding.split(",")) {
+      String p[] = item.split(";");
+      String name = p[0].trim().toLowerCase(Locale.ROOT);
+      double q = 1;
+      for (int i=1; i<p.length; i++) {
+        String param = p[i].trim();
+        if (param.startsWith("q=")) {
+          try { q = Double.parseDouble(param.substring(2)); } catch (NumberFormatException nfe) { q = 0; }
+        }
+      }
+      if (q <= 0)
+        continue;
+      if (name.equals("*"))
+        return preferred;
+      String n = normalize(name);
+      if (preferred.equals(n))
+        return preferred;
+      if (n != null && !n.equals(NONE))
+        other = n;
+    }
+    return other;
+  }
+
+  /** The body compressed with the given coding. */
+  public static byte[] encode(byte data[], String coding) throws IOException {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+    try (OutputStream o = encoder(buf, coding, false)) {
+      o.write(data);
+    }
+    Metrics.add("http.compress.bytesIn", data.length);
+    Metrics.add("http.compress.bytesOut", buf.size());
+    return buf.toByteArray();
+  }
+
+  /** The body decoded from the given coding; bodies larger than maxBytes fail with TooLargeException. */
+  public static byte[] decode(byte data[], String coding, long maxBytes) throws IOException {
+    if (isIdentity(coding))
+      return data;
+    ByteArrayOutputStream buf = new ByteArrayOutputStream(Math.max(64, data.length * 4));
+    try (InputStream in = decoder(new ByteArrayInputStream(data), coding)) {
+      byte b[] = new byte[BUFFER_BYTES];
+      int n;
+      while ((n = in.read(b)) >= 0) {
+        if (buf.size() + n > maxBytes)
+          throw new TooLargeException("Decoded body is larger than "+maxBytes+" bytes");
+        buf.write(b, 0, n);
+      }
+    }
+    return buf.toByteArray();
+  }
+
+  /**
+   * A stream that compresses into out; close() finishes the coding and closes out. With
+   * syncFlush, flush() pushes everything written so far to out (at some cost in ratio).
+   */
+  public static OutputStream encoder(OutputStream out, String coding, boolean syncFlush) throws IOException {
+    final int lvl = level;
+    switch (String.valueOf(normalize(coding))) {
+      case GZIP:
+        return new GZIPOutputStream(out, BUFFER_BYTES, syncFlush) {
+          { def.setLevel(lvl); }
+        };
+      case DEFLATE:
+        // Our own Deflater is not ended by the stream, so end it here
+        return new DeflaterOutputStream(out, new Deflater(lvl), BUFFER_BYTES, syncFlush) {
+          public void close() throws IOException {
+            try { super.close(); } finally { def.end(); }
+          }
+        };
+      default:
+        throw new IOException("Unsupported Content-Encoding: "+coding);
+    }
+  }
+
+  /** A stream that decodes what it reads from in; close() closes in. */
+  public static InputStream decoder(InputStream in, String coding) throws IOException {
+    if (isIdentity(coding))
+      return in;
+    switch (String.valueOf(normalize(coding))) {
+      case GZIP:
+        return new GZIPInputStream(in, BUFFER_BYTES);
+      case DEFLATE:
+        return new InflaterInputStream(in, new Inflater(), BUFFER_BYTES) {
+          public void close() throws IOException {
+            try { super.close(); } finally { inf.end(); }
+          }
+        };
+      default:
+        throw new IOException("Unsupported Content-Encoding: "+coding);
+    }
+  }
+
+  // gzip, deflate or none for the names we accept; null for anything else
+  static String normalize(String coding) {
+    if (coding == null)
+      return null;
+    String c = coding.trim().toLowerCase(Locale.ROOT);
+    if (c.equals(GZIP) || c.equals("x-gzip"))
+      return GZIP;
+    if (c.equals(DEFLATE))
+      return DEFLATE;
+    if (c.equals(NONE) || c.equals("identity") || c.isEmpty())
+      return NONE;
+    return null;
+  }
+}
@@ -1,15 +1,58 @@
 package cis5550.tools;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.lang.ref.Cleaner;
 import java.net.*;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import javax.net.ssl.*;
 import java.security.*;
 import java.security.cert.X509Certificate;
 
-// This class is NOT thread-safe! If you have more than one thread, each thread should get its own instance.
+// A small HTTP/1.1 client that is safe to use from many threads. Connections are kept alive
+// in a bounded pool per server: a request leases an idle connection (or opens a new one if
+// the server has fewer than maxConnectionsPerHost), and returns it when the response has been
+// read. Connections idle for longer than the idle timeout are closed, and ones that sat idle
+// for a while are checked before reuse, so a server that dropped them is not seen as failing.
+//
+// doStreamingRequest returns the status and headers as soon as they arrive and hands the body
+// over as an InputStream on the connection (fixed-length, chunked or until-close), so large
+// responses need not fit in memory; closing it puts the connection back into the pool. A
+// streaming response counts against maxConnectionsPerHost until it is closed, so the number of
+// connections per server stays bounded; one that is abandoned without close() gives its slot
+// back (and its connection is closed) once the response has been garbage-collected.
+//
+// Timeouts: connectTimeout bounds opening a connection, readTimeout bounds each wait for data
+// from the server, and an optional per-request deadline bounds the whole request (waiting for
+// a pooled connection, connecting, sending and receiving). Defaults come from the system
+// properties cis5550.http.* and can be changed with the setters below.
+//
+// pipeline() sends a list of requests to one server on a single connection without waiting
+// for each response in turn, and hands back each request's response or error separately.
+//
+// Compression (see Compression): requests say which codings they accept, and compressed
+// responses are decoded transparently, so callers see the plain body (without the
+// Content-Encoding and Content-Length headers). Once a server has said that it accepts
+// compressed requests, large request bodies to it are compressed as well; if it answers 415
+// to one, compression is turned off for that server and the request is sent again as is.
+//
+// Pool metrics: http.pool.leases, .reused, .connects, .waits, .evictions, .staleRetries,
+// .timeouts, and the gauges http.pool.idle and http.pool.leased; http.pipeline.requests and
+// .resent count pipelined requests, http.stream.abandoned streaming responses that were never
+// closed, and http.compress.rejected requests answered with 415.
 
 public class HTTP {
+  // The connection was reset or closed before any byte of the response arrived, so the server
+  // most likely went away; the request may still have had an effect.
+  public static class ResetBeforeResponseException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public ResetBeforeResponseException(String message, Throwable cause) {
+      super(message, cause);
+    }
+  }
+
   public static class Response {
     byte body[];
     Map<String,String> headers;
@@ -34,39 +77,518 @@ public class HTTP {
     }
   }
 
-  static Map<String,Vector<Socket>> cachedConnections;
+  // ------------------------- Settings -------------------------
 
-  static Socket openSocket(String protocol, String host, int port) {
-    try {
-      if (protocol.equals("https")) {
-        TrustManager[] trustAllCerts = { new X509TrustManager() {
-          public X509Certificate[] getAcceptedIssuers() { return null; }
-          public void checkClientTrusted(X509Certificate[] certs, String authType) { }
-          public void checkServerTrusted(X509Certificate[] certs, String authType) { }
-        } };
-        SSLContext sc;
-        try { 
-          sc = SSLContext.getInstance("SSL"); 
-          sc.init(null, trustAllCerts, new SecureRandom());
-          return sc.getSocketFactory().createSocket(host, port);
-        } catch (NoSuchAlgorithmException nsae) {
-        } catch (KeyManagementException kme) {
+  static volatile int connectTimeoutMillis = Integer.getInteger("cis5550.http.connectTimeoutMs", 5000);
+  static volatile int readTimeoutMillis = Integer.getInteger("cis5550.http.readTimeoutMs", 0);     // 0 = no limit
+  static volatile int maxConnectionsPerHost = Integer.getInteger("cis5550.http.maxConnectionsPerHost", 64);
+  static volatile long idleTimeoutMillis = Long.getLong("cis5550.http.idleTimeoutMs", 30000);
+  static final long VALIDATE_AFTER_MILLIS = 2000;   // idle connections older than this are checked before reuse
+  static final int MAX_STALE_RETRIES = 3;
+
+  public static void setConnectTimeout(int millis) {
+    connectTimeoutMillis = Math.max(0, millis);
+  }
+
+  public static int connectTimeout() {
+    return connectTimeoutMillis;
+  }
+
+  public static void setReadTimeout(int millis) {
+    readTimeoutMillis = Math.max(0, millis);
+  }
+
+  public static void setMaxConnectionsPerHost(int n) {
+    maxConnectionsPerHost = Math.max(1, n);
+    for (Pool p : pools.values())
+      synchronized (p) { p.notifyAll(); }
+  }
+
+  public static void setIdleTimeout(long millis) {
+    idleTimeoutMillis = Math.max(1, millis);
+  }
+
+  // ------------------------- Connections -------------------------
+
+  static final class Connection {
+    final Socket sock;
+    final BufferedInputStream in;
+    final BufferedOutputStream out;
+    long idleSince;
+    boolean reused;
+    boolean keepAlive;        // set once a response has been read completely
+    boolean responseStarted;  // the server has sent at least one byte
+    boolean compressedRequest;  // the last request written had a compressed body
+
+    Connection(Socket sockArg) throws IOException {
+      sock = sockArg;
+      in = new BufferedInputStream(sock.getInputStream(), 65536);
+      out = new BufferedOutputStream(sock.getOutputStream(), 65536);
+    }
+
+    void close() {
+      try { sock.close(); } catch (Exception e) {}
+    }
+
+    // True if the server has not closed the connection (or sent something unexpected) meanwhile
+    boolean alive() {
+      if (sock.isClosed() || sock.isInputShutdown() || sock.isOutputShutdown())
+        return false;
+      try {
+        if (in.available() > 0)
+          return false;
+        sock.setSoTimeout(1);
+        in.read();
+        return false;   // EOF, or bytes nobody asked for
+      } catch (SocketTimeoutException ste) {
+        return true;    // nothing to read: still open
+      } catch (IOException ioe) {
+        return false;
+      }
+    }
+  }
+
+  static final class Pool {
+    final String protocol, host;
+    final int port;
+    final ArrayDeque<Connection> idle = new ArrayDeque<Connection>();
+    int leased;
+    volatile String requestCoding;   // how to compress request bodies, once the server accepts that
+
+    Pool(String protocolArg, String hostArg, int portArg) {
+      protocol = protocolArg;
+      host = hostArg;
+      port = portArg;
+    }
+
+    // An open connection to this server; waits for one to be returned if the pool is full.
+    Connection lease(long deadline) throws IOException {
+      while (true) {
+        Connection c = null;
+        boolean open = false;
+        synchronized (this) {
+          boolean waited = false;
+          while (idle.isEmpty() && leased >= maxConnectionsPerHost) {
+            if (!waited) { Metrics.inc("http.pool.waits"); waited = true; }
+            long wait = (deadline > 0) ? deadline - System.currentTimeMillis() : 0;
+            if (deadline > 0 && wait <= 0) {
+              Metrics.inc("http.pool.timeouts");
+              throw new SocketTimeoutException("Deadline exceeded waiting for a connection to "+host+":"+port);
+            }
+            try {
+              wait(wait);
+            } catch (InterruptedException ie) {
+              Thread.currentThread().interrupt();
+              throw new InterruptedIOException("Interrupted waiting for a connection to "+host+":"+port);
+            }
+          }
+          leased ++;
+          if (!idle.isEmpty())
+            c = idle.pollFirst();
+          else
+            open = true;
+        }
+        Metrics.inc("http.pool.leases");
+
+        if (open) {
+          try {
+            c = connect(deadline);
+          } catch (IOException ioe) {
+            release(null, false);
+            throw ioe;
+          }
+          Metrics.inc("http.pool.connects");
+          return c;
+        }
+        if ((System.currentTimeMillis() - c.idleSince < VALIDATE_AFTER_MILLIS) || c.alive()) {
+          c.reused = true;
+          Metrics.inc("http.pool.reused");
+          return c;
+        }
+        Metrics.inc("http.pool.evictions");
+        release(c, false);
+      }
+    }
+
+    // Returns a leased connection; it goes back to the pool only if it can carry another request.
+    void release(Connection c, boolean reusable) {
+      synchronized (this) {
+        leased --;
+        if (c != null && reusable) {
+          c.idleSince = System.currentTimeMillis();
+          c.keepAlive = false;
+          c.responseStarted = false;
+          idle.addFirst(c);
+          c = null;
+        }
+        notifyAll();
+      }
+      if (c != null)
+        c.close();
+    }
+
+    // Closes connections that have been idle longer than the idle timeout.
+    void evictIdle(long now) {
+      List<Connection> expired = new ArrayList<Connection>();
+      synchronized (this) {
+        Iterator<Connection> it = idle.iterator();
+        while (it.hasNext()) {
+          Connection c = it.next();
+          if (now - c.idleSince >= idleTimeoutMillis) {
+            it.remove();
+            expired.add(c);
+          }
         }
-      } else if (protocol.equals("http")) {
-        return new Socket(host, port);
       }
-    } catch (Exception e) {
-      e.printStackTrace();
+      for (Connection c : expired)
+        c.close();
+      Metrics.add("http.pool.evictions", expired.size());
     }
 
-    return null;
+    Connection connect(long deadline) throws IOException {
+      int timeout = connectTimeoutMillis;
+      if (deadline > 0)
+        timeout = (int) Math.max(1, Math.min((timeout > 0) ? timeout : Long.MAX_VALUE, deadline - System.currentTimeMillis()));
+      Socket sock = new Socket();
+      try {
+        sock.connect(new InetSocketAddress(host, port), timeout);
+        sock.setTcpNoDelay(true);
+        if (protocol.equals("https")) {
+          sock.setSoTimeout(timeout);
+          SSLSocket ssl = (SSLSocket) sslFactory().createSocket(sock, host, port, true);
+          ssl.startHandshake();
+          sock = ssl;
+        }
+        return new Connection(sock);
+      } catch (IOException ioe) {
+        try { sock.close(); } catch (Exception e) {}
+        if (ioe instanceof SocketTimeoutException)
+          throw ioe;
+        throw new IOException("Cannot connect to server "+host+":"+port+" ("+ioe.getMessage()+")", ioe);
+      }
+    }
+  }
+
+  static final Map<String,Pool> pools = new ConcurrentHashMap<String,Pool>();
+  static volatile Thread reaper;
+  static SSLSocketFactory sslFactory;
+
+  static synchronized SSLSocketFactory sslFactory() throws IOException {
+    if (sslFactory == null) {
+      TrustManager[] trustAllCerts = { new X509TrustManager() {
+        public X509Certificate[] getAcceptedIssuers() { return null; }
+        public void checkClientTrusted(X509Certificate[] certs, String authType) { }
+        public void checkServerTrusted(X509Certificate[] certs, String authType) { }
+      } };
+      try {
+        SSLContext sc = SSLContext.getInstance("SSL");
+        sc.init(null, trustAllCerts, new SecureRandom());
+        sslFactory = sc.getSocketFactory();
+      } catch (NoSuchAlgorithmException | KeyManagementException e) {
+        throw new IOException("Cannot set up SSL: "+e);
+      }
+    }
+    return sslFactory;
+  }
+
+  static Pool poolFor(String protocol, String host, int port) {
+    Pool p = pools.computeIfAbsent(protocol+"-"+host+"-"+port, id -> new Pool(protocol, host, port));
+    if (reaper == null)
+      startReaper();
+    return p;
   }
 
+  static synchronized void startReaper() {
+    if (reaper != null)
+      return;
+    Thread t = new Thread(() -> {
+      while (true) {
+        try {
+          Thread.sleep(Math.max(1000, Math.min(idleTimeoutMillis / 2, 10000)));
+        } catch (InterruptedException ie) {
+          return;
+        }
+        long now = System.currentTimeMillis(), idle = 0, leased = 0;
+        for (Pool p : pools.values()) {
+          p.evictIdle(now);
+          synchronized (p) {
+            idle += p.idle.size();
+            leased += p.leased;
+          }
+        }
+        Metrics.set("http.pool.idle", idle);
+        Metrics.set("http.pool.leased", leased);
+      }
+    }, "HTTPPoolReaper");
+    t.setDaemon(true);
+    t.start();
+    reaper = t;
+  }
+
+  // ------------------------- Requests -------------------------
+
   public static Response doRequest(String method, String urlArg, byte uploadOrNull[]) throws IOException {
-    return doRequestWithTimeout(method, urlArg, uploadOrNull, -1, false);
+    return execute(method, urlArg, uploadOrNull, -1, -1, false);
   }
 
+  // timeoutMillis (if > 0) replaces the read timeout for this request
   public static Response doRequestWithTimeout(String method, String urlArg, byte uploadOrNull[], int timeoutMillis, boolean isHeadRequest) throws IOException {
+    return execute(method, urlArg, uploadOrNull, timeoutMillis, -1, isHeadRequest);
+  }
+
+  // The whole request, including waiting for a connection, must finish within deadlineMillis
+  public static Response doRequestWithDeadline(String method, String urlArg, byte uploadOrNull[], long deadlineMillis) throws IOException {
+    return execute(method, urlArg, uploadOrNull, -1, deadlineMillis, false);
+  }
+
+  static Response execute(String method, String urlArg, byte uploadOrNull[], int timeoutMillis, long deadlineMillis, boolean isHeadRequest) throws IOException {
+    StreamingResponse r = open(method, urlArg, uploadOrNull, timeoutMillis, deadlineMillis, isHeadRequest);
+    if (r == null)
+      return null;
+    try {
+      return new Response(r.readAll(), r.headers, r.statusCode);
+    } catch (IOException ioe) {
+      if (ioe instanceof SocketTimeoutException)
+        Metrics.inc("http.pool.timeouts");
+      throw ioe;
+    } finally {
+      r.close();
+    }
+  }
+
+  // ------------------------- Pipelining -------------------------
+
+  // One request of a pipeline. When pipeline() returns, exactly one of response() and error()
+  // is set: the server's response, or the reason why the request could not be completed.
+  public static class PipelinedRequest {
+    final String method, path;
+    final byte body[];
+    Response response;
+    IOException error;
+
+    // path starts with '/'; bodyOrNull is sent with a Content-Length
+    public PipelinedRequest(String methodArg, String pathArg, byte bodyOrNull[]) {
+      if (methodArg.equals("POST"))
+        throw new IllegalArgumentException("POST requests cannot be pipelined (they may be sent twice)");
+      method = methodArg;
+      path = pathArg;
+      body = bodyOrNull;
+    }
+
+    public Response response() {
+      return response;
+    }
+
+    public IOException error() {
+      return error;
+    }
+  }
+
+  static final int MAX_PIPELINE_BYTES = 1024*1024;   // request bytes sent but not yet answered
+  static final int MAX_PIPELINE_RETRIES = 2;          // new connections in a row without a response
+
+  // Sends requests to one server ("http://host:port") on a single keep-alive connection without
+  // waiting for each response: up to 'depth' requests, and at most MAX_PIPELINE_BYTES, are in
+  // flight at a time. An HTTP/1.1 server answers in order, so the oldest request still in flight
+  // owns the next response, and the rate is bounded by the server and the bandwidth instead of
+  // by the round-trip time. If the connection fails or the server closes it, the requests not yet
+  // answered are sent again on a new connection; after MAX_PIPELINE_RETRIES attempts in a row
+  // without any response (or after a read timeout), they all fail with the IOException, while the
+  // earlier requests keep their responses. Requests may thus be sent twice, so POSTs are not
+  // allowed; and responses should be small, since they are only read between writes.
+  // timeoutMillis (if > 0) replaces the read timeout.
+  public static void pipeline(String baseURL, List<PipelinedRequest> requests, int depth, int timeoutMillis) throws IOException {
+    String protocol = "http";
+    int pos = baseURL.indexOf("://");
+    if (pos >= 0) {
+      protocol = baseURL.substring(0, pos);
+      baseURL = baseURL.substring(pos+3);
+    }
+    pos = baseURL.indexOf('/');
+    String host = (pos < 0) ? baseURL : baseURL.substring(0, pos);
+    int port = (protocol.equals("https")) ? 443 : 80;
+    pos = host.indexOf(":");
+    if (pos > 0) {
+      String sport = host.substring(pos+1);
+      try { port = Integer.valueOf(sport).intValue(); } catch (NumberFormatException nfe) {}
+      host = host.substring(0, pos);
+    }
+    if (!protocol.equals("http") && !protocol.equals("https"))
+      throw new IOException("Unsupported protocol "+protocol);
+
+    Pool pool = poolFor(protocol, host, port);
+    int readTimeout = (timeoutMillis > 0) ? timeoutMillis : readTimeoutMillis;
+    depth = Math.max(1, depth);
+    int sizes[] = new int[requests.size()];
+    boolean compressed[] = new boolean[requests.size()];
+    int done = 0, failures = 0;
+
+    while (done < requests.size()) {
+      Connection c = null;
+      int sent = done;
+      long inFlight = 0;
+      try {
+        c = pool.lease(0);
+        setTimeout(c, readTimeout, 0);
+        while (done < requests.size()) {
+          // Fill the window, then wait for the oldest response
+          while ((sent < requests.size()) && ((sent == done) || ((sent - done < depth) && (inFlight < MAX_PIPELINE_BYTES)))) {
+            PipelinedRequest r = requests.get(sent);
+            sizes[sent] = writeRequest(pool, c, r.method, host, r.path, r.body);
+            compressed[sent] = c.compressedRequest;
+            inFlight += sizes[sent++];
+          }
+          c.out.flush();
+
+          PipelinedRequest r = requests.get(done);
+          StreamingResponse sr = readResponse(pool, c, r.method, readTimeout, 0, false);
+          r.response = new Response(sr.readAll(), sr.headers, sr.statusCode);
+          if (r.response.statusCode == 415 && compressed[done]) {
+            // Sent as is, it might have been accepted; the caller can try again
+            rejectedCompression(pool);
+            r.response = null;
+            r.error = new IOException("Server "+host+":"+port+" does not accept compressed requests");
+          }
+          inFlight -= sizes[done++];
+          failures = 0;
+          Metrics.inc("http.pipeline.requests");
+          if (!c.keepAlive)
+            break;     // the server closes the connection; the rest goes on a new one
+        }
+        pool.release(c, c.keepAlive);
+      } catch (IOException ioe) {
+        if (c != null)
+          pool.release(c, false);
+        boolean timeout = (ioe instanceof SocketTimeoutException);
+        if (!timeout && (++failures <= MAX_PIPELINE_RETRIES)) {
+          Metrics.add("http.pipeline.resent", sent - done);
+          continue;
+        }
+        if (timeout)
+          Metrics.inc("http.pool.timeouts");
+        IOException e = (timeout || (c == null)) ? ioe : new IOException("Connection to "+host+":"+port+" failed ("+ioe.getMessage()+")", ioe);
+        for (; done < requests.size(); done++)
+          requests.get(done).error = e;
+      }
+    }
+  }
+
+  // ---------------------- Streaming responses ----------------------
+
+  // A response whose body is read straight from the connection. The body is decoded (chunked,
+  // fixed-length or until-close, and decompressed) and ends where the response ends. close()
+  // must be called when done: it returns the connection to the pool if the body was read to the
+  // end (or only a little of it was left), and closes it otherwise.
+  public static class StreamingResponse implements Closeable {
+    final Pool pool;
+    final Connection conn;
+    final int statusCode;
+    final Map<String,String> headers;
+    final long contentLength;
+    final BodyStream body;
+    final String coding;             // Content-Encoding of the body, or null
+    final DecodingStream decoded;
+    boolean closed;
+    Abandoned abandoned;             // set once handed to the caller
+
+    StreamingResponse(Pool poolArg, Connection connArg, int statusCodeArg, Map<String,String> headersArg, long contentLengthArg, BodyStream bodyArg, String codingArg) {
+      pool = poolArg;
+      conn = connArg;
+      statusCode = statusCodeArg;
+      headers = headersArg;
+      contentLength = contentLengthArg;
+      body = bodyArg;
+      coding = codingArg;
+      decoded = (coding != null) ? new DecodingStream(body, coding) : null;
+    }
+
+    public int statusCode() {
+      return statusCode;
+    }
+
+    public Map<String,String> headers() {
+      return headers;
+    }
+
+    public InputStream body() {
+      return (decoded != null) ? decoded : body;
+    }
+
+    // The whole (decoded) body
+    byte[] readAll() throws IOException {
+      byte raw[] = body.readFully(contentLength);
+      return (coding != null) ? Compression.decode(raw, coding, Integer.MAX_VALUE - 8) : raw;
+    }
+
+    // Hands the response to a caller who may drop it without closing it (e.g. an iterator that
+    // is not read to the end): the connection keeps its slot in the pool until close(), or until
+    // the Cleaner finds the response unreachable and closes the connection.
+    StreamingResponse detach() {
+      abandoned = new Abandoned(pool, conn);
+      abandoned.cleanable = CLEANER.register(this, abandoned);
+      return this;
+    }
+
+    public synchronized void close() {
+      if (closed)
+        return;
+      closed = true;
+      if (decoded != null)
+        decoded.close();
+      boolean reusable = conn.keepAlive && body.drain(DRAIN_LIMIT);
+      if (reusable)
+        Metrics.inc("http.stream.reused");
+      if (abandoned != null) {
+        abandoned.closed = true;
+        abandoned.cleanable.clean();
+      }
+      pool.release(conn, reusable);
+    }
+  }
+
+  static final Cleaner CLEANER = Cleaner.create();
+
+  // Releases the pool slot of a detached streaming response that became unreachable unclosed,
+  // closing its connection. It must not refer to the response itself, or the response would
+  // never become unreachable.
+  static final class Abandoned implements Runnable {
+    final Pool pool;
+    final Connection conn;
+    volatile boolean closed;
+    Cleaner.Cleanable cleanable;
+
+    Abandoned(Pool poolArg, Connection connArg) {
+      pool = poolArg;
+      conn = connArg;
+    }
+
+    public void run() {
+      if (closed)
+        return;
+      Metrics.inc("http.stream.abandoned");
+      pool.release(conn, false);
+    }
+  }
+
+  static final long DRAIN_LIMIT = 65536;   // unread body bytes worth skipping to keep a connection
+
+  public static StreamingResponse doStreamingRequest(String method, String urlArg, byte uploadOrNull[]) throws IOException {
+    return doStreamingRequest(method, urlArg, uploadOrNull, -1);
+  }
+
+  // timeoutMillis (if > 0) replaces the read timeout for this request, including reads of the body
+  public static StreamingResponse doStreamingRequest(String method, String urlArg, byte uploadOrNull[], int timeoutMillis) throws IOException {
+    return doStreamingRequest(method, urlArg, uploadOrNull, timeoutMillis, -1);
+  }
+
+  // The same, but the whole request, reading the body included, must finish within deadlineMillis (if > 0)
+  public static StreamingResponse doStreamingRequest(String method, String urlArg, byte uploadOrNull[], int timeoutMillis, long deadlineMillis) throws IOException {
+    StreamingResponse r = open(method, urlArg, uploadOrNull, timeoutMillis, deadlineMillis, false);
+    return (r == null) ? null : r.detach();
+  }
+
+  // Sends the request and reads the status line and headers; the body is left on the connection.
+  static StreamingResponse open(String method, String urlArg, byte uploadOrNull[], int timeoutMillis, long deadlineMillis, boolean isHeadRequest) throws IOException {
     String protocol = "http";
     int pos = urlArg.indexOf("://");
     if (pos >= 0) {
@@ -85,134 +607,386 @@ public class HTTP {
       try { port = Integer.valueOf(sport).intValue(); } catch (NumberFormatException nfe) {}
       host = host.substring(0, pos);
     }
+    if (!protocol.equals("http") && !protocol.equals("https"))
+      throw new IOException("Unsupported protocol "+protocol);
 
-    String serverID = protocol+"-"+host+"-"+port;
-
-    while (true) {
-      boolean usingCached = false;
-      Socket sock = null;
-      if ((cachedConnections != null) && (cachedConnections.get(serverID) != null)) {
-        synchronized(cachedConnections) {
-          if (cachedConnections.get(serverID).size() > 0)
-            sock = cachedConnections.get(serverID).remove(0);
-        }
-        if (sock != null)
-          usingCached = true;
-      }
-      if (sock == null) {
-        sock = openSocket(protocol, host, port);
-        if (sock == null)
-          throw new IOException("Cannot connect to server "+host+":"+port);
-      }
-      // Set TCP_NODELAY for better performance (only if socket is valid)
-      try {
-        sock.setTcpNoDelay(true);
-      } catch (Exception e) {
-        // If setting TCP_NODELAY fails, continue anyway (socket might be in a special state)
-        // This can happen on some platforms or with certain socket types
-      }
+    Pool pool = poolFor(protocol, host, port);
+    long deadline = (deadlineMillis > 0) ? System.currentTimeMillis() + deadlineMillis : 0;
+    int readTimeout = (timeoutMillis > 0) ? timeoutMillis : readTimeoutMillis;
+    boolean idempotent = !method.equals("POST");
 
+    for (int attempt=0; ; attempt++) {
+      Connection c = pool.lease(deadline);
       try {
-        if (timeoutMillis > 0)
-          sock.setSoTimeout(timeoutMillis);
-
-        OutputStream out = sock.getOutputStream();
-        String request = method+" "+path+" HTTP/1.1\r\nHost: "+host+"\r\n";
-//  System.out.println((usingCached ? "[CACHED]" : "[FRESH]")+request);
-      if (uploadOrNull != null)
-          request = request + "Content-Length: "+uploadOrNull.length+"\r\n";
-        request = request + "User-agent: cis5550-crawler\r\nConnection: keep-alive\r\n\r\n";
-        out.write(request.getBytes());
-        if (uploadOrNull != null)
-          out.write(uploadOrNull);
-        out.flush();
+        StreamingResponse r = exchange(pool, c, method, host, path, uploadOrNull, readTimeout, deadline, isHeadRequest);
+        if (r.statusCode == 415 && c.compressedRequest) {
+          // Rejected before it was looked at, so sending it again is safe, even for a POST
+          r.close();
+          rejectedCompression(pool);
+          continue;
+        }
+        return r;
       } catch (IOException ioe) {
-        try { sock.close(); } catch (Exception e) {}
-        if (usingCached) {
-          System.out.println("XXX cached connection failed; continuing with normal connection");
+        pool.release(c, false);
+        // A pooled connection the server closed while idle fails before any response arrives;
+        // try again on another one, unless the request may already have had an effect.
+        boolean stale = c.reused && !c.responseStarted && !(ioe instanceof SocketTimeoutException);
+        if (stale && idempotent && attempt < MAX_STALE_RETRIES) {
+          Metrics.inc("http.pool.staleRetries");
           continue;
         }
-        throw new IOException("Connection to "+host+":"+port+" failed while writing the request");
+        if (ioe instanceof SocketTimeoutException) {
+          Metrics.inc("http.pool.timeouts");
+          throw ioe;
+        }
+        if (!c.responseStarted && ((ioe instanceof SocketException) || (ioe instanceof EOFException)))
+          throw new ResetBeforeResponseException("Connection to "+host+":"+port+" closed before a response ("+ioe.getMessage()+")", ioe);
+        throw new IOException("Connection to "+host+":"+port+" failed ("+ioe.getMessage()+")", ioe);
       }
+    }
+  }
 
-  
-      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-      boolean readingHeaders = true;
-      int contentLength = -1;
-      Map<String,String> headers = new HashMap<String,String>();
-      byte buf[] = new byte[100000];
-      int inBuf = 0;
-      int statusCode = -1;
+  static StreamingResponse exchange(Pool pool, Connection c, String method, String host, String path, byte uploadOrNull[], int readTimeout, long deadline, boolean isHeadRequest) throws IOException {
+    setTimeout(c, readTimeout, deadline);
+
+    // Headers and body go out in one flush, so small requests fit in a single segment
+    writeRequest(pool, c, method, host, path, uploadOrNull);
+    c.out.flush();
+    return readResponse(pool, c, method, readTimeout, deadline, isHeadRequest);
+  }
+
+  static void rejectedCompression(Pool pool) {
+    pool.requestCoding = null;
+    Metrics.inc("http.compress.rejected");
+  }
+
+  // Writes one request into the connection's buffer, without flushing; returns its size in bytes
+  static int writeRequest(Pool pool, Connection c, String method, String host, String path, byte uploadOrNull[]) throws IOException {
+    StringBuilder request = new StringBuilder(160);
+    request.append(method).append(' ').append(path).append(" HTTP/1.1\r\nHost: ").append(host).append("\r\n");
+    InetAddress peer = c.sock.getInetAddress();
+    c.compressedRequest = false;
+    if (Compression.compressesFor(peer))
+      request.append("Accept-Encoding: ").append(Compression.accepted()).append("\r\n");
+    String coding = pool.requestCoding;
+    if (uploadOrNull != null && coding != null && Compression.worthCompressing(uploadOrNull.length, peer)) {
+      byte compressed[] = Compression.encode(uploadOrNull, coding);
+      if (compressed.length < uploadOrNull.length) {
+        uploadOrNull = compressed;
+        c.compressedRequest = true;
+        request.append("Content-Encoding: ").append(coding).append("\r\n");
+      }
+    }
+    if (uploadOrNull != null)
+      request.append("Content-Length: ").append(uploadOrNull.length).append("\r\n");
+    request.append("User-agent: cis5550-crawler\r\nConnection: keep-alive\r\n\r\n");
+    byte header[] = request.toString().getBytes(StandardCharsets.ISO_8859_1);
+    c.out.write(header);
+    if (uploadOrNull != null)
+      c.out.write(uploadOrNull);
+    return header.length + ((uploadOrNull != null) ? uploadOrNull.length : 0);
+  }
 
+  // Reads the status line and headers of the next response on the connection
+  static StreamingResponse readResponse(Pool pool, Connection c, String method, int readTimeout, long deadline, boolean isHeadRequest) throws IOException {
+    int statusCode;
+    Map<String,String> headers;
+    do {
+      String statusLine = readLine(c, readTimeout, deadline);
+      if (statusLine == null)
+        throw new EOFException("Server closed the connection before responding");
+      String[] p = statusLine.split(" ");
+      if (p.length < 2)
+        throw new IOException("Malformed status line: "+statusLine);
       try {
-        InputStream in = sock.getInputStream();
-        while (true) {
-          int n = in.read(buf, inBuf, buf.length - inBuf);
-          if (n<0)
-            break;
-
-          inBuf += n;
-          if (readingHeaders) {
-            int matchPtr = 0;
-            for (int i=0; i<inBuf; i++) {
-              if (buf[i] == 10)
-                matchPtr ++;
-               else if (buf[i] != 13)
-                matchPtr = 0;
-
-              if (matchPtr == 2) {
-                buffer.write(buf, 0, i);
-                ByteArrayInputStream bais = new ByteArrayInputStream(buffer.toByteArray());
-                BufferedReader hdr = new BufferedReader(new InputStreamReader(bais));
-                String statusLine[] = hdr.readLine().split(" ");
-                statusCode = Integer.valueOf(statusLine[1]);
-
-                while (true) {
-                  String s = hdr.readLine();
-                  if (s.equals(""))
-                    break;
-                  String[] p2 = s.split(":", 2);
-                  if (p2.length == 2) {
-                    String headerName = p2[0];
-                    headers.put(headerName.toLowerCase(), p2[1].trim());
-                    if (headerName.toLowerCase().equals("content-length"))
-                      contentLength = Integer.parseInt(p2[1].trim());
-                  }
-                }
-                buffer.reset();
-                System.arraycopy(buf, i+1, buf, 0, inBuf-(i+1));
-                inBuf -= (i+1);
-                readingHeaders = false;
-                break;
-              }
-            }
-          }
+        statusCode = Integer.parseInt(p[1]);
+      } catch (NumberFormatException nfe) {
+        throw new IOException("Malformed status line: "+statusLine);
+      }
+      headers = readHeaders(c, readTimeout, deadline);
+    } while (statusCode >= 100 && statusCode < 200);   // skip 100 Continue and the like
 
-          if (!readingHeaders) {
-            int toCopy = ((contentLength>=0) && (inBuf > contentLength)) ? contentLength : inBuf;
-            buffer.write(buf, 0, toCopy);
-            System.arraycopy(buf, toCopy, buf, 0, inBuf-toCopy);
-            inBuf -= toCopy;
+    long contentLength = -1;
+    if (headers.get("content-length") != null) {
+      try {
+        contentLength = Long.parseLong(headers.get("content-length"));
+      } catch (NumberFormatException nfe) {
+        throw new IOException("Malformed Content-Length: "+headers.get("content-length"));
+      }
+    }
+    String encoding = headers.get("transfer-encoding");
+    boolean chunked = (encoding != null) && encoding.toLowerCase().contains("chunked");
 
-            if ((buffer.size() >= contentLength) || isHeadRequest)
-              break;
-          }
+    BodyStream body;
+    boolean delimited = true;
+    if (isHeadRequest || method.equals("HEAD") || statusCode == 204 || statusCode == 304) {
+      contentLength = 0;
+      body = new FixedLengthBody(c, readTimeout, deadline, 0);
+    } else if (chunked) {
+      contentLength = -1;
+      body = new ChunkedBody(c, readTimeout, deadline);
+    } else if (contentLength >= 0) {
+      body = new FixedLengthBody(c, readTimeout, deadline, contentLength);
+    } else {
+      // No length: the body runs until the server closes the connection
+      delimited = false;
+      body = new UntilCloseBody(c, readTimeout, deadline);
+    }
+
+    c.keepAlive = delimited && !"close".equalsIgnoreCase(headers.get("connection"));
+
+    // The server's Accept-Encoding says whether it takes compressed requests (RFC 7694)
+    String accepts = headers.get("accept-encoding");
+    if (accepts != null)
+      pool.requestCoding = Compression.negotiate(accepts);
+    String coding = headers.get("content-encoding");
+    if (Compression.isIdentity(coding) || !Compression.canDecode(coding) || contentLength == 0) {
+      coding = null;
+    } else {
+      headers.remove("content-encoding");
+      headers.remove("content-length");
+    }
+    return new StreamingResponse(pool, c, statusCode, headers, contentLength, body, coding);
+  }
+
+  // Header lines up to the empty line, with lower-case names
+  static Map<String,String> readHeaders(Connection c, int readTimeout, long deadline) throws IOException {
+    Map<String,String> headers = new HashMap<String,String>();
+    while (true) {
+      String s = readLine(c, readTimeout, deadline);
+      if (s == null)
+        throw new EOFException("Server closed the connection in the middle of the headers");
+      if (s.equals(""))
+        return headers;
+      String[] p2 = s.split(":", 2);
+      if (p2.length == 2)
+        headers.put(p2[0].trim().toLowerCase(), p2[1].trim());
+    }
+  }
+
+  // One header line without the line break, or null at EOF before any byte
+  static String readLine(Connection c, int readTimeout, long deadline) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+    setTimeout(c, readTimeout, deadline);
+    while (true) {
+      int b = c.in.read();
+      if (b < 0)
+        return (line.size() == 0) ? null : line.toString(StandardCharsets.ISO_8859_1);
+      c.responseStarted = true;
+      if (b == '\n')
+        break;
+      if (b != '\r')
+        line.write(b);
+    }
+    return line.toString(StandardCharsets.ISO_8859_1);
+  }
+
+  // The socket timeout for the next read: the read timeout, cut short by the deadline
+  static void setTimeout(Connection c, int readTimeout, long deadline) throws IOException {
+    int timeout = readTimeout;
+    if (deadline > 0) {
+      long left = deadline - System.currentTimeMillis();
+      if (left <= 0)
+        throw new SocketTimeoutException("Deadline exceeded");
+      if (timeout <= 0 || left < timeout)
+        timeout = (int) Math.min(left, Integer.MAX_VALUE);
+    }
+    c.sock.setSoTimeout(Math.max(0, timeout));
+  }
+
+  // ------------------------- Body decoding -------------------------
+
+  // The body of one response on a connection; reading past its end returns -1.
+  // A compressed body, decoded as it is read. The decoder is made on the first read, since a
+  // gzip decoder reads the header as soon as it is created.
+  static final class DecodingStream extends InputStream {
+    final BodyStream raw;
+    final String coding;
+    InputStream in;
+
+    DecodingStream(BodyStream rawArg, String codingArg) {
+      raw = rawArg;
+      coding = codingArg;
+    }
+
+    InputStream in() throws IOException {
+      if (in == null)
+        in = Compression.decoder(raw, coding);
+      return in;
+    }
+
+    public int read() throws IOException {
+      return in().read();
+    }
+
+    public int read(byte b[], int off, int len) throws IOException {
+      return in().read(b, off, len);
+    }
+
+    // Frees the decoder; the connection is released through StreamingResponse.close()
+    public void close() {
+      try { if (in != null) in.close(); } catch (IOException ioe) {}
+    }
+  }
+
+  static abstract class BodyStream extends InputStream {
+    final Connection c;
+    final int readTimeout;
+    final long deadline;
+    boolean eof, failed;
+    final byte one[] = new byte[1];
+
+    BodyStream(Connection cArg, int readTimeoutArg, long deadlineArg) {
+      c = cArg;
+      readTimeout = readTimeoutArg;
+      deadline = deadlineArg;
+    }
+
+    // Reads at most len bytes (at least one) of the body, or returns -1 at its end
+    abstract int fill(byte b[], int off, int len) throws IOException;
+
+    public int read() throws IOException {
+      int n = read(one, 0, 1);
+      return (n < 0) ? -1 : (one[0] & 0xff);
+    }
+
+    public int read(byte b[], int off, int len) throws IOException {
+      if (eof)
+        return -1;
+      if (len == 0)
+        return 0;
+      try {
+        if (deadline > 0)
+          setTimeout(c, readTimeout, deadline);
+        int n = fill(b, off, len);
+        if (n < 0)
+          eof = true;
+        return n;
+      } catch (IOException ioe) {
+        failed = true;
+        throw ioe;
+      }
+    }
+
+    public void close() {
+      // The connection is released through StreamingResponse.close()
+    }
+
+    // Reads and discards the rest of the body; true if it ended within limit bytes
+    boolean drain(long limit) {
+      if (failed)
+        return false;
+      if (eof)
+        return true;
+      byte buf[] = new byte[8192];
+      long skipped = 0;
+      try {
+        while (skipped <= limit) {
+          int n = read(buf, 0, buf.length);
+          if (n < 0)
+            return true;
+          skipped += n;
+        }
+      } catch (IOException ioe) {}
+      return false;
+    }
+
+    // The whole body as an array, sized from Content-Length when known
+    byte[] readFully(long contentLength) throws IOException {
+      if (contentLength > Integer.MAX_VALUE - 8)
+        throw new IOException("Response too large ("+contentLength+" bytes)");
+      if (contentLength >= 0) {
+        byte body[] = new byte[(int) contentLength];
+        int have = 0;
+        while (have < body.length) {
+          int n = read(body, have, body.length - have);
+          if (n < 0)
+            throw new EOFException("Response ended after "+have+" of "+contentLength+" bytes");
+          have += n;
         }
-      } catch (Exception e) {
-        try { sock.close(); } catch (Exception e2) {}
-        e.printStackTrace();
-        throw new IOException("Connection to "+host+":"+port+" failed while reading the response ("+e+")");
+        return body;
       }
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      byte buf[] = new byte[65536];
+      int n;
+      while ((n = read(buf, 0, buf.length)) >= 0)
+        buffer.write(buf, 0, n);
+      return buffer.toByteArray();
+    }
+  }
+
+  static final class FixedLengthBody extends BodyStream {
+    long left;
+
+    FixedLengthBody(Connection c, int readTimeout, long deadline, long length) {
+      super(c, readTimeout, deadline);
+      left = length;
+      eof = (length == 0);
+    }
 
-      if (cachedConnections == null) 
-        cachedConnections = new HashMap<String,Vector<Socket>>();
-      synchronized(cachedConnections) {
-        if (cachedConnections.get(serverID) == null)
-          cachedConnections.put(serverID, new Vector<Socket>());
-        cachedConnections.get(serverID).add(sock);
+    int fill(byte b[], int off, int len) throws IOException {
+      if (left == 0)
+        return -1;
+      int n = c.in.read(b, off, (int) Math.min(len, left));
+      if (n < 0)
+        throw new EOFException("Response ended "+left+" bytes early");
+      left -= n;
+      if (left == 0)
+        eof = true;
+      return n;
+    }
+
+    public int available() throws IOException {
+      return (int) Math.min(left, c.in.available());
+    }
+  }
+
+  static final class ChunkedBody extends BodyStream {
+    long left;              // bytes left in the current chunk
+    boolean inChunk;
+
+    ChunkedBody(Connection c, int readTimeout, long deadline) {
+      super(c, readTimeout, deadline);
+    }
+
+    int fill(byte b[], int off, int len) throws IOException {
+      if (!inChunk) {
+        String line = readLine(c, readTimeout, deadline);
+        if (line == null)
+          throw new EOFException("Response ended before the last chunk");
+        int semi = line.indexOf(';');
+        try {
+          left = Long.parseLong(((semi >= 0) ? line.substring(0, semi) : line).trim(), 16);
+        } catch (NumberFormatException nfe) {
+          throw new IOException("Malformed chunk size: "+line);
+        }
+        if (left == 0) {
+          readHeaders(c, readTimeout, deadline);   // trailers
+          return -1;
+        }
+        inChunk = true;
       }
+      int n = c.in.read(b, off, (int) Math.min(len, left));
+      if (n < 0)
+        throw new EOFException("Response ended in the middle of a chunk");
+      left -= n;
+      if (left == 0) {
+        String crlf = readLine(c, readTimeout, deadline);
+        if (crlf == null || !crlf.isEmpty())
+          throw new IOException("Missing line break after chunk");
+        inChunk = false;
+      }
+      return n;
+    }
+  }
+
+  static final class UntilCloseBody extends BodyStream {
+    UntilCloseBody(Connection c, int readTimeout, long deadline) {
+      super(c, readTimeout, deadline);
+    }
 
-      return new Response(buffer.toByteArray(), headers, statusCode);
+    int fill(byte b[], int off, int len) throws IOException {
+      return c.in.read(b, off, len);
     }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,46 @@
+package cis5550.tools;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide named counters and gauges. Each JVM (KVS worker, Flame worker, ...)
+ * has its own registry; servers expose it as plain text via GET /metrics.
+ */
+public class Metrics {
+
+  private static final Map<String, AtomicLong> values = new ConcurrentHashMap<>();
+
+  private static AtomicLong counter(String name) {
+    return values.computeIfAbsent(name, n -> new AtomicLong());
+  }
+
+  /** Adds delta to a counter and returns the new value. */
+  public static long add(String name, long delta) {
+    return counter(name).addAndGet(delta);
+  }
+
+  public static long inc(String name) {
+    return add(name, 1);
+  }
+
+  /** Sets a gauge to an absolute value. */
+  public static void set(String name, long value) {
+    counter(name).set(value);
+  }
+
+  public static long get(String name) {
+    AtomicLong v = values.get(name);
+    return (v == null) ? 0 : v.get();
+  }
+
+  /** One "name value" line per metric, sorted by name. */
+  public static String render() {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, AtomicLong> e : new TreeMap<>(values).entrySet())
+      sb.append(e.getKey()).append(' ').append(e.getValue().get()).append('\n');
+    return sb.toString();
+  }
+}
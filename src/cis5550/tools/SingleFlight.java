@@ -0,0 +1,73 @@
+package cis5550.tools;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Coalesces concurrent identical calls: while a call for a key is in flight, further callers
+ * with the same key wait for it and get its result (or exception) instead of making their own.
+ * Nothing is cached; once the call completes, the next caller starts a new one.
+ *
+ * Writers should forget() the key they change, so that a read that starts after the write
+ * cannot join one that started before it. Results are handed to every waiting caller, so they
+ * must not be modified.
+ *
+ * Counters <name>.leaders (calls made) and <name>.shared (calls saved) go to Metrics.
+ */
+public class SingleFlight<V> {
+
+  private final String name;
+  private final Map<String, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+  public SingleFlight(String name) {
+    this.name = name;
+  }
+
+  public V run(String key, Callable<V> call) throws Exception {
+    CompletableFuture<V> mine = new CompletableFuture<>();
+    CompletableFuture<V> existing = inFlight.putIfAbsent(key, mine);
+    if (existing != null) {
+      Metrics.inc(name + ".shared");
+      try {
+        return existing.get();
+      } catch (ExecutionException e) {
+        Throwable c = e.getCause();
+        if (c instanceof Exception) throw (Exception) c;
+        throw (Error) c;
+      }
+    }
+
+    Metrics.inc(name + ".leaders");
+    try {
+      V v = call.call();
+      mine.complete(v);
+      return v;
+    } catch (Exception | Error e) {
+      mine.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, mine);
+    }
+  }
+
+  /** Lets later callers for this key start a new call instead of joining the current one. */
+  public void forget(String key) {
+    inFlight.remove(key);
+  }
+
+  /** forget() for every key with the given prefix (e.g. all reads of one row). */
+  public void forgetPrefix(String prefix) {
+    inFlight.keySet().removeIf(k -> k.startsWith(prefix));
+  }
+
+  public long leaders() {
+    return Metrics.get(name + ".leaders");
+  }
+
+  public long shared() {
+    return Metrics.get(name + ".shared");
+  }
+}
@@ -39,6 +39,14 @@ public interface Response {
   // it should simply write the provided bytes directly to the connection.
   void write(byte[] b) throws Exception;
 
+  // Like write(), but sends 'count' bytes of a file starting at 'position'. On plain HTTP
+  // connections the bytes go straight from the file to the socket (FileChannel.transferTo),
+  // without being copied through the heap.
+  // If a Content-Length header was set before the first write, the response is sent with that
+  // length instead of 'Connection: close', and the connection stays open once exactly that
+  // many bytes have been written.
+  void write(java.nio.channels.FileChannel file, long position, long count) throws Exception;
+
   // EXTRA CREDIT ONLY - please see the handout for details. If you are not doing the extra
   // credit, please implement this with a dummy method that does nothing.
   void redirect(String url, int responseCode);
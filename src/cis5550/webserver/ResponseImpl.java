@@ -1,19 +1,29 @@
 package cis5550.webserver;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 
+import cis5550.tools.Compression;
+import cis5550.tools.Metrics;
+
 class ResponseImpl implements Response {
   private final OutputStream out;
+  private final SocketChannel channel;     // null for TLS connections
   private final List<String[]> headers = new ArrayList<>();
   private int statusCode = 200;
   private String reasonPhrase = "OK";
   private String contentType = "text/html";
   private byte[] body = null;
   private boolean committed = false;
+  private long declaredLength = -1;       // Content-Length set before write(), if any
+  private long written = 0;
+  private String coding = null;           // Content-Encoding the client accepts, if we compress for it
+  private OutputStream encoder = null;    // compresses a streamed body into out
 
-  ResponseImpl(OutputStream out){ this.out = out; }
+  ResponseImpl(OutputStream out, SocketChannel channel){ this.out = out; this.channel = channel; }
 
   @Override public void body(String s){ if (!committed) body = (s==null)?null:s.getBytes(StandardCharsets.UTF_8); }
   @Override public void bodyAsBytes(byte[] b){ if (!committed) body = b; }
@@ -23,18 +33,87 @@ class ResponseImpl implements Response {
 
   @Override
   public void write(byte[] b) throws Exception {
-    if (!committed) {
-      committed = true;
-      PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)), false);
-      pw.print("HTTP/1.1 " + statusCode + " " + reasonPhrase + "\r\n");
-      pw.print("Server: CIS5550-WS\r\n");
-      pw.print("Connection: close\r\n");     
-      pw.print("Content-Type: " + contentType + "\r\n");
-      for (String[] h : headers) pw.print(h[0] + ": " + h[1] + "\r\n");
-      pw.print("\r\n");
-      pw.flush();
+    commitStreaming();
+    if (b == null || b.length == 0) return;
+    // The encoder sends compressed data as its buffer fills, and the rest in finish()
+    if (encoder != null) encoder.write(b);
+    else { out.write(b); out.flush(); }
+    written += b.length;
+  }
+
+  @Override
+  public void write(FileChannel file, long position, long count) throws Exception {
+    commitStreaming();
+    long end = position + count;
+    if (channel != null && encoder == null) {
+      // transferTo may send less than asked (e.g. when the socket buffer is full)
+      while (position < end) {
+        long n = file.transferTo(position, end - position, channel);
+        if (n <= 0 && position >= file.size()) break;
+        position += n;
+      }
+    } else {
+      byte[] buf = new byte[65536];
+      java.nio.ByteBuffer bb = java.nio.ByteBuffer.wrap(buf);
+      while (position < end) {
+        bb.clear().limit((int) Math.min(buf.length, end - position));
+        int n = file.read(bb, position);
+        if (n < 0) break;
+        (encoder != null ? encoder : out).write(buf, 0, n);
+        position += n;
+      }
+      if (encoder == null) out.flush();
     }
-    if (b != null && b.length > 0) { out.write(b); out.flush(); }
+    written += count - (end - position);
+  }
+
+  private void commitStreaming() {
+    if (committed) return;
+    committed = true;
+    for (String[] h : headers)
+      if (h[0].equalsIgnoreCase("Content-Length")) {
+        try { declaredLength = Long.parseLong(h[1].trim()); } catch (NumberFormatException ignored) {}
+      }
+    // Only a body that runs until the connection closes can be compressed on the fly; one with
+    // a declared length goes out as is (and from a file, without passing through the heap).
+    boolean compress = coding != null && declaredLength < 0 && !hasHeader("Content-Encoding");
+    PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)), false);
+    pw.print("HTTP/1.1 " + statusCode + " " + reasonPhrase + "\r\n");
+    pw.print("Server: CIS5550-WS\r\n");
+    if (declaredLength < 0) pw.print("Connection: close\r\n");
+    pw.print("Content-Type: " + contentType + "\r\n");
+    printCompressionHeaders(pw, compress);
+    for (String[] h : headers) pw.print(h[0] + ": " + h[1] + "\r\n");
+    pw.print("\r\n");
+    pw.flush();
+    if (compress) {
+      try {
+        // finish() closes the encoder, but the connection must stay open for it
+        encoder = Compression.encoder(new FilterOutputStream(out) {
+          @Override public void write(byte[] b, int off, int len) throws IOException { out.write(b, off, len); }
+          @Override public void close() throws IOException { flush(); }
+        }, coding, false);
+        Metrics.inc("http.compress.streams");
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  // Content-Encoding and Vary for a compressed body; Accept-Encoding tells the client that it
+  // may compress its requests, too (RFC 7694).
+  private void printCompressionHeaders(PrintWriter pw, boolean compressed) {
+    if (compressed) {
+      pw.print("Content-Encoding: " + coding + "\r\n");
+      pw.print("Vary: Accept-Encoding\r\n");
+    }
+    if (coding != null) pw.print("Accept-Encoding: " + Compression.accepted() + "\r\n");
+  }
+
+  private boolean hasHeader(String name) {
+    for (String[] h : headers)
+      if (h[0].equalsIgnoreCase(name)) return true;
+    return false;
   }
 
   @Override
@@ -78,6 +157,30 @@ class ResponseImpl implements Response {
 
   boolean isCommitted(){ return committed; }
 
+  // Set by the server before the route runs: the coding to compress with, or null for none
+  void compressWith(String c){ coding = c; }
+
+  // Ends a compressed streamed body; must be called once the route is done writing.
+  void finish() throws IOException {
+    if (encoder == null) return;
+    encoder.close();
+    encoder = null;
+  }
+
+  // The buffered body, compressed if it is large enough and that makes it smaller.
+  byte[] encodeBody(byte[] payload) throws IOException {
+    if (committed || coding == null || payload == null || hasHeader("Content-Encoding")) return payload;
+    if (!Compression.worthCompressing(payload.length, null)) return payload;
+    byte[] compressed = Compression.encode(payload, coding);
+    if (compressed.length >= payload.length) return payload;
+    headers.add(new String[]{"Content-Encoding", coding});
+    headers.add(new String[]{"Vary", "Accept-Encoding"});
+    return compressed;
+  }
+
+  // A streamed response can share the connection only if it had a declared length and met it.
+  boolean keepsConnection(){ return declaredLength >= 0 && written == declaredLength; }
+
   byte[] resolveBody(Object routeReturn){
     if (committed) return null;
     if (routeReturn != null) return routeReturn.toString().getBytes(StandardCharsets.UTF_8);
@@ -92,6 +195,7 @@ class ResponseImpl implements Response {
     pw.print("Server: CIS5550-WS\r\n");
     pw.print("Content-Type: " + contentType + "\r\n");
     pw.print("Content-Length: " + contentLength + "\r\n");
+    printCompressionHeaders(pw, false);
     for (String[] h : headers) pw.print(h[0] + ": " + h[1] + "\r\n");
     pw.print("\r\n");
     pw.flush();
@@ -2,15 +2,20 @@ package cis5550.webserver;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.security.KeyStore;
 import java.util.*;
+import java.util.concurrent.Semaphore;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLServerSocketFactory;
 
+import cis5550.tools.Compression;
+import cis5550.tools.Metrics;
+
 public class Server {
 	private static volatile Server INSTANCE;
 	  private static volatile boolean started = false;
@@ -18,6 +23,9 @@ public class Server {
 	  private static volatile boolean useHttps = false;
 	  private static volatile String keyStorePath = null;
 	  private static volatile String keyStorePassword = null;
+	  private static volatile Semaphore connectionSlots = null;    // null = unbounded
+	  private static final int IDLE_TIMEOUT_MS = 60000;
+	  private static volatile long maxDecodedBody = Long.getLong("cis5550.http.maxDecodedBodyBytes", 64L << 20);
 
 	  // ---------- API ----------
 	  public static void port(int p) { configuredPort = p; }
@@ -29,6 +37,20 @@ public class Server {
 	    useHttps = true;
 	  }
 
+	  // Caps the number of connections being served at once; further connections get an
+	  // immediate 503 with Retry-After instead of a thread. Idle keep-alive connections are
+	  // closed after IDLE_TIMEOUT_MS so they cannot hold slots forever. Call before adding routes.
+	  public static void maxConnections(int n) {
+	    connectionSlots = (n > 0) ? new Semaphore(n) : null;
+	  }
+
+	  // Caps the size of a compressed request body once decoded (-Dcis5550.http.maxDecodedBodyBytes,
+	  // 64 MB by default), so a small body cannot expand into an arbitrary amount of memory;
+	  // larger ones are answered with 413.
+	  public static void maxDecodedBodyBytes(long n) {
+	    maxDecodedBody = Math.max(0, Math.min(n, Integer.MAX_VALUE - 8));
+	  }
+
 	  public static class staticFiles {
 	    public static void location(String p) {
 	      ensureInstance();
@@ -84,14 +106,32 @@ public class Server {
 
 	      } else {
 	        System.out.println("Starting HTTP on port " + configuredPort);
-	        ss = new ServerSocket(configuredPort);
+	        // Channel-backed, so responses can hand file regions to the socket with transferTo
+	        ss = ServerSocketChannel.open().bind(new InetSocketAddress(configuredPort)).socket();
 	      }
 
 	      System.out.println("CIS5550 listening on port " + configuredPort);
 
 	      while (true) {
 	        final Socket sock = ss.accept();
-	        Thread w = new Thread(() -> handle(sock), "worker-" + sock.getPort());
+	        // Headers and body are written separately; without this, the body waits for the
+	        // client's delayed ACK of the headers (~40 ms per request on a kept-alive connection)
+	        try { sock.setTcpNoDelay(true); } catch (IOException ignored) {}
+	        final Semaphore slots = connectionSlots;
+	        if (slots != null) {
+	          if (!slots.tryAcquire()) {
+	            rejectOverloaded(sock);
+	            continue;
+	          }
+	          sock.setSoTimeout(IDLE_TIMEOUT_MS);
+	        }
+	        Thread w = new Thread(() -> {
+	          try {
+	            handle(sock);
+	          } finally {
+	            if (slots != null) slots.release();
+	          }
+	        }, "worker-" + sock.getPort());
 	        w.setDaemon(true);
 	        w.start();
 	      }
@@ -120,7 +160,8 @@ public class Server {
 
   private void handle(Socket sock) {
 	    try (sock) {
-	      InputStream in = sock.getInputStream();
+	      // Buffered: headers are parsed byte by byte, and pipelined requests arrive back to back
+	      InputStream in = new BufferedInputStream(sock.getInputStream(), 8192);
 	      OutputStream out = sock.getOutputStream();
 	      while (true) {
 	        byte[] hdr = readHeaders(in);
@@ -131,10 +172,25 @@ public class Server {
 	        if (!"HTTP/1.1".equals(pr.protocol)) { sendError(out, 505, "HTTP Version Not Supported"); continue; }
 
 	        byte[] body = (pr.contentLength > 0) ? readBody(in, pr.contentLength) : new byte[0];
+	        String bodyCoding = pr.headers.get("content-encoding");
+	        if (!Compression.isIdentity(bodyCoding)) {
+	          if (!Compression.canDecode(bodyCoding)) { sendError(out, 415, "Unsupported Media Type"); continue; }
+	          try {
+	            body = Compression.decode(body, bodyCoding, maxDecodedBody);
+	          } catch (Compression.TooLargeException e) {
+	            Metrics.inc("server.bodyTooLarge");
+	            sendError(out, 413, "Payload Too Large"); continue;
+	          } catch (IOException e) {
+	            sendError(out, 400, "Bad Request"); continue;
+	          }
+	          pr.headers.remove("content-encoding");
+	        }
 
 	        Match m = matchRoute(pr.method, pr.url);
 	        if (m != null) {
-	          ResponseImpl res = new ResponseImpl(out);
+	          ResponseImpl res = new ResponseImpl(out, sock.getChannel());
+	          if (Compression.compressesFor(sock.getInetAddress()))
+	            res.compressWith(Compression.negotiate(pr.headers.get("accept-encoding")));
 	          Map<String,String> qparams = parseQueryParams(pr.rawQuery, body, pr.headers.get("content-type"));
 
 	          RequestImpl req = new RequestImpl(
@@ -143,9 +199,13 @@ public class Server {
 
 	          try {
 	            Object ret = m.handler.handle(req, res);
-	            if (res.isCommitted()) break;
+	            if (res.isCommitted()) {
+	              res.finish();
+	              if (res.keepsConnection()) continue;
+	              break;
+	            }
 
-	            byte[] payload = res.resolveBody(ret);
+	            byte[] payload = res.encodeBody(res.resolveBody(ret));
 	            int len = (payload == null) ? 0 : payload.length;
 	            res.writeBufferedHeaders(len);
 
@@ -309,6 +369,25 @@ public class Server {
     }
   }
 
+  // Runs on the accept thread, so it must not block on the client.
+  private static void rejectOverloaded(Socket sock) {
+    Metrics.inc("server.rejectedConnections");
+    try (sock) {
+      sock.setSoTimeout(1000);
+      byte[] body = "503 Service Unavailable\n".getBytes(StandardCharsets.UTF_8);
+      OutputStream out = sock.getOutputStream();
+      out.write(("HTTP/1.1 503 Service Unavailable\r\nServer: CIS5550-WS\r\nRetry-After: 1\r\n"
+               + "Connection: close\r\nContent-Type: text/plain\r\nContent-Length: " + body.length + "\r\n\r\n")
+               .getBytes(StandardCharsets.UTF_8));
+      out.write(body);
+      out.flush();
+      sock.shutdownOutput();
+      // Discard a request that has already arrived, so closing does not reset the connection
+      InputStream in = sock.getInputStream();
+      in.skip(in.available());
+    } catch (IOException ignored) {}
+  }
+
   private static void sendError(OutputStream out, int code, String text) throws IOException {
     byte[] body = (code + " " + text + "\n").getBytes(StandardCharsets.UTF_8);
     PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)), false);